@@ -0,0 +1,188 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of ids stored as a compressed bitmap of their ordinals in an IdDictionary (by default the node one, as bound
+ * to the current request).<br>
+ * <br>
+ * Intersections, unions and differences with another BitmapIdSet sharing the same dictionary are done on the bitmaps
+ * (word parallel for dense parts), without any String hashing.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class BitmapIdSet extends AbstractSet<String> {
+    private final IdDictionary dictionary;
+    private IdBitmap bitmap;
+
+    /**
+     * Using the dictionary bound to the current request (or the node one)
+     */
+    public BitmapIdSet() {
+        this(IdDictionary.getCurrent());
+    }
+
+    /**
+     * @param dictionary
+     */
+    public BitmapIdSet(final IdDictionary dictionary) {
+        this.dictionary = dictionary;
+        bitmap = new IdBitmap();
+    }
+
+    /**
+     * @param collection
+     */
+    public BitmapIdSet(final Collection<String> collection) {
+        this();
+        addAll(collection);
+    }
+
+    /**
+     *
+     * @return the dictionary of this set
+     */
+    public IdDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param c
+     * @return True if c is a BitmapIdSet sharing the same dictionary
+     */
+    private final boolean sameDictionary(final Collection<?> c) {
+        return c instanceof BitmapIdSet && ((BitmapIdSet) c).dictionary == dictionary;
+    }
+
+    /**
+     *
+     * @return the underlying bitmap of ordinals
+     */
+    public IdBitmap getBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public boolean add(final String id) {
+        return bitmap.add(dictionary.getOrdinal(id));
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o instanceof String && bitmap.contains(dictionary.findOrdinal((String) o));
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        return o instanceof String && bitmap.remove(dictionary.findOrdinal((String) o));
+    }
+
+    @Override
+    public int size() {
+        return bitmap.cardinality();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bitmap.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        bitmap = new IdBitmap();
+    }
+
+    @Override
+    public boolean addAll(final Collection<? extends String> c) {
+        if (sameDictionary(c)) {
+            final int size = size();
+            bitmap = bitmap.or(((BitmapIdSet) c).bitmap);
+            return size != size();
+        }
+        return super.addAll(c);
+    }
+
+    @Override
+    public boolean retainAll(final Collection<?> c) {
+        if (sameDictionary(c)) {
+            final int size = size();
+            bitmap = bitmap.and(((BitmapIdSet) c).bitmap);
+            return size != size();
+        }
+        return super.retainAll(c);
+    }
+
+    @Override
+    public boolean removeAll(final Collection<?> c) {
+        if (sameDictionary(c)) {
+            final int size = size();
+            bitmap = bitmap.andNot(((BitmapIdSet) c).bitmap);
+            return size != size();
+        }
+        return super.removeAll(c);
+    }
+
+    @Override
+    public boolean containsAll(final Collection<?> c) {
+        if (sameDictionary(c)) {
+            return ((BitmapIdSet) c).bitmap.andNot(bitmap).isEmpty();
+        }
+        return super.containsAll(c);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        final IdBitmap current = bitmap;
+        final IdBitmap.OrdinalIterator ordinals = current.iterator();
+        return new Iterator<String>() {
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return ordinals.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!ordinals.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = ordinals.next();
+                return dictionary.getId(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                current.remove(last);
+                last = -1;
+            }
+        };
+    }
+}
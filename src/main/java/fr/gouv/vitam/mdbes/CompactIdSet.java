@@ -0,0 +1,576 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import fr.gouv.vitam.utils.UUID;
+
+/**
+ * Compact Set of ids (UUID or path of UUIDs) stored as packed hexadecimal values in primitive arrays.<br>
+ * <br>
+ * Each entry is stored in a long pool as one header (number of hexadecimal digits and number of UUIDs) followed by
+ * the digits packed 16 per long, and is indexed by an open addressing hash table of offsets. Strings are only built
+ * when iterating. Ids that are not lowercase hexadecimal are kept in a standard HashSet.<br>
+ * A second table, built on first use of containsLast, indexes the same offsets by the hash of the last UUID. The pool
+ * is compacted when removed entries waste more than half of it.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class CompactIdSet extends AbstractSet<String> {
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private long[] pool;
+    private int poolSize = 0;
+    /**
+     * offset + 1 of the entry in the pool, or EMPTY or REMOVED
+     */
+    private int[] table;
+    /**
+     * offset + 1 of the entry in the pool by hash of its last UUID, or EMPTY or REMOVED (null until needed)
+     */
+    private int[] lastTable = null;
+    private int lastUsed = 0;
+    private int size = 0;
+    private int used = 0;
+    /**
+     * Number of longs of the pool used by removed entries
+     */
+    private int wasted = 0;
+    private Set<String> others = null;
+
+    /**
+     *
+     */
+    public CompactIdSet() {
+        this(16);
+    }
+
+    /**
+     * @param expected
+     *            the expected number of ids
+     */
+    public CompactIdSet(final int expected) {
+        int capacity = 16;
+        while (capacity * 3 < expected * 4) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        pool = new long[Math.max(16, expected * 3)];
+    }
+
+    /**
+     * @param collection
+     */
+    public CompactIdSet(final Collection<String> collection) {
+        this(collection.size());
+        addAll(collection);
+    }
+
+    /**
+     * @param id
+     * @return the packed form of this id (header followed by digits), or null if not compactable
+     */
+    private static long[] encode(final String id) {
+        final int len = id.length();
+        if (len == 0) {
+            return null;
+        }
+        final long[] packed = new long[1 + (len + 15) / 16];
+        for (int i = 0; i < len; i++) {
+            final char c = id.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return null;
+            }
+            packed[1 + i / 16] |= ((long) digit) << ((15 - i % 16) * 4);
+        }
+        final int nb = UUID.getUuidNb(id);
+        if (nb <= 0 || len % nb != 0) {
+            return null;
+        }
+        packed[0] = (((long) len) << 32) | nb;
+        return packed;
+    }
+
+    private static final int getDigits(final long header) {
+        return (int) (header >>> 32);
+    }
+
+    private static final int getNb(final long header) {
+        return (int) header;
+    }
+
+    private static final int getLength(final long header) {
+        return 1 + (getDigits(header) + 15) / 16;
+    }
+
+    private static final int hash(final long[] array, final int from, final int length) {
+        long h = 1;
+        for (int i = from; i < from + length; i++) {
+            h = h * 31 + array[i];
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static final int getDigit(final long[] array, final int offset, final int rank) {
+        return (int) (array[offset + 1 + rank / 16] >>> ((15 - rank % 16) * 4)) & 0xF;
+    }
+
+    /**
+     * @param array
+     * @param offset
+     *            offset of the header of the entry
+     * @return the hash of the last UUID of the entry, computed on its digits
+     */
+    private static final int lastHash(final long[] array, final int offset) {
+        final long header = array[offset];
+        final int digits = getDigits(header) / getNb(header);
+        final int from = getDigits(header) - digits;
+        long h = digits;
+        for (int i = from; i < from + digits; i++) {
+            h = h * 31 + getDigit(array, offset, i);
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * @param offset
+     * @param packed
+     *            a single UUID
+     * @return True if the last UUID of the entry at offset is this one
+     */
+    private final boolean lastEqualsAt(final int offset, final long[] packed) {
+        final long header = pool[offset];
+        final int digits = getDigits(header) / getNb(header);
+        if (digits != getDigits(packed[0])) {
+            return false;
+        }
+        final int from = getDigits(header) - digits;
+        for (int i = 0; i < digits; i++) {
+            if (getDigit(pool, offset, from + i) != getDigit(packed, 0, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final boolean equalsAt(final int offset, final long[] packed) {
+        for (int i = 0; i < packed.length; i++) {
+            if (pool[offset + i] != packed[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param packed
+     * @return the slot of this packed id, or -1 if not found
+     */
+    private final int find(final long[] packed) {
+        final int mask = table.length - 1;
+        int slot = hash(packed, 0, packed.length) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] != REMOVED) {
+                final int offset = table[slot] - 1;
+                if (pool[offset] == packed[0] && equalsAt(offset, packed)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuild the table with this capacity, compacting the pool (and dropping the last index)
+     *
+     * @param capacity
+     */
+    private final void rehash(final int capacity) {
+        final int[] oldTable = table;
+        final long[] oldPool = pool;
+        table = new int[capacity];
+        pool = new long[Math.max(16, poolSize - wasted)];
+        poolSize = 0;
+        used = 0;
+        wasted = 0;
+        lastTable = null;
+        lastUsed = 0;
+        for (final int entry : oldTable) {
+            if (entry > 0) {
+                final int offset = entry - 1;
+                insert(oldPool, offset, getLength(oldPool[offset]));
+            }
+        }
+    }
+
+    private final void insert(final long[] packed, final int from, final int length) {
+        if (poolSize + length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+        }
+        System.arraycopy(packed, from, pool, poolSize, length);
+        final int mask = table.length - 1;
+        int slot = hash(packed, from, length) & mask;
+        while (table[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (table[slot] == EMPTY) {
+            used++;
+        }
+        table[slot] = poolSize + 1;
+        if (lastTable != null) {
+            insertLast(poolSize);
+        }
+        poolSize += length;
+    }
+
+    /**
+     * Build the index by last UUID
+     */
+    private final void buildLastTable() {
+        int capacity = 16;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        lastTable = new int[capacity];
+        lastUsed = 0;
+        for (final int entry : table) {
+            if (entry > 0) {
+                insertLast(entry - 1);
+            }
+        }
+    }
+
+    private final void insertLast(final int offset) {
+        if ((lastUsed + 1) * 4 > lastTable.length * 3) {
+            // grow (dropping removed slots)
+            final int[] oldTable = lastTable;
+            int capacity = lastTable.length;
+            while ((size + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            lastTable = new int[capacity];
+            lastUsed = 0;
+            for (final int entry : oldTable) {
+                if (entry > 0) {
+                    insertLast(entry - 1);
+                }
+            }
+        }
+        final int mask = lastTable.length - 1;
+        int slot = lastHash(pool, offset) & mask;
+        while (lastTable[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (lastTable[slot] == EMPTY) {
+            lastUsed++;
+        }
+        lastTable[slot] = offset + 1;
+    }
+
+    /**
+     * Remove the entry at this slot of the table
+     *
+     * @param slot
+     */
+    private final void removeSlot(final int slot) {
+        final int offset = table[slot] - 1;
+        if (lastTable != null) {
+            final int mask = lastTable.length - 1;
+            int last = lastHash(pool, offset) & mask;
+            while (lastTable[last] != EMPTY) {
+                if (lastTable[last] == offset + 1) {
+                    lastTable[last] = REMOVED;
+                    break;
+                }
+                last = (last + 1) & mask;
+            }
+        }
+        table[slot] = REMOVED;
+        wasted += getLength(pool[offset]);
+        size--;
+    }
+
+    /**
+     * Compact the pool if removed entries use more than half of it
+     */
+    private final void compactIfNeeded() {
+        if (wasted > 16 && wasted * 2 > poolSize) {
+            rehash(table.length);
+        }
+    }
+
+    /**
+     * @param packed
+     * @return True if added
+     */
+    private final boolean addPacked(final long[] packed) {
+        if (find(packed) >= 0) {
+            return false;
+        }
+        compactIfNeeded();
+        if ((used + 1) * 4 > table.length * 3) {
+            int capacity = table.length;
+            while ((size + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            rehash(capacity);
+        }
+        insert(packed, 0, packed.length);
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean add(final String id) {
+        final long[] packed = encode(id);
+        if (packed == null) {
+            if (others == null) {
+                others = new HashSet<String>();
+            }
+            return others.add(id);
+        }
+        return addPacked(packed);
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        final long[] packed = encode((String) o);
+        if (packed == null) {
+            return others != null && others.contains(o);
+        }
+        return find(packed) >= 0;
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        final long[] packed = encode((String) o);
+        if (packed == null) {
+            return others != null && others.remove(o);
+        }
+        final int slot = find(packed);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        poolSize = 0;
+        size = 0;
+        used = 0;
+        wasted = 0;
+        lastTable = null;
+        lastUsed = 0;
+        others = null;
+    }
+
+    @Override
+    public int size() {
+        return size + (others == null ? 0 : others.size());
+    }
+
+    private final String decode(final int offset) {
+        final int digits = getDigits(pool[offset]);
+        final char[] chars = new char[digits];
+        for (int i = 0; i < digits; i++) {
+            chars[i] = HEX[(int) (pool[offset + 1 + i / 16] >>> ((15 - i % 16) * 4)) & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param offset
+     * @param last
+     *            True for the last UUID, else the first one
+     * @return the packed form of the first or last UUID of the entry
+     */
+    private final long[] extract(final int offset, final boolean last) {
+        final long header = pool[offset];
+        final int nb = getNb(header);
+        if (nb == 1) {
+            return Arrays.copyOfRange(pool, offset, offset + getLength(header));
+        }
+        final int digits = getDigits(header) / nb;
+        final int from = last ? getDigits(header) - digits : 0;
+        final long[] packed = new long[1 + (digits + 15) / 16];
+        packed[0] = (((long) digits) << 32) | 1;
+        for (int i = 0; i < digits; i++) {
+            final int j = from + i;
+            final long digit = (pool[offset + 1 + j / 16] >>> ((15 - j % 16) * 4)) & 0xF;
+            packed[1 + i / 16] |= digit << ((15 - i % 16) * 4);
+        }
+        return packed;
+    }
+
+    private final CompactIdSet extractSet(final boolean last) {
+        final CompactIdSet result = new CompactIdSet(size());
+        for (final int entry : table) {
+            if (entry > 0) {
+                result.addPacked(extract(entry - 1, last));
+            }
+        }
+        if (others != null) {
+            for (final String id : others) {
+                result.add(last ? UUID.getLastAsString(id) : UUID.getFirstAsString(id));
+            }
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return the set of last UUID of each path
+     */
+    public CompactIdSet lastIdSet() {
+        return extractSet(true);
+    }
+
+    /**
+     *
+     * @return the set of first UUID of each path
+     */
+    public CompactIdSet firstIdSet() {
+        return extractSet(false);
+    }
+
+    /**
+     * @param id
+     *            a single UUID
+     * @return True if one of the paths ends with this UUID
+     */
+    public boolean containsLast(final String id) {
+        final long[] packed = encode(id);
+        if (packed != null && getNb(packed[0]) == 1 && size > 0) {
+            if (lastTable == null) {
+                buildLastTable();
+            }
+            final int mask = lastTable.length - 1;
+            int slot = lastHash(packed, 0) & mask;
+            while (lastTable[slot] != EMPTY) {
+                if (lastTable[slot] != REMOVED && lastEqualsAt(lastTable[slot] - 1, packed)) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        if (others != null) {
+            for (final String other : others) {
+                if (UUID.getLastAsString(other).equals(id)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int slot = -1;
+            private int next = advance(0);
+            private Iterator<String> othersIterator = null;
+            private boolean fromOthers = false;
+
+            private int advance(final int from) {
+                int i = from;
+                while (i < table.length && table[i] <= 0) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (next < table.length) {
+                    return true;
+                }
+                if (othersIterator == null) {
+                    if (others == null) {
+                        return false;
+                    }
+                    othersIterator = others.iterator();
+                }
+                return othersIterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (next < table.length) {
+                    slot = next;
+                    fromOthers = false;
+                    next = advance(next + 1);
+                    return decode(table[slot] - 1);
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                slot = -1;
+                fromOthers = true;
+                return othersIterator.next();
+            }
+
+            @Override
+            public void remove() {
+                if (fromOthers) {
+                    othersIterator.remove();
+                    return;
+                }
+                if (slot < 0 || table[slot] <= 0) {
+                    throw new IllegalStateException();
+                }
+                // no compaction while iterating
+                removeSlot(slot);
+            }
+        };
+    }
+}
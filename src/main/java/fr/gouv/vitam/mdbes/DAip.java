@@ -25,6 +25,7 @@ import static fr.gouv.vitam.mdbes.MongoDbAccess.VitamCollections.Cdaip;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -33,13 +34,16 @@ import java.util.Map;
 import org.bson.BSONObject;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 
 import fr.gouv.vitam.mdbes.MongoDbAccess.VitamLinks;
+import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.utils.FileUtil;
-import fr.gouv.vitam.utils.UUID;
 import fr.gouv.vitam.utils.logging.VitamLogger;
 import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
 
@@ -54,6 +58,8 @@ public class DAip extends VitamType {
 
     private static final long serialVersionUID = -2179544540441187504L;
 
+    private static final int DUPLICATE_KEY = 11000;
+
     /**
      * DAIPDEPTHS : { UUID1 : depth2, UUID2 : depth2 }
      */
@@ -62,6 +68,24 @@ public class DAip extends VitamType {
      * DAIPPARENTS : [ UUID1, UUID2 ]
      */
     public static final String DAIPPARENTS = "_dps";
+    /**
+     * DAIPANCESTORS : [ { a : UUID1, d : depth1 }, { a : UUID2, d : depth2 } ] (indexed copy of DAIPDEPTHS)
+     */
+    public static final String DAIPANCESTORS = "_das";
+    /**
+     * Ancestor UUID within DAIPANCESTORS
+     */
+    public static final String ANCESTOR = "a";
+    /**
+     * Ancestor depth within DAIPANCESTORS
+     */
+    public static final String ANCESTORDEPTH = "d";
+    /**
+     * Root Domain of this DAip, used as routing key (ES) and shard key prefix (MongoDB).<br>
+     * Since a shard key and a routing key are single and immutable, when GlobalDatas.useDomainRouting is set a DAip
+     * must belong to one root Domain only: attaching it to a second root Domain is refused.
+     */
+    public static final String DAIPROOT = "_rdom";
     /**
      * Number of Immediate child (DAip)
      */
@@ -88,12 +112,75 @@ public class DAip extends VitamType {
         Cdaip.getCollection().update(new BasicDBObject(ID, getId()), update);
     }
 
+    /**
+     * @param domdepth
+     * @return the multikey indexable form of DAIPDEPTHS
+     */
+    public static List<DBObject> getAncestors(final Map<String, Integer> domdepth) {
+        final List<DBObject> ancestors = new ArrayList<>(domdepth.size());
+        for (final Map.Entry<String, Integer> entry : domdepth.entrySet()) {
+            ancestors.add(new BasicDBObject(ANCESTOR, entry.getKey()).append(ANCESTORDEPTH, entry.getValue()));
+        }
+        return ancestors;
+    }
+
+    /**
+     * @param domdepth
+     *            the DAIPDEPTHS map (could be null)
+     * @param domains
+     *            the immediate Domain parents (could be null)
+     * @return the root Domain or null if none is known
+     * @throws IllegalArgumentException
+     *             if the DAip belongs to several root Domains (not allowed with domain routing)
+     */
+    public static String getRootDomain(final Map<String, Integer> domdepth, final Collection<String> domains) {
+        String root = null;
+        if (domdepth != null) {
+            for (final String id : domdepth.keySet()) {
+                if (GlobalDatas.ROOTS.contains(id)) {
+                    root = checkSingleRoot(root, id);
+                }
+            }
+        }
+        if (root == null && domains != null) {
+            for (final String id : domains) {
+                root = checkSingleRoot(root, id);
+            }
+        }
+        return root;
+    }
+
+    private static final String checkSingleRoot(final String root, final String id) {
+        if (root != null && !root.equals(id)) {
+            throw new IllegalArgumentException("DAip cannot belong to several root Domains with domain routing: "
+                    + root + " and " + id);
+        }
+        return id;
+    }
+
+    @Override
+    public void putBeforeSave() {
+        final Map<String, Integer> domdepth = getDomDepth();
+        if (domdepth != null) {
+            put(DAIPANCESTORS, getAncestors(domdepth));
+        }
+        if (GlobalDatas.useDomainRouting && !containsField(DAIPROOT)) {
+            final String root = getRootDomain(domdepth, getFathersDomaineDBRef(false));
+            if (root != null) {
+                put(DAIPROOT, root);
+            }
+        }
+    }
+
     @Override
     protected boolean updated(final MongoDbAccess dbvitam) {
         final DAip vt = (DAip) dbvitam.daips.collection.findOne(getString(ID));
         BasicDBObject update = null;
         if (vt != null) {
             LOGGER.debug("UpdateLinks: {}\n\t{}", this, vt);
+            if (GlobalDatas.useDomainRouting && vt.containsField(DAIPROOT) && containsField(DAIPROOT)) {
+                checkSingleRoot(vt.getString(DAIPROOT), getString(DAIPROOT));
+            }
             final List<DBObject> list = new ArrayList<>();
             final List<DBObject> listset = new ArrayList<>();
             /*
@@ -160,6 +247,8 @@ public class DAip extends VitamType {
             if (!vtDomaineLevels.isEmpty()) {
                 upd = new BasicDBObject(DAIPDEPTHS, vtDomaineLevels);
                 listset.add(upd);
+                // domainelevels contains now the merged depths
+                listset.add(new BasicDBObject(DAIPANCESTORS, getAncestors(domainelevels)));
             }
             try {
                 update = new BasicDBObject();
@@ -244,6 +333,179 @@ public class DAip extends VitamType {
         updateOrSave(dbvitam.daips);
     }
 
+    /**
+     * Save a batch of DAip without reading them first: one unordered bulk of upserts where
+     * links (_up, _doms) and ancestors (_das) are merged with $addToSet, depths (_dds) with $min per key,
+     * _nb with $inc, and other fields are only set on insert.<br>
+     * Note that local objects are not refreshed with the remote values.<br>
+     * With domain routing, the upsert query includes the root Domain: a DAip already saved under another
+     * root Domain makes the upsert fail on the duplicate _id.
+     *
+     * @param dbvitam
+     * @param daips
+     * @throws IllegalArgumentException
+     *             if a DAip would be attached to a second root Domain
+     */
+    public static void bulkSave(final MongoDbAccess dbvitam, final Collection<DAip> daips) {
+        if (daips.isEmpty()) {
+            return;
+        }
+        final BulkWriteOperation bulk = dbvitam.daips.collection.initializeUnorderedBulkOperation();
+        for (final DAip daip : daips) {
+            daip.putBeforeSave();
+            if (daip.getId() == null) {
+                daip.setNewId();
+            }
+            final BasicDBObject query = new BasicDBObject(ID, daip.getId());
+            if (daip.containsField(DAIPROOT)) {
+                // full shard key needed for upsert
+                query.append(DAIPROOT, daip.get(DAIPROOT));
+            }
+            bulk.find(query).upsert().updateOne(daip.getBulkUpsert());
+        }
+        try {
+            bulk.execute();
+        } catch (final BulkWriteException e) {
+            LOGGER.error("Exception for bulk save of " + daips.size() + " DAip", e);
+            if (GlobalDatas.useDomainRouting) {
+                for (final BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() == DUPLICATE_KEY) {
+                        throw new IllegalArgumentException(
+                                "DAip cannot belong to several root Domains with domain routing: " + error.getMessage(), e);
+                    }
+                }
+            }
+            throw e;
+        } catch (final MongoException e) {
+            LOGGER.error("Exception for bulk save of " + daips.size() + " DAip", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuild DAIPANCESTORS from the remote DAIPDEPTHS (merged with $min), so that only the min depth per ancestor is
+     * kept (used to backfill or compact DAIPANCESTORS, bulkSave only adding pairs). Each update is conditioned on
+     * DAIPDEPTHS being unchanged since read, a concurrent writer doing its own.
+     *
+     * @param dbvitam
+     * @param condition
+     *            the DAip to update
+     * @return the number of DAip updated
+     */
+    protected static int updateAncestors(final MongoDbAccess dbvitam, final BasicDBObject condition) {
+        final DBCursor cursor = dbvitam.daips.collection.find(condition,
+                new BasicDBObject(DAIPDEPTHS, 1).append(DAIPROOT, 1));
+        BulkWriteOperation bulk = dbvitam.daips.collection.initializeUnorderedBulkOperation();
+        int nb = 0;
+        int total = 0;
+        try {
+            while (cursor.hasNext()) {
+                final DBObject obj = cursor.next();
+                final Object depths = obj.get(DAIPDEPTHS);
+                if (!(depths instanceof BSONObject)) {
+                    continue;
+                }
+                final BSONObject bson = (BSONObject) depths;
+                final Map<String, Integer> domdepth = new HashMap<String, Integer>();
+                for (final String key : bson.keySet()) {
+                    domdepth.put(key, ((Number) bson.get(key)).intValue());
+                }
+                final BasicDBObject query = new BasicDBObject(ID, obj.get(ID));
+                if (obj.containsField(DAIPROOT)) {
+                    query.append(DAIPROOT, obj.get(DAIPROOT));
+                }
+                query.append(DAIPDEPTHS, depths);
+                bulk.find(query).updateOne(new BasicDBObject("$set", new BasicDBObject(DAIPANCESTORS,
+                        getAncestors(domdepth))));
+                nb++;
+                if (nb >= GlobalDatas.LIMIT_MDB_NEW_INDEX) {
+                    executeAncestors(bulk, nb);
+                    total += nb;
+                    nb = 0;
+                    bulk = dbvitam.daips.collection.initializeUnorderedBulkOperation();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (nb > 0) {
+            executeAncestors(bulk, nb);
+            total += nb;
+        }
+        return total;
+    }
+
+    private static final void executeAncestors(final BulkWriteOperation bulk, final int nb) {
+        try {
+            bulk.execute();
+        } catch (final MongoException e) {
+            LOGGER.error("Exception for ancestors update of " + nb + " DAip", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Backfill DAIPANCESTORS on DAip saved before it exists (to be done once before setting GlobalDatas.useMdDepth)
+     *
+     * @param dbvitam
+     * @return the number of DAip updated
+     */
+    public static int backfillAncestors(final MongoDbAccess dbvitam) {
+        return updateAncestors(dbvitam, new BasicDBObject(DAIPANCESTORS, new BasicDBObject("$exists", false))
+                .append(DAIPDEPTHS, new BasicDBObject("$exists", true)));
+    }
+
+    /**
+     *
+     * @return the upsert order merging this DAip server side
+     */
+    protected final BasicDBObject getBulkUpsert() {
+        final BasicDBObject addToSet = new BasicDBObject();
+        final BasicDBObject set = new BasicDBObject();
+        final BasicDBObject min = new BasicDBObject();
+        final BasicDBObject insert = new BasicDBObject();
+        for (final String key : keySet()) {
+            final Object value = get(key);
+            if (key.equals(ID) || key.equals(NBCHILD) || key.equals(DAIPROOT)) {
+                continue;
+            } else if (key.equals(DAIPANCESTORS)) {
+                // merged as pairs: a duplicate ancestor with a deeper depth is harmless ($elemMatch with $lte)
+                if (value instanceof Collection && !((Collection<?>) value).isEmpty()) {
+                    addToSet.append(key, new BasicDBObject("$each", value));
+                }
+            } else if (key.equals(VitamLinks.DAip2DAip.field2to1) || key.equals(VitamLinks.Domain2DAip.field2to1)) {
+                if (value instanceof Collection && !((Collection<?>) value).isEmpty()) {
+                    addToSet.append(key, new BasicDBObject("$each", value));
+                }
+            } else if (key.equals(DAIPDEPTHS)) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Integer> domdepth = (Map<String, Integer>) value;
+                for (final Map.Entry<String, Integer> entry : domdepth.entrySet()) {
+                    min.append(DAIPDEPTHS + "." + entry.getKey(), entry.getValue());
+                }
+            } else if (key.equals(VitamLinks.DAip2PAip.field1to2) || key.equals(VitamLinks.DAip2Dua.field1to2)) {
+                set.append(key, value);
+            } else {
+                insert.append(key, value);
+            }
+        }
+        final BasicDBObject update = new BasicDBObject("$inc", new BasicDBObject(NBCHILD, nb));
+        nb = 0;
+        if (!addToSet.isEmpty()) {
+            update.append("$addToSet", addToSet);
+        }
+        if (!set.isEmpty()) {
+            update.append("$set", set);
+        }
+        if (!min.isEmpty()) {
+            update.append("$min", min);
+        }
+        if (!insert.isEmpty()) {
+            update.append("$setOnInsert", insert);
+        }
+        return update;
+    }
+
     /**
      * Used in ingest (get the next dds including itself with depth +1 for all)
      *
@@ -394,6 +656,14 @@ public class DAip extends VitamType {
         }
     }
 
+    /**
+     * @param dbvitam
+     * @return the associated DUA reference (copy from the reference cache) or null
+     */
+    public DuaRef getDuaRef(final MongoDbAccess dbvitam) {
+        return ReferenceCache.getDuaRef(dbvitam, getDuaRefDBRef(false));
+    }
+
     /**
      * Add the link 1-N between DAip and PAip
      *
@@ -420,6 +690,14 @@ public class DAip extends VitamType {
         }
     }
 
+    /**
+     * @param dbvitam
+     * @return the associated PAip storage policy (without its DAip links) or null
+     */
+    public PAip getPAipPolicy(final MongoDbAccess dbvitam) {
+        return PAip.findOnePolicy(dbvitam, getPAipDBRef(false));
+    }
+
     /**
      * Check if the current DAip has path as immediate parent (either being a DAip or a Domain)
      *
@@ -427,20 +705,7 @@ public class DAip extends VitamType {
      * @return True if immediate parent, else False (however could be a grand parent)
      */
     public boolean isImmediateParent(final String path) {
-        final String lastp = UUID.getLastAsString(path);
-        List<String> immediateParents = getFathersDomaineDBRef(false);
-        if (immediateParents != null && !immediateParents.isEmpty()) {
-            if (immediateParents.contains(lastp)) {
-                return true;
-            }
-        }
-        immediateParents = getFathersDAipDBRef(false);
-        if (immediateParents != null && !immediateParents.isEmpty()) {
-            if (immediateParents.contains(lastp)) {
-                return true;
-            }
-        }
-        return false;
+        return new DAipStructure(this).isImmediateParent(path);
     }
 
     /**
@@ -454,60 +719,8 @@ public class DAip extends VitamType {
      */
     public List<String> getPathesToParent(final MongoDbAccess dbvitam, final String path) throws InstantiationException,
     IllegalAccessException {
-        final List<String> pathes = new ArrayList<>();
-        if (isImmediateParent(path)) {
-            pathes.add("");
-            return pathes;
-        }
-        final String lastp = UUID.getLastAsString(path);
-        final List<String> result = new ArrayList<>();
-        List<String> subpath = new ArrayList<>();
-        subpath.add("");
-        getSubPathesToParent(dbvitam, lastp, this, result, subpath);
-        subpath.clear();
-        subpath = null;
-        return result;
-    }
-
-    /**
-     * Compute all possible path from current to target (being Domaine or DAip)
-     *
-     * @param dbvitam
-     * @param target
-     * @param current
-     * @param pathResults
-     *            final list containing all valid pathes (excluding target and current as implicit first and very last)
-     * @param subpathesCurrent
-     *            list of intermediary pathes from very first current (not included)
-     * @throws InstantiationException
-     * @throws IllegalAccessException
-     */
-    private static void getSubPathesToParent(final MongoDbAccess dbvitam, final String target, final DAip current,
-            final List<String> pathResults, final List<String> subpathesCurrent) throws InstantiationException,
-            IllegalAccessException {
-        final List<String> immediateParents = current.getFathersDAipDBRef(false);
-        List<String> newSubpathes = new ArrayList<>();
-        for (final String immediateParent : immediateParents) {
-            final DAip parent = DAip.findOne(dbvitam, immediateParent);
-            if (parent == null) {
-                continue;
-            }
-            if (parent.isImmediateParent(target)) {
-                // End of search for this parent: target/parent/current are directly attached
-                for (final String subpath : subpathesCurrent) {
-                    pathResults.add(immediateParent + subpath);
-                }
-            } else if (parent.getDomDepth().containsKey(target)) {
-                // Still in path: current becomes immediateParent and subpathesCurrent to new Subpathes
-                for (final String subpath : subpathesCurrent) {
-                    newSubpathes.add(immediateParent + subpath);
-                }
-                getSubPathesToParent(dbvitam, target, parent, pathResults, newSubpathes);
-                newSubpathes.clear();
-            }
-            // Else not in the path so ignore this parent
-        }
-        newSubpathes = null;
+        // parents are read through their structural view only
+        return new DAipStructure(this).getPathesToParent(dbvitam, path);
     }
 
     /**
@@ -527,6 +740,7 @@ public class DAip extends VitamType {
         removeField("_refid");
         if (all) {
             removeField(DAIPDEPTHS);
+            removeField(DAIPANCESTORS);
             removeField(NBCHILD);
         }
     }
@@ -587,6 +801,14 @@ public class DAip extends VitamType {
         return (DAip) dbvitam.findOne(Cdaip, refid);
     }
 
+    /**
+     *
+     * @return the index definition on DAIPANCESTORS
+     */
+    protected static BasicDBObject getAncestorsIndex() {
+        return new BasicDBObject(DAIPANCESTORS + "." + ANCESTOR, 1).append(DAIPANCESTORS + "." + ANCESTORDEPTH, 1);
+    }
+
     protected static void addIndexes(final MongoDbAccess dbvitam) {
         dbvitam.daips.collection.createIndex(new BasicDBObject(MongoDbAccess.VitamLinks.Domain2DAip.field2to1, 1));
         // if not set, MAIP and Tree are worst
@@ -595,8 +817,8 @@ public class DAip extends VitamType {
         dbvitam.daips.collection.createIndex(new BasicDBObject(MongoDbAccess.VitamLinks.DAip2PAip.field1to2, 1));
         dbvitam.daips.collection.createIndex(new BasicDBObject(MongoDbAccess.VitamLinks.DAip2Dua.field1to2, 1));
 
-        // does not improve anything
-        dbvitam.daips.collection.createIndex(new BasicDBObject(DAIPDEPTHS, 1));
+        // multikey index on ancestors (a map as DAIPDEPTHS cannot be indexed usefully)
+        dbvitam.daips.collection.createIndex(getAncestorsIndex());
         // Depth requests are Worst if set
         // dbvitam.metaaips.collection.createIndex(indexDomDepth);
         // dbvitam.metaaips.collection.createIndex(indexDom);
@@ -0,0 +1,281 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.LazyDBDecoder;
+
+import fr.gouv.vitam.mdbes.MongoDbAccess.VitamLinks;
+import fr.gouv.vitam.utils.UUID;
+
+/**
+ * Structural only view of a DAip (_id, _nb, _dds, _up, _doms) used by engine internal reads.<br>
+ * Documents are read with a projection and a lazy decoder, so that only the fields really
+ * accessed are decoded from the raw BSON, and only once.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class DAipStructure {
+    /**
+     * Projection for structural reads
+     */
+    public static final BasicDBObject FIELDS = new BasicDBObject(VitamType.ID, 1).append(DAip.NBCHILD, 1)
+            .append(DAip.DAIPDEPTHS, 1).append(VitamLinks.DAip2DAip.field2to1, 1)
+            .append(VitamLinks.Domain2DAip.field2to1, 1);
+
+    private final BSONObject raw;
+    private Map<String, Integer> domdepth;
+    private Set<String> fathersDAip;
+    private Set<String> fathersDomain;
+
+    /**
+     * @param raw
+     *            the (lazy) BSON object, or an already loaded DAip
+     */
+    public DAipStructure(final BSONObject raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * @param dbvitam
+     * @param id
+     * @return the structure of this DAip or null if not found
+     */
+    public static DAipStructure findOne(final MongoDbAccess dbvitam, final String id) {
+        if (id == null || id.length() == 0) {
+            return null;
+        }
+        final DBCursor cursor = dbvitam.daips.collection.find(new BasicDBObject(VitamType.ID, id), FIELDS)
+                .setDecoderFactory(LazyDBDecoder.FACTORY).limit(1);
+        try {
+            if (cursor.hasNext()) {
+                return new DAipStructure(cursor.next());
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param dbvitam
+     * @param ids
+     * @return the map of structures of found DAip (one request for all ids)
+     */
+    public static Map<String, DAipStructure> find(final MongoDbAccess dbvitam, final Collection<String> ids) {
+        final Map<String, DAipStructure> map = new HashMap<String, DAipStructure>();
+        if (ids.isEmpty()) {
+            return map;
+        }
+        final DBCursor cursor = dbvitam.daips.collection.find(
+                new BasicDBObject(VitamType.ID, new BasicDBObject("$in", ids)), FIELDS);
+        cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+        try {
+            while (cursor.hasNext()) {
+                final DAipStructure structure = new DAipStructure(cursor.next());
+                map.put(structure.getId(), structure);
+            }
+        } finally {
+            cursor.close();
+        }
+        return map;
+    }
+
+    /**
+     * Set the lazy decoder on a cursor whose projection includes the structural fields
+     *
+     * @param cursor
+     * @return the same cursor
+     */
+    public static DBCursor setLazy(final DBCursor cursor) {
+        return cursor.setDecoderFactory(LazyDBDecoder.FACTORY);
+    }
+
+    /**
+     *
+     * @return the ID
+     */
+    public String getId() {
+        return (String) raw.get(VitamType.ID);
+    }
+
+    /**
+     *
+     * @return the number of immediate children
+     */
+    public long getNb() {
+        final Object nb = raw.get(DAip.NBCHILD);
+        if (nb instanceof Number) {
+            return ((Number) nb).longValue();
+        }
+        return 0;
+    }
+
+    /**
+     *
+     * @return the map of dds with depth (decoded once)
+     */
+    public Map<String, Integer> getDomDepth() {
+        if (domdepth == null) {
+            final Object value = raw.get(DAip.DAIPDEPTHS);
+            if (value instanceof BSONObject) {
+                final BSONObject bson = (BSONObject) value;
+                domdepth = new HashMap<String, Integer>();
+                for (final String key : bson.keySet()) {
+                    domdepth.put(key, ((Number) bson.get(key)).intValue());
+                }
+            } else if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Integer> map = (Map<String, Integer>) value;
+                domdepth = map;
+            } else {
+                domdepth = Collections.emptyMap();
+            }
+        }
+        return domdepth;
+    }
+
+    /**
+     *
+     * @return the max depth of this node from existing parents
+     */
+    public int getMaxDepth() {
+        int depth = 0;
+        for (final Integer value : getDomDepth().values()) {
+            if (depth < value) {
+                depth = value;
+            }
+        }
+        return depth + 1;
+    }
+
+    private static Set<String> getSet(final Object value) {
+        if (value instanceof Iterable) {
+            final Set<String> set = new HashSet<String>();
+            for (final Object object : (Iterable<?>) value) {
+                set.add((String) object);
+            }
+            return set;
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     *
+     * @return the set of UUID of DAIP parents (immediate)
+     */
+    public Set<String> getFathersDAipDBRef() {
+        if (fathersDAip == null) {
+            fathersDAip = getSet(raw.get(VitamLinks.DAip2DAip.field2to1));
+        }
+        return fathersDAip;
+    }
+
+    /**
+     *
+     * @return the set of UUID of DOMAIN parents (immediate)
+     */
+    public Set<String> getFathersDomaineDBRef() {
+        if (fathersDomain == null) {
+            fathersDomain = getSet(raw.get(VitamLinks.Domain2DAip.field2to1));
+        }
+        return fathersDomain;
+    }
+
+    /**
+     * Check if the current DAip has path as immediate parent (either being a DAip or a Domain)
+     *
+     * @param path
+     * @return True if immediate parent, else False (however could be a grand parent)
+     */
+    public boolean isImmediateParent(final String path) {
+        final String lastp = UUID.getLastAsString(path);
+        return getFathersDomaineDBRef().contains(lastp) || getFathersDAipDBRef().contains(lastp);
+    }
+
+    /**
+     *
+     * @param dbvitam
+     * @param path
+     * @return the list of valid pathes (potentially empty) from this DAip to path, final path not containing neither path,
+     *         neither this DAip
+     */
+    public List<String> getPathesToParent(final MongoDbAccess dbvitam, final String path) {
+        final List<String> result = new ArrayList<String>();
+        if (isImmediateParent(path)) {
+            result.add("");
+            return result;
+        }
+        final String lastp = UUID.getLastAsString(path);
+        final List<String> subpath = new ArrayList<String>();
+        subpath.add("");
+        getSubPathesToParent(dbvitam, lastp, this, result, subpath);
+        return result;
+    }
+
+    /**
+     * Compute all possible path from current to target (being Domaine or DAip)
+     *
+     * @param dbvitam
+     * @param target
+     * @param current
+     * @param pathResults
+     *            final list containing all valid pathes (excluding target and current as implicit first and very last)
+     * @param subpathesCurrent
+     *            list of intermediary pathes from very first current (not included)
+     */
+    private static void getSubPathesToParent(final MongoDbAccess dbvitam, final String target, final DAipStructure current,
+            final List<String> pathResults, final List<String> subpathesCurrent) {
+        // one request for all immediate parents
+        final Map<String, DAipStructure> parents = find(dbvitam, current.getFathersDAipDBRef());
+        final List<String> newSubpathes = new ArrayList<String>();
+        for (final DAipStructure parent : parents.values()) {
+            final String immediateParent = parent.getId();
+            if (parent.isImmediateParent(target)) {
+                // End of search for this parent: target/parent/current are directly attached
+                for (final String subpath : subpathesCurrent) {
+                    pathResults.add(immediateParent + subpath);
+                }
+            } else if (parent.getDomDepth().containsKey(target)) {
+                // Still in path: current becomes immediateParent and subpathesCurrent to new Subpathes
+                for (final String subpath : subpathesCurrent) {
+                    newSubpathes.add(immediateParent + subpath);
+                }
+                getSubPathesToParent(dbvitam, target, parent, pathResults, newSubpathes);
+                newSubpathes.clear();
+            }
+            // Else not in the path so ignore this parent
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogram;
+import org.elasticsearch.search.aggregations.bucket.range.RangeBuilder;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import fr.gouv.vitam.query.parser.ParserTokens;
+
+/**
+ * Aggregation (buckets of counts) to compute over the final result of a request.<br>
+ * <br>
+ * Supported: terms (most frequent values of a field), range (numeric ranges of a field) and date histogram (by year,
+ * month, day or hour). Buckets keys are the same whatever the backend (ElasticSearch or MongoDB).
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbAggregation {
+    /**
+     * Name of the aggregation in ElasticSearch
+     */
+    protected static final String NAME = "vitamagg";
+    private static final String COUNT = "count";
+
+    /**
+     * Type of aggregation
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    public static enum AGGTYPE {
+        /**
+         * Count by value of field
+         */
+        terms,
+        /**
+         * Count by range of field
+         */
+        range,
+        /**
+         * Count by date interval of field
+         */
+        date_histogram
+    }
+
+    /**
+     * Date histogram intervals
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    public static enum INTERVAL {
+        /**
+         * By year
+         */
+        year("yyyy", DateHistogram.Interval.YEAR),
+        /**
+         * By month
+         */
+        month("yyyy-MM", DateHistogram.Interval.MONTH),
+        /**
+         * By day
+         */
+        day("yyyy-MM-dd", DateHistogram.Interval.DAY),
+        /**
+         * By hour
+         */
+        hour("yyyy-MM-dd'T'HH", DateHistogram.Interval.HOUR);
+
+        protected final String format;
+        protected final DateHistogram.Interval esInterval;
+
+        private INTERVAL(final String format, final DateHistogram.Interval esInterval) {
+            this.format = format;
+            this.esInterval = esInterval;
+        }
+    }
+
+    private final AGGTYPE type;
+    private final String field;
+    private int size = 10;
+    private INTERVAL interval;
+    private final List<String> keys = new ArrayList<String>();
+    private final List<Double> froms = new ArrayList<Double>();
+    private final List<Double> tos = new ArrayList<Double>();
+
+    private DbAggregation(final AGGTYPE type, final String field) {
+        this.type = type;
+        this.field = field;
+    }
+
+    /**
+     * @param field
+     * @param size
+     *            max number of buckets (most frequent values first)
+     * @return a terms aggregation
+     */
+    public static DbAggregation terms(final String field, final int size) {
+        final DbAggregation aggregation = new DbAggregation(AGGTYPE.terms, field);
+        aggregation.size = size;
+        return aggregation;
+    }
+
+    /**
+     * Ranges are to be added using addRange
+     *
+     * @param field
+     * @return a range aggregation
+     */
+    public static DbAggregation range(final String field) {
+        return new DbAggregation(AGGTYPE.range, field);
+    }
+
+    /**
+     * @param field
+     * @param interval
+     * @return a date histogram aggregation
+     */
+    public static DbAggregation dateHistogram(final String field, final INTERVAL interval) {
+        final DbAggregation aggregation = new DbAggregation(AGGTYPE.date_histogram, field);
+        aggregation.interval = interval;
+        return aggregation;
+    }
+
+    /**
+     * Add a range [from, to[ to a range aggregation
+     *
+     * @param key
+     *            the bucket key
+     * @param from
+     *            lower bound included (null for unbounded)
+     * @param to
+     *            upper bound excluded (null for unbounded)
+     * @return this
+     */
+    public DbAggregation addRange(final String key, final Double from, final Double to) {
+        keys.add(key);
+        froms.add(from);
+        tos.add(to);
+        return this;
+    }
+
+    /**
+     * @return the type
+     */
+    public AGGTYPE getType() {
+        return type;
+    }
+
+    /**
+     * @return the field
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     *
+     * @return the ElasticSearch aggregation
+     */
+    protected AbstractAggregationBuilder getEsAggregation() {
+        switch (type) {
+            case terms:
+                return AggregationBuilders.terms(NAME).field(field).size(size);
+            case range:
+                final RangeBuilder range = AggregationBuilders.range(NAME).field(field);
+                for (int i = 0; i < keys.size(); i++) {
+                    final Double from = froms.get(i);
+                    final Double to = tos.get(i);
+                    if (from == null) {
+                        range.addUnboundedTo(keys.get(i), to);
+                    } else if (to == null) {
+                        range.addUnboundedFrom(keys.get(i), from);
+                    } else {
+                        range.addRange(keys.get(i), from, to);
+                    }
+                }
+                return range;
+            case date_histogram:
+                return AggregationBuilders.dateHistogram(NAME).field(getEsDateField()).interval(interval.esInterval)
+                        .format(interval.format).minDocCount(1);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param aggregation
+     *            the ElasticSearch result of this aggregation
+     * @return the buckets (key, count)
+     */
+    protected Map<String, Long> getBuckets(final MultiBucketsAggregation aggregation) {
+        final Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+        if (aggregation == null) {
+            return buckets;
+        }
+        for (final MultiBucketsAggregation.Bucket bucket : aggregation.getBuckets()) {
+            buckets.put(bucket.getKey(), bucket.getDocCount());
+        }
+        return buckets;
+    }
+
+    /**
+     *
+     * @return the ElasticSearch field of the date: dates are indexed as { "$date" : value }, not as field itself
+     */
+    protected final String getEsDateField() {
+        return field + "." + ParserTokens.REQUESTARGS.date.exactToken();
+    }
+
+    private final String getMongoField() {
+        return "$" + field;
+    }
+
+    /**
+     *
+     * @param match
+     *            the condition on the documents to aggregate
+     * @return the MongoDB aggregation pipeline
+     */
+    protected List<DBObject> getMongoPipeline(final DBObject match) {
+        final List<DBObject> pipeline = new ArrayList<DBObject>();
+        pipeline.add(new BasicDBObject("$match", match));
+        switch (type) {
+            case terms:
+                // one value per array element and no bucket for missing or null values, as in ElasticSearch
+                pipeline.add(new BasicDBObject("$unwind", getMongoField()));
+                pipeline.add(new BasicDBObject("$match", new BasicDBObject(field, new BasicDBObject("$ne", null))));
+                pipeline.add(new BasicDBObject("$group", new BasicDBObject(VitamType.ID, getMongoField())
+                        .append(COUNT, new BasicDBObject("$sum", 1))));
+                pipeline.add(new BasicDBObject("$sort", new BasicDBObject(COUNT, -1)));
+                pipeline.add(new BasicDBObject("$limit", size));
+                break;
+            case range:
+                // one counter per range since ranges could overlap
+                final BasicDBObject group = new BasicDBObject(VitamType.ID, null);
+                for (int i = 0; i < keys.size(); i++) {
+                    // infinite bounds exclude missing and non numeric values, as in ElasticSearch
+                    final Double from = froms.get(i) == null ? Double.NEGATIVE_INFINITY : froms.get(i);
+                    final Double to = tos.get(i) == null ? Double.POSITIVE_INFINITY : tos.get(i);
+                    final BasicDBList and = new BasicDBList();
+                    and.add(new BasicDBObject("$gte", new Object[] { getMongoField(), from }));
+                    and.add(new BasicDBObject("$lt", new Object[] { getMongoField(), to }));
+                    final Object[] cond = new Object[] { new BasicDBObject("$and", and), 1, 0 };
+                    group.append(COUNT + i, new BasicDBObject("$sum", new BasicDBObject("$cond", cond)));
+                }
+                pipeline.add(new BasicDBObject("$group", group));
+                break;
+            case date_histogram:
+                final BasicDBObject key = new BasicDBObject("y", new BasicDBObject("$year", getMongoField()));
+                if (interval.ordinal() >= INTERVAL.month.ordinal()) {
+                    key.append("m", new BasicDBObject("$month", getMongoField()));
+                }
+                if (interval.ordinal() >= INTERVAL.day.ordinal()) {
+                    key.append("d", new BasicDBObject("$dayOfMonth", getMongoField()));
+                }
+                if (interval.ordinal() >= INTERVAL.hour.ordinal()) {
+                    key.append("h", new BasicDBObject("$hour", getMongoField()));
+                }
+                // only dates (as in ElasticSearch)
+                pipeline.add(new BasicDBObject("$match", new BasicDBObject(field, new BasicDBObject("$type", 9))));
+                pipeline.add(new BasicDBObject("$group", new BasicDBObject(VitamType.ID, key)
+                        .append(COUNT, new BasicDBObject("$sum", 1))));
+                pipeline.add(new BasicDBObject("$sort", new BasicDBObject(VitamType.ID, 1)));
+                break;
+            default:
+                break;
+        }
+        return pipeline;
+    }
+
+    /**
+     * @param results
+     *            the MongoDB result of the pipeline
+     * @return the buckets (key, count)
+     */
+    protected Map<String, Long> getBuckets(final Iterable<DBObject> results) {
+        final Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+        for (final DBObject result : results) {
+            switch (type) {
+                case terms:
+                    buckets.put(result.get(VitamType.ID).toString(), ((Number) result.get(COUNT)).longValue());
+                    break;
+                case range:
+                    for (int i = 0; i < keys.size(); i++) {
+                        final Number count = (Number) result.get(COUNT + i);
+                        buckets.put(keys.get(i), count == null ? 0 : count.longValue());
+                    }
+                    break;
+                case date_histogram:
+                    final DBObject key = (DBObject) result.get(VitamType.ID);
+                    final StringBuilder builder = new StringBuilder(String.format("%04d", key.get("y")));
+                    if (key.containsField("m")) {
+                        builder.append(String.format("-%02d", key.get("m")));
+                    }
+                    if (key.containsField("d")) {
+                        builder.append(String.format("-%02d", key.get("d")));
+                    }
+                    if (key.containsField("h")) {
+                        builder.append(String.format("T%02d", key.get("h")));
+                    }
+                    buckets.put(builder.toString(), ((Number) result.get(COUNT)).longValue());
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (type == AGGTYPE.range && buckets.isEmpty()) {
+            for (final String key : keys) {
+                buckets.put(key, 0L);
+            }
+        }
+        return buckets;
+    }
+
+    @Override
+    public String toString() {
+        return type + ":" + field + (type == AGGTYPE.terms ? ":" + size : "")
+                + (type == AGGTYPE.range ? ":" + keys : "") + (interval != null ? ":" + interval : "");
+    }
+}
@@ -39,12 +39,14 @@ import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.util.JSON;
 
+import fr.gouv.vitam.mdbes.MongoDbAccess.VitamCollections;
 import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.query.exception.InvalidExecOperationException;
 import fr.gouv.vitam.query.parser.AbstractQueryParser;
 import fr.gouv.vitam.query.parser.ParserTokens.REQUEST;
 import fr.gouv.vitam.query.parser.TypeRequest;
 import fr.gouv.vitam.utils.UUID;
+import fr.gouv.vitam.utils.exception.InvalidParseOperationException;
 import fr.gouv.vitam.utils.exception.InvalidUuidOperationException;
 import fr.gouv.vitam.utils.logging.VitamLogger;
 import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
@@ -170,9 +172,25 @@ public class DbRequest {
      */
     public List<ResultInterface> execQuery(final AbstractQueryParser query, final ResultInterface startSet)
             throws InstantiationException, IllegalAccessException, InvalidExecOperationException {
+        if (!GlobalDatas.useBitmapIdSet) {
+            return execQueryInScope(query, startSet);
+        }
+        // one node ids dictionary for the whole request
+        final IdDictionary previous = IdDictionary.bind(IdDictionary.getNode());
+        try {
+            return execQueryInScope(query, startSet);
+        } finally {
+            IdDictionary.bind(previous);
+        }
+    }
+
+    private List<ResultInterface> execQueryInScope(final AbstractQueryParser query, final ResultInterface startSet)
+            throws InstantiationException, IllegalAccessException, InvalidExecOperationException {
         boolean useCache = false;
         useCache = defaultUseCache || query.hintCache();
         final List<ResultInterface> list = new ArrayList<ResultInterface>(query.getRequests().size() + 1);
+        // root Domains targeted by this query (null means all)
+        final String[] routing = computeRouting(startSet);
         // Init the list with startSet
         ResultInterface result = MongoDbAccess.createOneResult();
         result.putFrom(startSet);
@@ -203,18 +221,21 @@ public class DbRequest {
             LOGGER.warn("Start Request from level: "+lastCacheRank+":"+list.size()+"\n\tStartup: "+result);
         }
         lastCacheRankUsed = lastCacheRank;
+        // all newly executed levels, saved at once at the end
+        final List<ResultInterface> toSave = new ArrayList<ResultInterface>(query.getRequests().size());
         if (lastCacheRank == -1) {
             // Execute first one with StartSet
             final TypeRequest request = query.getRequests().get(0);
-            result = executeRequest(request, result, true);
+            result = executeRequest(request, result, true, routing);
             lastRealExecutedQueryCount++;
             lastCacheRank++;
             computeKey(curId, query.getSources().get(0));
             result.setId(mdAccess, curId.toString());
+            mdAccess.forgetStoredSet(result);
             list.add(result);
             if (useCache && !result.isLoaded()) {
                 // Since not loaded means really executed and therefore to be saved
-                result.save(mdAccess);
+                toSave.add(result);
             } else {
                 result.setLoaded(true);
             }
@@ -234,18 +255,19 @@ public class DbRequest {
                 list.clear();
                 break;
             }
-            final ResultInterface newResult = executeRequest(request, result, false);
+            final ResultInterface newResult = executeRequest(request, result, false, routing);
             lastRealExecutedQueryCount++;
             if (newResult != null && !newResult.getCurrentDaip().isEmpty()) {
                 // Compute next id
                 computeKey(curId, query.getSources().get(rank));
                 final String key = curId.toString();
                 newResult.setId(mdAccess, key);
+                mdAccess.forgetStoredSet(newResult);
                 list.add(newResult);
                 result = newResult;
                 if (useCache && !result.isLoaded()) {
                     // Since not loaded means really executed and therefore to be saved
-                    result.save(mdAccess);
+                    toSave.add(result);
                 } else {
                     result.setLoaded(true);
                 }
@@ -259,9 +281,10 @@ public class DbRequest {
                 LOGGER.debug("Request: {}\n\tResult: {}", request, result);
             }
         }
+        mdAccess.saveResults(toSave);
         if (!result.getCurrentDaip().isEmpty()) {
             // Filter last result using orderBy, Limit, ...
-            ResultInterface newResult = lastFilter(query, result);
+            ResultInterface newResult = lastFilter(query, result, routing);
             if (newResult != null) {
                 list.remove(result);
                 list.add(newResult);
@@ -278,6 +301,45 @@ public class DbRequest {
         return list;
     }
 
+    /**
+     * @param startSet
+     *            the start set of a query, or a final result (pathes)
+     * @return the root Domains of the startSet if they are a strict subset of all roots, else null (all shards)
+     */
+    private static final String[] computeRouting(final ResultInterface startSet) {
+        if (!GlobalDatas.useDomainRouting) {
+            return null;
+        }
+        final Set<String> roots = new HashSet<String>();
+        for (final String path : startSet.getCurrentDaip()) {
+            final String first = UUID.getFirstAsString(path);
+            if (!GlobalDatas.ROOTS.contains(first)) {
+                // unknown root so no routing
+                return null;
+            }
+            roots.add(first);
+        }
+        if (roots.isEmpty() || roots.size() >= GlobalDatas.ROOTS.size()) {
+            return null;
+        }
+        return roots.toArray(new String[0]);
+    }
+
+    /**
+     * Add the root Domain condition (shard key prefix) to the MongoDB query if any
+     *
+     * @param query
+     * @param routing
+     *            the root Domains targeted by the query (null for all)
+     * @return the query
+     */
+    private static final BasicDBObject addRouting(final BasicDBObject query, final String[] routing) {
+        if (routing != null) {
+            query.append(DAip.DAIPROOT, new BasicDBObject("$in", routing));
+        }
+        return query;
+    }
+
     private static final ResultInterface createFalseResult(final ResultInterface previous, final int depth) {
         final ResultInterface start = MongoDbAccess.createOneResult();
         start.getCurrentDaip().add(new UUID().toString());
@@ -325,7 +387,7 @@ public class DbRequest {
             final ResultInterface start = MongoDbAccess.createOneResult(subrequest.refId);
             start.setId(mdAccess, curId.toString());
             // Now check if current results are ok with startup
-            Set<String> firstNodes = new HashSet<String>();
+            Set<String> firstNodes = ResultAbstract.newIdSet();
             for (String idsource : start.getCurrentDaip()) {
                 if (simulate || UUID.isInPath(idsource, startupNodes)) {
                     firstNodes.add(idsource);
@@ -364,7 +426,7 @@ public class DbRequest {
                 return null;
             }
             // Now check if current results are ok with startup
-            Set<String> firstNodes = new HashSet<String>();
+            Set<String> firstNodes = ResultAbstract.newIdSet();
             boolean differ = false;
             for (String idsource : loaded.getCurrentDaip()) {
                 if (UUID.isInPath(idsource, startupNodes)) {
@@ -490,13 +552,14 @@ public class DbRequest {
      * @param previous
      *            previous Result from previous level (except in level == 0 where it is the subset of valid roots)
      * @param useStart True means that first previous set is the "startup" set, not parent
+     * @param routing the root Domains targeted by the query (null for all)
      * @return the new ResultCached from this request
      * @throws InvalidExecOperationException
      * @throws IllegalAccessException
      * @throws InstantiationException
      */
     private ResultInterface executeRequest(final TypeRequest request, final ResultInterface previous, 
-            final boolean useStart)
+            final boolean useStart, final String[] routing)
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         if (request.refId != null && !request.refId.isEmpty()) {
             // path command
@@ -511,34 +574,73 @@ public class DbRequest {
         }
         if (request.isDepth) {
             // depth => should be ES, except if negative relative depth
-            return getRequestDepth(request, previous, useStart);
+            return getRequestDepth(request, previous, useStart, routing);
         } else if (previous.getMinLevel() < 1 || (previous.getMinLevel() <= 1 && useStart)) {
-            return getRequestDomain(request, previous, useStart);
+            return getRequestDomain(request, previous, useStart, routing);
         } else {
             // 1 level: Could be ES or MD
             // request on MAIP but no depth
             try {
                 // tryES
-                return getRequest1LevelMaipFromES(request, previous, useStart);
+                return getRequest1LevelMaipFromES(request, previous, useStart, routing);
             } catch (final InvalidExecOperationException e) {
                 // try MD
-                return getRequest1LevelMaipFromMD(request, previous, useStart);
+                return getRequest1LevelMaipFromMD(request, previous, useStart, routing);
             }
         }
     }
 
+    /**
+     * @param request
+     * @return the MongoDB request model (built if lazy)
+     * @throws InvalidExecOperationException
+     */
+    private static final ObjectNode getRequestModel(final TypeRequest request) throws InvalidExecOperationException {
+        try {
+            return request.getRequestModel();
+        } catch (final InvalidParseOperationException e) {
+            throw new InvalidExecOperationException("MongoDB request cannot be built", e);
+        }
+    }
+
+    /**
+     * @param request
+     * @return the ElasticSearch query (built if lazy)
+     * @throws InvalidExecOperationException
+     */
+    private static final QueryBuilder getQuery(final TypeRequest request) throws InvalidExecOperationException {
+        try {
+            return request.getQuery();
+        } catch (final InvalidParseOperationException e) {
+            throw new InvalidExecOperationException("ElasticSearch request cannot be built", e);
+        }
+    }
+
+    /**
+     * @param request
+     * @return the ElasticSearch filter (built if lazy)
+     * @throws InvalidExecOperationException
+     */
+    private static final FilterBuilder getFilter(final TypeRequest request) throws InvalidExecOperationException {
+        try {
+            return request.getFilter();
+        } catch (final InvalidParseOperationException e) {
+            throw new InvalidExecOperationException("ElasticSearch request cannot be built", e);
+        }
+    }
+
     private static final BasicDBObject ID_NBCHILD = new BasicDBObject(VitamType.ID, 1).append(DAip.NBCHILD, 1);
 
-    private final ResultInterface getRequestDomain(final TypeRequest request, final ResultInterface previous, final boolean useStart)
+    private final ResultInterface getRequestDomain(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing)
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         // must be MD
         if (request.isOnlyES) {
             throw new InvalidExecOperationException("Expression is not valid for Domain");
         }
-        if (request.requestModel == null) {
+        if (getRequestModel(request) == null) {
             throw new InvalidExecOperationException("Expression is not valid for Domain since no Request is available");
         }
-        final String srequest = request.requestModel.toString();
+        final String srequest = request.getRequestModelAsString();
         final BasicDBObject condition = (BasicDBObject) JSON.parse(srequest);
         final ResultInterface newResult = MongoDbAccess.createOneResult();
         newResult.setMinLevel(1);
@@ -582,16 +684,16 @@ public class DbRequest {
         return newResult;
     }
 
-    private final ResultInterface getRequest1LevelMaipFromES(final TypeRequest request, final ResultInterface previous, final boolean useStart)
+    private final ResultInterface getRequest1LevelMaipFromES(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing)
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         // must be ES
         if ((previous.getNbSubNodes() > GlobalDatas.limitES) || request.isOnlyES) {
-            if (request.query == null) {
+            if (getQuery(request) == null) {
                 throw new InvalidExecOperationException(
                         "Expression is not valid for Daip Level 1 with ES only since no ES request is available");
             }
-            final QueryBuilder query = request.query;
-            final FilterBuilder filter = request.filter;
+            final QueryBuilder query = getQuery(request);
+            final FilterBuilder filter = getFilter(request);
             if (simulate) {
                 LOGGER.info("Req1LevelES: {}\n\t{}", request, filter);
                 return createFalseResult(previous, 1);
@@ -599,7 +701,8 @@ public class DbRequest {
             if (GlobalDatas.PRINT_REQUEST) {
                 LOGGER.warn("Req1LevelES: {}\n\t{}", request, filter);
             }
-            final ResultInterface subresult = mdAccess.getSubDepth(indexName, typeName, previous.getCurrentDaip(), 1, query, filter, useStart);
+            final ResultInterface subresult = mdAccess.getSubDepth(indexName, typeName, previous.getCurrentDaip(), 1, query, filter, useStart, routing,
+                    previous.getId());
             if (subresult != null && !subresult.getCurrentDaip().isEmpty()) {
                 if (useStart) {
                     subresult.getCurrentDaip().retainAll(previous.getCurrentDaip());
@@ -623,10 +726,10 @@ public class DbRequest {
         }
     }
 
-    private final ResultInterface getRequest1LevelMaipFromMD(final TypeRequest request, final ResultInterface previous, final boolean useStart)
+    private final ResultInterface getRequest1LevelMaipFromMD(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing)
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         BasicDBObject query = null;
-        if (request.requestModel == null) {
+        if (getRequestModel(request) == null) {
             throw new InvalidExecOperationException(
                     "Expression is not valid for Daip Level 1 with MD only since no MD request is available");
         }
@@ -639,9 +742,10 @@ public class DbRequest {
                 query = getInClauseForField(MongoDbAccess.VitamLinks.DAip2DAip.field2to1, previous.getCurrentDaip());
             }
         }
-        final String srequest = request.requestModel.toString();
+        final String srequest = request.getRequestModelAsString();
         final BasicDBObject condition = (BasicDBObject) JSON.parse(srequest);
         query.putAll((BSONObject) condition);
+        addRouting(query, routing);
         final ResultInterface subresult = MongoDbAccess.createOneResult();
         if (simulate) {
             LOGGER.info("Req1LevelMD: {}", query);
@@ -683,10 +787,10 @@ public class DbRequest {
         return subresult;
     }
 
-    private final ResultInterface getRequestNegativeRelativeDepthFromMD(final TypeRequest request, final ResultInterface previous, final boolean useStart) 
+    private final ResultInterface getRequestNegativeRelativeDepthFromMD(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing) 
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         BasicDBObject query = null;
-        if (request.requestModel == null) {
+        if (getRequestModel(request) == null) {
             throw new InvalidExecOperationException(
                     "Expression is not valid for Daip Level "+request.relativedepth+" with MD only since no MD request is available");
         }
@@ -699,8 +803,7 @@ public class DbRequest {
         }
         int distance = -request.relativedepth;
         Set<String> subset = new HashSet<String>();
-        for (String prev : previous.getCurrentDaip()) {
-            DAip dprev = DAip.findOne(mdAccess, prev);
+        for (DAipStructure dprev : DAipStructure.find(mdAccess, previous.getCurrentDaip()).values()) {
             Map<String, Integer> parents = dprev.getDomDepth();
             for (Entry<String, Integer> elt : parents.entrySet()) {
                 if (elt.getValue() == distance) {
@@ -710,24 +813,24 @@ public class DbRequest {
         }
         // Use ID and not graph dependencies
         query = getInClauseForField(DAip.ID, subset);
-        final String srequest = request.requestModel.toString();
+        final String srequest = request.getRequestModelAsString();
         final BasicDBObject condition = (BasicDBObject) JSON.parse(srequest);
         query.putAll((BSONObject) condition);
+        addRouting(query, routing);
         final ResultInterface subresult = MongoDbAccess.createOneResult();
         LOGGER.debug("Req-xLevelMD: {}", query);
         if (GlobalDatas.PRINT_REQUEST) {
             LOGGER.warn("Req-xLevelMD: {}", query);
         }
-        final DBCursor cursor = mdAccess.find(mdAccess.daips, query, ID_NBCHILD);
+        final DBCursor cursor = DAipStructure.setLazy(mdAccess.find(mdAccess.daips, query, DAipStructure.FIELDS));
         long tempCount = 0;
         subresult.setMinLevel(previous.getMaxLevel());
         subresult.setMaxLevel(0);
         while (cursor.hasNext()) {
-            final DAip maip = (DAip) cursor.next();
+            final DAipStructure maip = new DAipStructure(cursor.next());
             final String mid = maip.getId();
             subresult.getCurrentDaip().add(mid);
-            maip.load(mdAccess);
-            tempCount += maip.getLong(DAip.NBCHILD);
+            tempCount += maip.getNb();
             // Not updateMinMax since result is not "valid" path but node UUID and not needed
             int max = maip.getMaxDepth();
             if (subresult.getMaxLevel() < max) {
@@ -746,15 +849,14 @@ public class DbRequest {
         return subresult;
     }
 
-    private final ResultInterface getRequestNegativeRelativeDepth(final TypeRequest request, final ResultInterface previous, final boolean useStart) 
+    private final ResultInterface getRequestNegativeRelativeDepth(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing) 
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         if (useStart) {
             throw new InvalidExecOperationException("Cannot make a negative path when starting up");
         }
         int distance = -request.relativedepth;
         Set<String> subset = new HashSet<String>();
-        for (String prev : previous.getCurrentDaip()) {
-            DAip dprev = DAip.findOne(mdAccess, prev);
+        for (DAipStructure dprev : DAipStructure.find(mdAccess, previous.getCurrentDaip()).values()) {
             Map<String, Integer> parents = dprev.getDomDepth();
             for (Entry<String, Integer> elt : parents.entrySet()) {
                 if (elt.getValue() == distance) {
@@ -762,8 +864,8 @@ public class DbRequest {
                 }
             }
         }
-        final QueryBuilder query = request.query;
-        final FilterBuilder filter = request.filter;
+        final QueryBuilder query = getQuery(request);
+        final FilterBuilder filter = getFilter(request);
         //final QueryBuilder query = ElasticSearchAccess.getQueryFromString(srequest);
         //final FilterBuilder filter = (sfilter != null ? ElasticSearchAccess.getFilterFromString(sfilter) : null);
         if (simulate) {
@@ -773,7 +875,10 @@ public class DbRequest {
         if (GlobalDatas.PRINT_REQUEST) {
             LOGGER.warn("ReqDepth: {}\n\t{}", request, filter);
         }
-        final ResultInterface subresult = mdAccess.getNegativeSubDepth(indexName, typeName, subset, query, filter);
+        // the subset only depends on previous and distance
+        final String setId = previous.getId() != null ? previous.getId() + "_-" + distance : null;
+        final ResultInterface subresult = mdAccess.getNegativeSubDepth(indexName, typeName, subset, query, filter, routing,
+                setId);
         if (subresult != null && !subresult.getCurrentDaip().isEmpty()) {
             subresult.updateLoadMinMax(mdAccess);
             if (GlobalDatas.PRINT_REQUEST) {
@@ -784,27 +889,85 @@ public class DbRequest {
         return subresult;
     }
     
-    private final ResultInterface getRequestDepth(final TypeRequest request, final ResultInterface previous, final boolean useStart)
+    private final ResultInterface getRequestDepthFromMD(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing)
+            throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
+        int subdepth = request.relativedepth;
+        if (request.exactdepth != 0) {
+            subdepth = request.exactdepth - previous.getMinLevel();
+        }
+        if (simulate) {
+            LOGGER.info("ReqDepthMD: {}", request);
+            return createFalseResult(previous, subdepth);
+        }
+        BasicDBObject query = null;
+        if (useStart) {
+            query = getInClauseForField(DAip.ID, previous.getCurrentDaip());
+        } else {
+            // (grand)parents within currentNodes and depth <= subdepth using multikey index
+            query = new BasicDBObject(DAip.DAIPANCESTORS, new BasicDBObject("$elemMatch",
+                    new BasicDBObject(DAip.ANCESTOR, new BasicDBObject("$in", previous.getCurrentDaip()))
+                    .append(DAip.ANCESTORDEPTH, new BasicDBObject("$lte", subdepth))));
+        }
+        final String srequest = request.getRequestModelAsString();
+        final BasicDBObject condition = (BasicDBObject) JSON.parse(srequest);
+        query.putAll((BSONObject) condition);
+        addRouting(query, routing);
+        LOGGER.debug("ReqDepthMD: {}", query);
+        if (GlobalDatas.PRINT_REQUEST) {
+            LOGGER.warn("ReqDepthMD: {}", query);
+        }
+        final ResultInterface subresult = MongoDbAccess.createOneResult();
+        // only _id and _nb are needed: lazy structural view, no full DAip decoding
+        final DBCursor cursor = DAipStructure.setLazy(mdAccess.find(mdAccess.daips, query, ID_NBCHILD));
+        long tempCount = 0;
+        while (cursor.hasNext()) {
+            final DAipStructure maip = new DAipStructure(cursor.next());
+            subresult.getCurrentDaip().add(maip.getId());
+            tempCount += maip.getNb();
+        }
+        cursor.close();
+        subresult.setNbSubNodes(tempCount);
+        if (!subresult.getCurrentDaip().isEmpty()) {
+            // filter on Ancestor
+            if (!useStart && !previous.checkAncestor(mdAccess, subresult)) {
+                LOGGER.error("No ancestor");
+                return null;
+            }
+            subresult.updateLoadMinMax(mdAccess);
+            if (GlobalDatas.PRINT_REQUEST) {
+                subresult.putBeforeSave();
+                LOGGER.warn("MetaAipDepthMD: {}", subresult);
+            }
+        }
+        return subresult;
+    }
+
+    private final ResultInterface getRequestDepth(final TypeRequest request, final ResultInterface previous, final boolean useStart, final String[] routing)
             throws InvalidExecOperationException, InstantiationException, IllegalAccessException {
         if (request.relativedepth < 0 && ! request.isOnlyES) {
             // negative depth: could be done using native Database access
-            return getRequestNegativeRelativeDepthFromMD(request, previous, useStart);
+            return getRequestNegativeRelativeDepthFromMD(request, previous, useStart, routing);
+        }
+        // request on MAIP with depth using MD ancestors if only ES due to depth and not too many nodes
+        if (GlobalDatas.useMdDepth && request.isDepthOnlyES && request.relativedepth > 0
+                && previous.getNbSubNodes() <= GlobalDatas.limitES && getRequestModel(request) != null) {
+            return getRequestDepthFromMD(request, previous, useStart, routing);
         }
         // request on MAIP with depth using ES if relative depth > 0 or exact depth
-        if (request.query == null) {
+        if (getQuery(request) == null) {
             throw new InvalidExecOperationException(
                     "Expression is not valid for Daip DepthRequest with ES only since no ES request is available");
         }
         // do special request using ES with negative relative depth
         if (request.relativedepth < 0) {
-            return getRequestNegativeRelativeDepth(request, previous, useStart);
+            return getRequestNegativeRelativeDepth(request, previous, useStart, routing);
         }
         int subdepth = request.relativedepth;
         if (request.exactdepth != 0) {
             subdepth = request.exactdepth - previous.getMinLevel();
         }
-        final QueryBuilder query = request.query;
-        final FilterBuilder filter = request.filter;
+        final QueryBuilder query = getQuery(request);
+        final FilterBuilder filter = getFilter(request);
         if (simulate) {
             LOGGER.info("ReqDepth: {}\n\t{}", request, filter);
             return createFalseResult(previous, subdepth);
@@ -812,7 +975,8 @@ public class DbRequest {
         if (GlobalDatas.PRINT_REQUEST) {
             LOGGER.warn("ReqDepth: {}\n\t{}", request, filter);
         }
-        final ResultInterface subresult = mdAccess.getSubDepth(indexName, typeName, previous.getCurrentDaip(), subdepth, query, filter, useStart);
+        final ResultInterface subresult = mdAccess.getSubDepth(indexName, typeName, previous.getCurrentDaip(), subdepth, query, filter, useStart, routing,
+                previous.getId());
         if (subresult != null && !subresult.getCurrentDaip().isEmpty()) {
             // filter on Ancestor
             if (!useStart && !previous.checkAncestor(mdAccess, subresult)) {
@@ -836,9 +1000,11 @@ public class DbRequest {
      * 
      * @param query
      * @param result to be filtered using query
+     * @param routing the root Domains targeted by the query (null for all)
      * @return the new result or null if the same
      */
-    private ResultInterface lastFilter(final AbstractQueryParser query, final ResultInterface result) {
+    private ResultInterface lastFilter(final AbstractQueryParser query, final ResultInterface result,
+            final String[] routing) {
         if (simulate) {
             return null;
         }
@@ -851,7 +1017,7 @@ public class DbRequest {
             LOGGER.warn("Req1LevelMD Filter on: Limit {} Offset {} OrderBy {}", query.getLimit(), query.getOffset(), orderBy);
         }
         final ResultInterface subresult = MongoDbAccess.createOneResult();
-        BasicDBObject inClause = getInClauseForField(DAip.ID, result.getCurrentDaip());
+        BasicDBObject inClause = addRouting(getInClauseForField(DAip.ID, result.getCurrentDaip()), routing);
         final DBCursor cursor = mdAccess.daips.collection.find(inClause, ID_NBCHILD);
         if (query.getLimit() > 0) {
             cursor.limit(query.getLimit());
@@ -903,7 +1069,7 @@ public class DbRequest {
      * @throws IllegalAccessException
      */
     private Set<String> checkStartup(final ResultInterface startup, final Set<String> paths) throws InstantiationException, IllegalAccessException {
-        Set<String> lastResult = new HashSet<String>();
+        Set<String> lastResult = ResultAbstract.newIdSet();
         Set<String> shallBeStartup = new HashSet<String>();
         for (String path : startup.getCurrentDaip()) {
             shallBeStartup.add(UUID.getLastAsString(path));
@@ -943,10 +1109,9 @@ public class DbRequest {
             throws InstantiationException, IllegalAccessException {
         int size = paths.size();
         final Set<String> parents = new HashSet<String>();
-        final DAip daip = DAip.findOne(mdAccess, UUID.getFirstAsString(node));
+        final DAipStructure daip = DAipStructure.findOne(mdAccess, UUID.getFirstAsString(node));
         if (daip == null) {
-            Domain domain = Domain.findOne(mdAccess, UUID.getFirstAsString(node));
-            if (domain != null) {
+            if (mdAccess.exists(VitamCollections.Cdomain, UUID.getFirstAsString(node))) {
                 // Domain so complete path
                 for (final String p : result.getCurrentDaip()) {
                     if (UUID.getFirstAsString(node).equals(UUID.getLastAsString(p))) {
@@ -976,6 +1141,56 @@ public class DbRequest {
         }
         return (paths.size() - size > 0);
     }
+    /**
+     * Enrich the final result of a query with its reference data (PAip, SAip and DuaRef), using the
+     * ReferenceCache and at most one request per collection.
+     *
+     * @param result
+     *            the final result (ids or pathes of DAip)
+     * @return the chains by DAip id (empty if no result)
+     */
+    public Map<String, ReferenceCache.Chain> resolveReferences(final ResultInterface result) {
+        final Set<String> ids = new HashSet<String>();
+        for (final String path : result.getCurrentDaip()) {
+            ids.add(UUID.getLastAsString(path));
+        }
+        return ReferenceCache.resolve(mdAccess, ids);
+    }
+    /**
+     * Compute an aggregation over the final result of a query, returning only the buckets.<br>
+     * Pushed to ElasticSearch if the last level of the query needs it, else to a MongoDB aggregation pipeline.
+     *
+     * @param query
+     * @param result
+     *            the final result (ids or pathes of DAip)
+     * @param aggregation
+     * @return the buckets (key, count), or null if no DAip or if ElasticSearch answers in error
+     * @throws com.mongodb.MongoException
+     *             if the MongoDB aggregation fails
+     */
+    public Map<String, Long> aggregate(final AbstractQueryParser query, final ResultInterface result,
+            final DbAggregation aggregation) {
+        final Set<String> ids = new HashSet<String>();
+        for (final String path : result.getCurrentDaip()) {
+            ids.add(UUID.getLastAsString(path));
+        }
+        if (ids.isEmpty()) {
+            return null;
+        }
+        final List<TypeRequest> requests = query.getRequests();
+        final boolean useEs = !requests.isEmpty() && requests.get(requests.size() - 1).isOnlyES;
+        if (GlobalDatas.PRINT_REQUEST) {
+            LOGGER.warn("Aggregate {} on {} DAip from {}", aggregation, ids.size(), useEs ? "ES" : "MD");
+        }
+        if (simulate) {
+            return null;
+        }
+        // root Domains of the aggregated result itself (full pathes start with their root)
+        // the DAip ids only depend on the result
+        final String setId = result.getId() != null ? result.getId() + "_last" : null;
+        return mdAccess.aggregate(indexName, typeName, ids, aggregation, computeRouting(result), useEs, setId);
+    }
+
     /**
      * Compute final Result from list of result (per step)
      * 
@@ -986,6 +1201,23 @@ public class DbRequest {
      * @throws InstantiationException
      */
     public ResultInterface finalizeResults(boolean useCache, final List<ResultInterface> results) throws InstantiationException, IllegalAccessException {
+        if (!GlobalDatas.useBitmapIdSet || results.isEmpty()) {
+            return finalizeResultsInScope(useCache, results);
+        }
+        // same ids dictionary than the request results
+        IdDictionary dictionary = IdDictionary.of(results.get(results.size() - 1).getCurrentDaip());
+        if (dictionary == null) {
+            dictionary = IdDictionary.getNode();
+        }
+        final IdDictionary previous = IdDictionary.bind(dictionary);
+        try {
+            return finalizeResultsInScope(useCache, results);
+        } finally {
+            IdDictionary.bind(previous);
+        }
+    }
+
+    private ResultInterface finalizeResultsInScope(boolean useCache, final List<ResultInterface> results) throws InstantiationException, IllegalAccessException {
         // Algorithm
         // Paths = 0
         // current = last(results).current
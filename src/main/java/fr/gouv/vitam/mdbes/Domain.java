@@ -24,7 +24,9 @@ import static fr.gouv.vitam.mdbes.MongoDbAccess.VitamCollections.Cdomain;
 
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.bson.BSONObject;
 
@@ -33,6 +35,7 @@ import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 
 import fr.gouv.vitam.mdbes.MongoDbAccess.VitamLinks;
+import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.utils.logging.VitamLogger;
 import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
 
@@ -57,6 +60,11 @@ public class Domain extends VitamType {
      */
     public long nb = 0;
 
+    /**
+     * DAip links not yet saved into LinkBucket (when GlobalDatas.useLinkBuckets)
+     */
+    private transient Set<String> pendingDAips = null;
+
     /**
      *
      */
@@ -74,7 +82,7 @@ public class Domain extends VitamType {
         DBObject update = null;
         final List<String> ids = new ArrayList<String>();
         for (final DAip maip : maips) {
-            final DBObject update2 = dbvitam.addLink(this, VitamLinks.Domain2DAip, maip);
+            final DBObject update2 = addDAipLink(dbvitam, maip);
             if (update2 != null) {
                 update = update2;
                 ids.add((String) maip.get(ID));
@@ -111,7 +119,12 @@ public class Domain extends VitamType {
      */
     public void addDAipNoSave(final MongoDbAccess dbvitam, final OutputStream outputStream, final List<DAip> maips) {
         for (final DAip maip : maips) {
-            MongoDbAccess.addAsymmetricLinksetNoSave(this, VitamLinks.Domain2DAip.field1to2, maip);
+            if (GlobalDatas.useLinkBuckets) {
+                // saved into LinkBucket with the Domain
+                addPendingDAip(maip);
+            } else {
+                MongoDbAccess.addAsymmetricLinksetNoSave(this, VitamLinks.Domain2DAip.field1to2, maip);
+            }
             if (MongoDbAccess.addAsymmetricLinksetNoSave(maip, VitamLinks.Domain2DAip.field2to1, this)) {
                 nb++;
             }
@@ -126,14 +139,49 @@ public class Domain extends VitamType {
      * @param maip
      */
     public void addDAip(final MongoDbAccess dbvitam, final DAip maip) {
-        final DBObject update = dbvitam.addLink(this, VitamLinks.Domain2DAip, maip);
+        final DBObject update = addDAipLink(dbvitam, maip);
         if (update != null) {
             maip.update(dbvitam.daips, update);
         }
     }
 
+    /**
+     * Add the link N-N between Domain and DAip, the Domain part being either in the Domain or in LinkBucket
+     *
+     * @param dbvitam
+     * @param maip
+     * @return the update part for the DAip (may be null)
+     */
+    private final DBObject addDAipLink(final MongoDbAccess dbvitam, final DAip maip) {
+        if (!GlobalDatas.useLinkBuckets) {
+            return dbvitam.addLink(this, VitamLinks.Domain2DAip, maip);
+        }
+        addPendingDAip(maip);
+        return dbvitam.addReverseLink(this, VitamLinks.Domain2DAip, maip);
+    }
+
+    private final void addPendingDAip(final DAip maip) {
+        if (pendingDAips == null) {
+            pendingDAips = new HashSet<String>();
+        }
+        pendingDAips.add(maip.getId());
+    }
+
+    /**
+     * Save the pending DAip links into LinkBucket
+     *
+     * @param dbvitam
+     */
+    private final void flushDAipLinks(final MongoDbAccess dbvitam) {
+        if (pendingDAips != null && !pendingDAips.isEmpty()) {
+            LinkBucket.addLinks(dbvitam, getId(), pendingDAips);
+            pendingDAips.clear();
+        }
+    }
+
     @Override
     protected boolean updated(final MongoDbAccess dbvitam) {
+        flushDAipLinks(dbvitam);
         final Domain vt = (Domain) dbvitam.domains.collection.findOne(getId());
         BasicDBObject update = null;
         LOGGER.debug("Previous Domain exists ? " + (vt != null));
@@ -93,10 +93,10 @@ public class DuaRef extends VitamType {
     @Override
     public void save(final MongoDbAccess dbvitam) {
         putBeforeSave();
-        if (updated(dbvitam)) {
-            return;
+        if (!updated(dbvitam)) {
+            updateOrSave(dbvitam.duarefs);
         }
-        updateOrSave(dbvitam.duarefs);
+        ReferenceCache.invalidate(Cdua);
     }
 
     @Override
@@ -113,13 +113,13 @@ public class DuaRef extends VitamType {
     /**
      * @param dbvitam
      * @param refid
-     * @return the DuaRef
+     * @return the DuaRef (copy from the reference cache)
      * @throws InstantiationException
      * @throws IllegalAccessException
      */
     public static DuaRef findOne(final MongoDbAccess dbvitam, final String refid) throws InstantiationException,
             IllegalAccessException {
-        return (DuaRef) dbvitam.findOne(Cdua, refid);
+        return ReferenceCache.getDuaRef(dbvitam, refid);
     }
 
     protected static void addIndexes(final MongoDbAccess dbvitam) {
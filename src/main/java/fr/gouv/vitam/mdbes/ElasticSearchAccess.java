@@ -20,14 +20,40 @@
  */
 package fr.gouv.vitam.mdbes;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.bson.BSONObject;
 import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest.OpType;
@@ -35,27 +61,35 @@ import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.FilterBuilders;
 import org.elasticsearch.index.query.FilteredQueryBuilder;
-import org.elasticsearch.index.query.IdsFilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.TermsFilterBuilder;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.node.NodeBuilder;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
 
 import fr.gouv.vitam.mdbes.MongoDbAccess.VitamLinks;
 import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.utils.FileUtil;
+import fr.gouv.vitam.utils.UUID;
 import fr.gouv.vitam.utils.logging.VitamLogger;
 import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+import fr.gouv.vitam.utils.lru.SynchronizedLruCache;
 
 /**
  * ElasticSearch model with MongoDB main database
@@ -65,6 +99,49 @@ import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
  */
 public class ElasticSearchAccess {
     private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(ElasticSearchAccess.class);
+    /**
+     * Suffix of the side index storing sets of ids referenced by terms lookup filters
+     */
+    public static final String SETINDEX_SUFFIX = "_set";
+    private static final String SETTYPE = "set";
+    private static final String SETFIELD = "ids";
+    /**
+     * Separator between alias and version in versioned index names
+     */
+    public static final String VERSION_SEPARATOR = "_v";
+
+    /**
+     * Keys of the sets already stored in the side index with their document id, bounded and expiring well before
+     * the _ttl of the stored documents (so never pointing to a purged set)
+     */
+    private final SynchronizedLruCache<String, String> storedSets = new SynchronizedLruCache<String, String>(
+            GlobalDatas.LIMIT_ES_STORED_SETS, GlobalDatas.TTLMS / 2);
+    /**
+     * Index settings changed during a bulk load
+     */
+    private static final Map<String, String> BULKLOAD_SETTINGS = new HashMap<String, String>();
+    /**
+     * Default values of those settings, if not set on the index
+     */
+    private static final Map<String, String> DEFAULT_SETTINGS = new HashMap<String, String>();
+    static {
+        BULKLOAD_SETTINGS.put("index.refresh_interval", "-1");
+        DEFAULT_SETTINGS.put("index.refresh_interval", "1s");
+        BULKLOAD_SETTINGS.put("index.number_of_replicas", "0");
+        DEFAULT_SETTINGS.put("index.number_of_replicas", "1");
+        BULKLOAD_SETTINGS.put("index.translog.flush_threshold_size", "1gb");
+        DEFAULT_SETTINGS.put("index.translog.flush_threshold_size", "200mb");
+        BULKLOAD_SETTINGS.put("index.translog.flush_threshold_period", "60m");
+        DEFAULT_SETTINGS.put("index.translog.flush_threshold_period", "30m");
+    }
+    /**
+     * Settings to restore for (concrete) indexes in bulk load session
+     */
+    private final Map<String, Map<String, String>> bulkLoadSettings = new ConcurrentHashMap<String, Map<String, String>>();
+    /**
+     * Concrete indexes in bulk load session for each name (index or alias) given to startBulkLoad
+     */
+    private final Map<String, Set<String>> bulkLoadIndexes = new ConcurrentHashMap<String, Set<String>>();
 
     private static void registerShutdownHook(final Node node) {
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -76,9 +153,19 @@ public class ElasticSearchAccess {
     }
 
     static Node node;
+    /**
+     * Transport client shared by all accesses of this JVM in transport mode
+     */
+    private static TransportClient transportClient;
+    private static int transportUsers = 0;
+    private static boolean transportHook = false;
     Node localNode;
-    Client client;
+    private volatile Client client;
     String clusterName;
+    private final String unicast;
+    private final boolean transport;
+    private ExecutorService chunkExecutor = null;
+    private EsSearchBatcher searchBatcher = null;
 
     /**
      * Create an ElasticSearch access
@@ -93,6 +180,12 @@ public class ElasticSearchAccess {
     public ElasticSearchAccess(final String clusterName, final String unicast, final String networkAddress) {
         Settings settings = null;
         this.clusterName = clusterName;
+        this.unicast = unicast;
+        transport = GlobalDatas.useTransportClient;
+        if (transport) {
+            // connection delayed until first use
+            return;
+        }
         if (networkAddress != null) {
             settings = ImmutableSettings.settingsBuilder().put("cluster.name", clusterName)
                     .put("discovery.zen.ping.multicast.enabled", false).put("discovery.zen.ping.unicast.hosts", unicast)
@@ -119,6 +212,84 @@ public class ElasticSearchAccess {
         }
         client = localNode.client();
     }
+
+    /**
+     *
+     * @return the client (in transport mode, connecting on first call)
+     */
+    protected final Client getClient() {
+        Client current = client;
+        if (current == null) {
+            synchronized (this) {
+                if (client == null) {
+                    client = getTransportClient(clusterName, unicast);
+                }
+                current = client;
+            }
+        }
+        return current;
+    }
+
+    /**
+     *
+     * @param clusterName
+     * @param unicast
+     *            the unicast list of addresses (host[:port] separated by ',')
+     * @return the shared transport client, created if needed
+     */
+    private static synchronized Client getTransportClient(final String clusterName, final String unicast) {
+        if (transportClient == null) {
+            final Settings settings = ImmutableSettings.settingsBuilder().put("cluster.name", clusterName)
+                    .put("client.transport.sniff", GlobalDatas.esTransportSniff).build();
+            final TransportClient newClient = new TransportClient(settings);
+            for (final String host : unicast.split("[,\\s]+")) {
+                if (host.isEmpty()) {
+                    continue;
+                }
+                final int pos = host.lastIndexOf(':');
+                if (pos > 0) {
+                    // first port of a range
+                    final String port = host.substring(pos + 1).split("-")[0];
+                    newClient.addTransportAddress(new InetSocketTransportAddress(host.substring(0, pos),
+                            Integer.parseInt(port)));
+                } else {
+                    newClient.addTransportAddress(new InetSocketTransportAddress(host, GlobalDatas.ES_TRANSPORT_PORT));
+                }
+            }
+            LOGGER.info("Transport client connected to: " + newClient.connectedNodes());
+            if (!transportHook) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        closeTransportClient();
+                    }
+                });
+                transportHook = true;
+            }
+            transportClient = newClient;
+            transportUsers = 0;
+        }
+        transportUsers++;
+        return transportClient;
+    }
+
+    /**
+     * Release one use of the shared transport client, closing it when no more used
+     */
+    private static synchronized void releaseTransportClient() {
+        transportUsers--;
+        if (transportUsers <= 0) {
+            closeTransportClient();
+        }
+    }
+
+    private static synchronized void closeTransportClient() {
+        if (transportClient != null) {
+            transportClient.close();
+            transportClient = null;
+        }
+        transportUsers = 0;
+    }
     /**
      * 
      * @return the Cluster Name
@@ -131,6 +302,25 @@ public class ElasticSearchAccess {
      * Close the ElasticSearch connection
      */
     public void close() {
+        synchronized (this) {
+            if (chunkExecutor != null) {
+                chunkExecutor.shutdownNow();
+                chunkExecutor = null;
+            }
+            if (searchBatcher != null) {
+                searchBatcher.stop();
+                searchBatcher = null;
+            }
+        }
+        if (transport) {
+            synchronized (this) {
+                if (client != null) {
+                    client = null;
+                    releaseTransportClient();
+                }
+            }
+            return;
+        }
         client.close();
         if (GlobalDatas.useNewNode) {
             localNode.close();
@@ -145,11 +335,15 @@ public class ElasticSearchAccess {
      */
     public final boolean deleteIndex(final String idxName) {
         try {
-            if (client.admin().indices().prepareExists(idxName).execute().actionGet().isExists()) {
-                if (!client.admin().indices().prepareDelete(idxName).execute().actionGet().isAcknowledged()) {
+            if (getClient().admin().indices().prepareExists(idxName).execute().actionGet().isExists()) {
+                if (!getClient().admin().indices().prepareDelete(idxName).execute().actionGet().isAcknowledged()) {
                     LOGGER.error("Error on index delete");
                 }
             }
+            if (!idxName.endsWith(SETINDEX_SUFFIX)) {
+                storedSets.clear();
+                return deleteIndex(idxName + SETINDEX_SUFFIX);
+            }
             return true;
         } catch (final Exception e) {
             LOGGER.error("Error while deleting index", e);
@@ -165,50 +359,43 @@ public class ElasticSearchAccess {
      * @return True if ok
      */
     public final boolean addIndex(final String indexName, final String type) {
+        return addIndex(indexName, type, null);
+    }
+
+    /**
+     * Add a type to an index, with a mapping generated from the model fields
+     *
+     * @param indexName
+     * @param type
+     * @param fields
+     *            the model fields with their type (null for structural fields only)
+     * @return True if ok
+     */
+    public final boolean addIndex(final String indexName, final String type, final Map<String, EsMapping.FTYPE> fields) {
         LOGGER.debug("addIndex");
-        if (!client.admin().indices().prepareExists(indexName).execute().actionGet().isExists()) {
+        if (!getClient().admin().indices().prepareExists(indexName).execute().actionGet().isExists()) {
             LOGGER.debug("createIndex");
-            client.admin().indices().prepareCreate(indexName).execute().actionGet();
+            getClient().admin().indices().prepareCreate(indexName).execute().actionGet();
         }
+        addSetIndex(indexName + SETINDEX_SUFFIX);
         if (type == null) {
             return false;
         }
-        final String mapping = "{"
-                + type
-                +
-                // Will keep DAIPDEPTHS and NBCHILD as value to get (_id is implicit)
-                // Change since DAIPDEPTHS not useful as source
-                // " : { _source : { includes : [\""+DAip.DAIPDEPTHS+".*\", \""+DAip.NBCHILD+"\"] },"+
-                " : { "
-                + "_source : { includes : [\"" + DAip.NBCHILD + "\"] },"
-                +
-                // DAIPDEPTHS will not be parsed and analyzed since it cannot be requested efficiently { UUID1 : depth2, UUID2 :
-                // depth2 }
-                "properties : { "
-                + DAip.DAIPDEPTHS + " : { type : \"object\", enabled : false }, "
-                +
-                // DAIPPARENTS will be included but not tokenized [ UUID1, UUID2 ]
-                DAip.DAIPPARENTS + " : { type : \"string\", index : \"not_analyzed\" }, "
-                +
-                // NBCHILD as the number of immediate child
-                DAip.NBCHILD + " : { type : \"long\" },"
-                +
-                // Immediate parents will be included but not tokenized [ UUID1, UUID2 ]
-                VitamLinks.DAip2DAip.field2to1 + " : { type : \"string\", index : \"not_analyzed\" }, "
-                +
-                // "_id : { type : \"object\", enabled : false }, " +
-                // This item does not exist and therefore should not be analyzed neither exist
-                VitamLinks.DAip2DAip.field1to2 + " : { type : \"object\", enabled : false }, "
-                +
-                // VitamLinks.DAip2DAip.field2to1+" : { type : \"object\", enabled : false }, " +
-                VitamLinks.Domain2DAip.field2to1 + " : { type : \"string\", index : \"not_analyzed\" }, " + 
-                VitamLinks.DAip2Dua.field1to2 + " : { type : \"string\", index : \"not_analyzed\" }, " + 
-                VitamLinks.DAip2PAip.field1to2 + " : { type : \"string\", index : \"not_analyzed\" } " +
-                " } } }";
+        return putMapping(indexName, type, fields);
+    }
+
+    private final boolean putMapping(final String indexName, final String type, final Map<String, EsMapping.FTYPE> fields) {
+        final String mapping;
+        try {
+            mapping = EsMapping.getMapping(type, fields);
+        } catch (final IOException e) {
+            LOGGER.error("Error while building Mapping", e);
+            return false;
+        }
         LOGGER.debug("setMapping: " + indexName + " type: " + type + "\n\t" + mapping);
         try {
             // if (! client.admin().indices().prepareTypesExists(type).execute().actionGet().isExists()) {
-            final PutMappingResponse response = client.admin().indices().preparePutMapping().setIndices(indexName).setType(type)
+            final PutMappingResponse response = getClient().admin().indices().preparePutMapping().setIndices(indexName).setType(type)
                     .setSource(mapping).execute().actionGet();
             LOGGER.info(type + ":" + response.isAcknowledged());
             return response.isAcknowledged();
@@ -221,6 +408,396 @@ public class ElasticSearchAccess {
         // return true;
     }
 
+    /**
+     * Create a new versioned index (alias_vTime) with the mapping of this type, not yet referenced by the alias
+     *
+     * @param alias
+     * @param type
+     * @param fields
+     *            the model fields with their type (null for structural fields only)
+     * @return the name of the new index, or null if in error
+     */
+    public final String createVersionedIndex(final String alias, final String type,
+            final Map<String, EsMapping.FTYPE> fields) {
+        final String indexName = alias + VERSION_SEPARATOR + System.currentTimeMillis();
+        try {
+            getClient().admin().indices().prepareCreate(indexName).execute().actionGet();
+        } catch (final Exception e) {
+            LOGGER.error("Error while creating index " + indexName, e);
+            return null;
+        }
+        if (type != null && !putMapping(indexName, type, fields)) {
+            deleteIndex(indexName);
+            return null;
+        }
+        return indexName;
+    }
+
+    /**
+     *
+     * @param alias
+     * @return the indexes currently referenced by this alias (empty if none)
+     */
+    public final Set<String> getAliasedIndexes(final String alias) {
+        final Set<String> indexes = new HashSet<String>();
+        final Iterator<String> iterator = getClient().admin().indices().prepareGetAliases(alias).execute().actionGet()
+                .getAliases().keysIt();
+        while (iterator.hasNext()) {
+            indexes.add(iterator.next());
+        }
+        return indexes;
+    }
+
+    /**
+     *
+     * @param name
+     * @return True if this name is a real index (not an alias)
+     */
+    public final boolean isConcreteIndex(final String name) {
+        return getClient().admin().cluster().prepareState().execute().actionGet().getState().getMetaData()
+                .index(name) != null;
+    }
+
+    /**
+     * Atomically move the alias to the new index.<br>
+     * A real index named as the alias (created before aliases) cannot be replaced atomically: this is refused and
+     * needs the explicit migration step migrateToAlias.
+     *
+     * @param alias
+     * @param indexName
+     *            the new index
+     * @return the indexes previously referenced by the alias (to be deleted by the caller if needed), or null if in
+     *         error (alias unchanged)
+     */
+    public final Set<String> switchAlias(final String alias, final String indexName) {
+        try {
+            if (isConcreteIndex(alias)) {
+                LOGGER.error("Index " + alias + " is not an alias: it must be migrated first (migrateToAlias)");
+                return null;
+            }
+            final Set<String> previous = getAliasedIndexes(alias);
+            final IndicesAliasesRequestBuilder request = getClient().admin().indices().prepareAliases();
+            for (final String index : previous) {
+                request.removeAlias(index, alias);
+            }
+            request.addAlias(indexName, alias);
+            if (!request.execute().actionGet().isAcknowledged()) {
+                LOGGER.error("Alias " + alias + " not switched to " + indexName);
+                return null;
+            }
+            previous.remove(indexName);
+            LOGGER.info("Alias " + alias + " switched from " + previous + " to " + indexName);
+            return previous;
+        } catch (final Exception e) {
+            LOGGER.error("Error while switching alias " + alias, e);
+            return null;
+        }
+    }
+
+    /**
+     * Migration of a real index named as the alias (created before aliases) to an alias on the new index.<br>
+     * ElasticSearch cannot remove an index and add an alias of the same name in one request, so reads on the alias
+     * fail between the two steps (short downtime). The new index is never deleted, even if the alias cannot be added.
+     *
+     * @param alias
+     * @param indexName
+     *            the new index, fully built
+     * @return True if the alias references the new index
+     */
+    public final boolean migrateToAlias(final String alias, final String indexName) {
+        try {
+            if (isConcreteIndex(alias)) {
+                LOGGER.warn("Index " + alias + " deleted to be replaced by an alias on " + indexName);
+                if (!getClient().admin().indices().prepareDelete(alias).execute().actionGet().isAcknowledged()) {
+                    LOGGER.error("Index " + alias + " not deleted: migration to " + indexName + " not done");
+                    return false;
+                }
+            }
+            if (!getClient().admin().indices().prepareAliases().addAlias(indexName, alias).execute().actionGet()
+                    .isAcknowledged()) {
+                LOGGER.error("Alias " + alias + " not added to " + indexName + ": to be added manually");
+                return false;
+            }
+            LOGGER.info("Index " + alias + " migrated to an alias on " + indexName);
+            return true;
+        } catch (final Exception e) {
+            LOGGER.error("Error while migrating " + alias + " to an alias on " + indexName
+                    + ": alias to be checked manually", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param indexName
+     * @return the file keeping the original settings of this index during a bulk load, or null
+     */
+    private static final Path getBulkLoadSettingsPath(final String indexName) {
+        if (GlobalDatas.bulkLoadSettingsFile == null) {
+            return null;
+        }
+        return Paths.get(GlobalDatas.bulkLoadSettingsFile + "_" + indexName);
+    }
+
+    /**
+     * @param indexName
+     * @return the original settings of this index saved by a previous bulk load not ended, or null
+     */
+    private static final Map<String, String> readBulkLoadSettings(final String indexName) {
+        final Path path = getBulkLoadSettingsPath(indexName);
+        if (path == null || !Files.isReadable(path)) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot read bulk load settings of " + indexName, e);
+            return null;
+        }
+        final Map<String, String> saved = new HashMap<String, String>();
+        for (final String setting : properties.stringPropertyNames()) {
+            saved.put(setting, properties.getProperty(setting));
+        }
+        return saved;
+    }
+
+    /**
+     * @param indexName
+     * @param saved
+     *            the original settings, or null to remove the file
+     */
+    private static final void writeBulkLoadSettings(final String indexName, final Map<String, String> saved) {
+        final Path path = getBulkLoadSettingsPath(indexName);
+        if (path == null) {
+            return;
+        }
+        try {
+            if (saved == null) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            final Properties properties = new Properties();
+            properties.putAll(saved);
+            final Path temp = Paths.get(path.toString() + ".tmp");
+            try (final Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "Settings of " + indexName + " before bulk load");
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            LOGGER.warn("Cannot write bulk load settings of " + indexName, e);
+        }
+    }
+
+    /**
+     * @param name
+     *            an index or an alias
+     * @return the concrete indexes behind this name (empty if none)
+     */
+    private final Set<String> getConcreteIndexes(final String name) {
+        if (isConcreteIndex(name)) {
+            return Collections.singleton(name);
+        }
+        return getAliasedIndexes(name);
+    }
+
+    /**
+     * Start a bulk load session on this index, or on each index behind this alias: no refresh, no replica and larger
+     * translog until endBulkLoad.<br>
+     * The original settings of each concrete index are logged and, if GlobalDatas.bulkLoadSettingsFile is set, saved
+     * to a file until endBulkLoad, such that a bulk load interrupted by a crash still restores them (on next start or
+     * end).
+     *
+     * @param indexName
+     *            an index or an alias
+     * @return True if ok
+     */
+    public final boolean startBulkLoad(final String indexName) {
+        if (bulkLoadIndexes.containsKey(indexName)) {
+            return true;
+        }
+        try {
+            final Set<String> indexes = getConcreteIndexes(indexName);
+            if (indexes.isEmpty()) {
+                LOGGER.error("No index for " + indexName + ": bulk load not started");
+                return false;
+            }
+            boolean ack = true;
+            for (final String index : indexes) {
+                ack &= startIndexBulkLoad(index);
+            }
+            bulkLoadIndexes.put(indexName, indexes);
+            return ack;
+        } catch (final Exception e) {
+            LOGGER.error("Error while starting bulk load", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param indexName
+     *            a concrete index
+     * @return True if ok
+     */
+    private final boolean startIndexBulkLoad(final String indexName) {
+        if (bulkLoadSettings.containsKey(indexName)) {
+            return true;
+        }
+        // a previous bulk load not ended: its saved settings are the original ones
+        Map<String, String> saved = readBulkLoadSettings(indexName);
+        if (saved == null) {
+            final GetSettingsResponse current = getClient().admin().indices().prepareGetSettings(indexName)
+                    .execute().actionGet();
+            saved = new HashMap<String, String>();
+            for (final String setting : BULKLOAD_SETTINGS.keySet()) {
+                final String value = current.getSetting(indexName, setting);
+                saved.put(setting, value != null ? value : DEFAULT_SETTINGS.get(setting));
+            }
+            writeBulkLoadSettings(indexName, saved);
+        }
+        final boolean ack = getClient().admin().indices().prepareUpdateSettings(indexName)
+                .setSettings(ImmutableSettings.settingsBuilder().put(BULKLOAD_SETTINGS)).execute().actionGet().isAcknowledged();
+        bulkLoadSettings.put(indexName, saved);
+        LOGGER.info("Bulk load started on " + indexName + " (previous settings: " + saved + ")");
+        return ack;
+    }
+
+    /**
+     * End a bulk load session on this index, or on each index it was started on through this alias (even if the
+     * alias was switched since): previous settings restored (from memory or from the saved file), then refresh and
+     * optionally optimize
+     *
+     * @param indexName
+     *            an index or an alias
+     * @param maxSegments
+     *            if > 0, optimize the index down to this number of segments per shard
+     * @return True if ok
+     */
+    public final boolean endBulkLoad(final String indexName, final int maxSegments) {
+        try {
+            Set<String> indexes = bulkLoadIndexes.remove(indexName);
+            if (indexes == null) {
+                // not started by this process (crash): indexes currently behind this name
+                indexes = getConcreteIndexes(indexName);
+            }
+            if (indexes.isEmpty()) {
+                return false;
+            }
+            boolean ack = true;
+            for (final String index : indexes) {
+                ack &= endIndexBulkLoad(index, maxSegments);
+            }
+            return ack;
+        } catch (final Exception e) {
+            LOGGER.error("Error while ending bulk load", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param indexName
+     *            a concrete index
+     * @param maxSegments
+     * @return True if ok
+     */
+    private final boolean endIndexBulkLoad(final String indexName, final int maxSegments) {
+        Map<String, String> saved = bulkLoadSettings.remove(indexName);
+        if (saved == null) {
+            saved = readBulkLoadSettings(indexName);
+            if (saved == null) {
+                return false;
+            }
+        }
+        boolean ack = getClient().admin().indices().prepareUpdateSettings(indexName).setSettings(ImmutableSettings.settingsBuilder().put(saved)).execute()
+                .actionGet().isAcknowledged();
+        if (ack) {
+            writeBulkLoadSettings(indexName, null);
+        }
+        LOGGER.info("Settings restored on " + indexName + ": " + saved);
+        getClient().admin().indices().prepareRefresh(indexName).execute().actionGet();
+        if (maxSegments > 0) {
+            final long start = System.currentTimeMillis();
+            ack &= getClient().admin().indices().prepareOptimize(indexName).setMaxNumSegments(maxSegments)
+                    .setWaitForMerge(true).execute().actionGet().getFailedShards() == 0;
+            LOGGER.info("Optimize of " + indexName + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        LOGGER.info("Bulk load ended on " + indexName);
+        return ack;
+    }
+
+    /**
+     * Create the side index of stored sets of ids (not indexed, only used through terms lookup, with a TTL)
+     *
+     * @param setIndexName
+     */
+    private final void addSetIndex(final String setIndexName) {
+        try {
+            if (!getClient().admin().indices().prepareExists(setIndexName).execute().actionGet().isExists()) {
+                final String mapping = "{" + SETTYPE + " : { _ttl : { enabled : true, default : \"" + GlobalDatas.TTL + "s\" },"
+                        + "properties : { " + SETFIELD + " : { type : \"string\", index : \"no\" } } } }";
+                getClient().admin().indices().prepareCreate(setIndexName).addMapping(SETTYPE, mapping).execute().actionGet();
+            }
+        } catch (final Exception e) {
+            LOGGER.error("Error while creating set index", e);
+        }
+    }
+
+    /**
+     * Store once a set of ids in the side index.<br>
+     * Each storage uses a new document id, so that a set stored again (see forgetSet) never hits the terms lookup
+     * filter cache of its previous content.
+     *
+     * @param indexName
+     * @param setKey
+     * @param nodes
+     * @return the id of the stored document, or null if the set is not available in the side index
+     */
+    private final String storeSet(final String indexName, final String setKey, final String[] nodes) {
+        final String stored = storedSets.get(setKey);
+        if (stored != null) {
+            return stored;
+        }
+        final String docId = setKey + "_" + new UUID().toString();
+        try {
+            final XContentBuilder builder = XContentFactory.jsonBuilder().startObject().array(SETFIELD, (Object[]) nodes)
+                    .endObject();
+            getClient().prepareIndex(indexName + SETINDEX_SUFFIX, SETTYPE, docId).setSource(builder).execute().actionGet();
+            storedSets.put(setKey, docId);
+            return docId;
+        } catch (final Exception e) {
+            LOGGER.error("Error while storing set " + setKey, e);
+            return null;
+        }
+    }
+
+    /**
+     * Forget a stored set whose content may have changed (the stored document expires with its _ttl)
+     *
+     * @param setKey
+     */
+    public final void forgetSet(final String setKey) {
+        storedSets.remove(setKey);
+    }
+
+    /**
+     * Build the terms filter on field for nodes, as a terms lookup on the stored set if setKey is not null
+     *
+     * @param indexName
+     * @param field
+     * @param nodes
+     * @param setKey
+     *            the key of the stored set (null for an inline terms filter)
+     * @return the filter
+     */
+    private final FilterBuilder getTermsFilter(final String indexName, final String field, final String[] nodes,
+            final String setKey) {
+        final String docId = setKey != null ? storeSet(indexName, setKey, nodes) : null;
+        if (docId != null) {
+            return FilterBuilders.termsLookupFilter(field).lookupIndex(indexName + SETINDEX_SUFFIX).lookupType(SETTYPE)
+                    .lookupId(docId).lookupPath(SETFIELD).cacheKey(field + docId);
+        }
+        return FilterBuilders.termsFilter(field, nodes);
+    }
+
     /**
      * Add an entry in the ElasticSearch index
      *
@@ -231,15 +808,15 @@ public class ElasticSearchAccess {
      * @return True if ok
      */
     public final boolean addEntryIndex(final String indexName, final String type, final String id, final String json) {
-        return client.prepareIndex(indexName, type, id).setSource(json).setOpType(OpType.INDEX).execute().actionGet().getVersion() > 0;
+        return getClient().prepareIndex(indexName, type, id).setSource(json).setOpType(OpType.INDEX).execute().actionGet().getVersion() > 0;
     }
 
     private final ListenableActionFuture<BulkResponse> addEntryIndexesInternal(final String indexName, final String type, final Map<String, String> mapIdJson) {
-        final BulkRequestBuilder bulkRequest = client.prepareBulk();
+        final BulkRequestBuilder bulkRequest = getClient().prepareBulk();
         //bulkRequest.setRefresh(false);
         // either use client#prepare, or use Requests# to directly build index/delete requests
         for (final Entry<String, String> val : mapIdJson.entrySet()) {
-            bulkRequest.add(client.prepareIndex(indexName, type, val.getKey()).setSource(val.getValue())
+            bulkRequest.add(getClient().prepareIndex(indexName, type, val.getKey()).setSource(val.getValue())
                     //.setOpType(OpType.INDEX)
                     );
         }
@@ -275,10 +852,135 @@ public class ElasticSearchAccess {
         // Should process failures by iterating through each bulk response item
     }
     
-    private static final BasicDBObject getFiltered(final BSONObject bson) {
+    /**
+     * Apply a set of index (json not null) or delete (json null) operations in one bulk, in blocking mode
+     *
+     * @param indexName
+     * @param type
+     * @param mapIdJson
+     * @return the set of ids in failure (empty if all ok)
+     */
+    public final Set<String> applyEntryIndexesBlocking(final String indexName, final String type, final Map<String, String> mapIdJson) {
+        final BulkRequestBuilder bulkRequest = getClient().prepareBulk();
+        final List<String> deleted = new ArrayList<String>();
+        for (final Entry<String, String> val : mapIdJson.entrySet()) {
+            if (val.getValue() != null) {
+                bulkRequest.add(getClient().prepareIndex(indexName, type, val.getKey()).setSource(val.getValue()));
+            } else if (GlobalDatas.useDomainRouting) {
+                // routing is unknown for deleted documents
+                deleted.add(val.getKey());
+            } else {
+                bulkRequest.add(getClient().prepareDelete(indexName, type, val.getKey()));
+            }
+        }
+        final Set<String> failed = new HashSet<String>();
+        if (bulkRequest.numberOfActions() > 0) {
+            final BulkResponse bulkResponse = bulkRequest.execute().actionGet();
+            if (bulkResponse.hasFailures()) {
+                LOGGER.warn("ES bulk in error: " + bulkResponse.buildFailureMessage());
+                for (final BulkItemResponse item : bulkResponse.getItems()) {
+                    if (item.isFailed()) {
+                        failed.add(item.getId());
+                    }
+                }
+            }
+        }
+        if (!deleted.isEmpty()) {
+            try {
+                getClient().prepareDeleteByQuery(indexName).setTypes(type)
+                        .setQuery(QueryBuilders.idsQuery(type).ids(deleted.toArray(new String[0]))).execute().actionGet();
+            } catch (final Exception e) {
+                LOGGER.warn("ES delete in error", e);
+                failed.addAll(deleted);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     *
+     * @param bson
+     * @return the ElasticSearch source (filtered, without _id) as Json
+     */
+    static final String getEsSource(final BSONObject bson) {
+        final BasicDBObject maip = getFiltered(bson);
+        maip.removeField(VitamType.ID);
+        return maip.toString();
+    }
+
+    /**
+     * Stream the filtered DAip (as in getFiltered, without _id) directly into a builder, without any intermediate
+     * copy or String
+     *
+     * @param bson
+     * @return the builder holding the ES source
+     * @throws IOException
+     */
+    static final XContentBuilder getEsSourceBuilder(final BSONObject bson) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        for (final String key : bson.keySet()) {
+            if (key.equals(VitamType.ID) || key.equals(VitamLinks.DAip2DAip.field1to2) || key.equals(DAip.DAIPANCESTORS)
+                    || key.equals(DAip.DAIPPARENTS)) {
+                continue;
+            }
+            writeField(builder, key, bson.get(key));
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Integer> map = (Map<String, Integer>) bson.get(DAip.DAIPDEPTHS);
+        builder.field(DAip.DAIPPARENTS, map.keySet());
+        if (GlobalDatas.useDomainRouting && !bson.containsField(DAip.DAIPROOT)) {
+            @SuppressWarnings("unchecked")
+            final String root = DAip.getRootDomain(map, (Collection<String>) bson.get(VitamLinks.Domain2DAip.field2to1));
+            if (root != null) {
+                builder.field(DAip.DAIPROOT, root);
+            }
+        }
+        return builder.endObject();
+    }
+
+    private static final void writeField(final XContentBuilder builder, final String key, final Object value)
+            throws IOException {
+        if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+                || value instanceof Map || value instanceof BSONObject || value instanceof Iterable) {
+            builder.field(key);
+            writeValue(builder, value);
+        } else {
+            // keep the MongoDB JSON form of other types (as in BasicDBObject.toString)
+            builder.rawField(key, JSON.serialize(value).getBytes(FileUtil.UTF8));
+        }
+    }
+
+    private static final void writeValue(final XContentBuilder builder, final Object value) throws IOException {
+        if (value instanceof Iterable) {
+            builder.startArray();
+            for (final Object item : (Iterable<?>) value) {
+                writeValue(builder, item);
+            }
+            builder.endArray();
+        } else if (value instanceof BSONObject) {
+            final BSONObject object = (BSONObject) value;
+            builder.startObject();
+            for (final String key : object.keySet()) {
+                writeField(builder, key, object.get(key));
+            }
+            builder.endObject();
+        } else if (value instanceof Map) {
+            builder.startObject();
+            for (final Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeField(builder, String.valueOf(entry.getKey()), entry.getValue());
+            }
+            builder.endObject();
+        } else {
+            builder.value(value);
+        }
+    }
+
+    static final BasicDBObject getFiltered(final BSONObject bson) {
         BasicDBObject maip = new BasicDBObject();
         maip.putAll(bson);
         maip.removeField(VitamLinks.DAip2DAip.field1to2);
+        // MongoDB only index, ES uses DAIPPARENTS
+        maip.removeField(DAip.DAIPANCESTORS);
         // Keep it maip.removeField(VitamLinks.DAip2DAip.field2to1);
         //maip.removeField(VitamLinks.Domain2DAip.field2to1);
         //maip.removeField(VitamLinks.DAip2Dua.field1to2);
@@ -289,6 +991,13 @@ public class ElasticSearchAccess {
         final HashMap<String, Integer> map = (HashMap<String, Integer>) maip.get(DAip.DAIPDEPTHS);
         //final List<String> list = new ArrayList<>(map.keySet());
         maip.append(DAip.DAIPPARENTS, map.keySet());// was list);
+        if (GlobalDatas.useDomainRouting && !maip.containsField(DAip.DAIPROOT)) {
+            @SuppressWarnings("unchecked")
+            final String root = DAip.getRootDomain(map, (Collection<String>) maip.get(VitamLinks.Domain2DAip.field2to1));
+            if (root != null) {
+                maip.append(DAip.DAIPROOT, root);
+            }
+        }
         return maip;
     }
     /**
@@ -314,10 +1023,22 @@ public class ElasticSearchAccess {
      * @param model
      * @param indexes
      * @param bson
-     * @return the number of DAip incorporated (0 if none)
+     * @return the number of DAip incorporated (0 if none). With the bulk pipeline, documents are only queued so 0 is
+     *         returned: the outcome is given by MongoDbAccess.flushEsEntryIndex
      */
     public static final int addEsIndex(final MongoDbAccess dbvitam, final String model, final Map<String, String> indexes,
             final BSONObject bson) {
+        if (GlobalDatas.useBulkPipeline) {
+            // streamed directly into the bulk pipeline (indexes is not used)
+            try {
+                dbvitam.getBulkIndexer().add(GlobalDatas.INDEXNAME, model, (String) bson.get(VitamType.ID),
+                        getEsSourceBuilder(bson));
+                return 0;
+            } catch (final IOException e) {
+                LOGGER.error("Cannot serialize " + bson.get(VitamType.ID), e);
+                return 0;
+            }
+        }
         BasicDBObject maip = getFiltered(bson);
         final String id = maip.getString(VitamType.ID);
         maip.removeField(VitamType.ID);
@@ -363,17 +1084,29 @@ public class ElasticSearchAccess {
      * @param subdepth
      * @param condition
      * @param filterCond
+     * @param routing
+     *            the routing keys (root Domains) to target, or null for all shards
+     * @param setKey
+     *            the key of currentNodes as stored set for terms lookup, or null for inline terms
      * @return the ResultInterface associated with this request. 
      *         Note that the exact depth is not checked, so it must be checked
      *         after (using checkAncestor method)
      */
     public final ResultInterface getSubDepth(final String indexName, final String type, final String[] currentNodes,
-            final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond) {
+            final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond, final String[] routing,
+            final String setKey) {
+        if (setKey == null && GlobalDatas.useChunkedSearch && currentNodes.length > GlobalDatas.esChunkSize) {
+            return getSubDepthChunked(indexName, type, currentNodes, subdepth, condition, filterCond, routing);
+        }
         QueryBuilder query = null;
         FilterBuilder filter = null;
         if (GlobalDatas.useFilter) {
-            filter = getSubDepthFilter(filterCond, currentNodes, subdepth);
+            filter = getSubDepthFilter(indexName, filterCond, currentNodes, subdepth, setKey);
             query = condition;
+        } else if (setKey != null) {
+            query = QueryBuilders.boolQuery().must(QueryBuilders.constantScoreQuery(
+                    getSubDepthFilter(indexName, null, currentNodes, subdepth, setKey))).must(condition);
+            filter = filterCond;
         } else {
             /*
              * filter where domdepths (currentNodes as (grand)parents, depth<=subdepth)
@@ -408,19 +1141,21 @@ public class ElasticSearchAccess {
             query = QueryBuilders.boolQuery().must(domdepths).must(condition);
             filter = filterCond;
         }
-        return search(indexName, type, query, filter);
+        return search(indexName, type, query, filter, routing);
     }
 
     /**
      * Build the filter and facet filter for subdepth and currentNodes
      *
+     * @param indexName
      * @param filterCond
      * @param currentNodes
-     * @param key
      * @param subdepth
+     * @param setKey
      * @return the associated filter
      */
-    private final FilterBuilder getSubDepthFilter(final FilterBuilder filterCond, final String[] currentNodes, final int subdepth) {
+    private final FilterBuilder getSubDepthFilter(final String indexName, final FilterBuilder filterCond,
+            final String[] currentNodes, final int subdepth, final String setKey) {
         /*
          * filter where domdepths (currentNodes as (grand)parents, depth<=subdepth)
          */
@@ -428,14 +1163,14 @@ public class ElasticSearchAccess {
         FilterBuilder filter = null;
         if (subdepth == 1) {
             filter = FilterBuilders.boolFilter()
-                    .should(FilterBuilders.termsFilter(VitamLinks.DAip2DAip.field2to1, currentNodes))
-                    .should(FilterBuilders.termsFilter(VitamLinks.Domain2DAip.field2to1, currentNodes));
+                    .should(getTermsFilter(indexName, VitamLinks.DAip2DAip.field2to1, currentNodes, setKey))
+                    .should(getTermsFilter(indexName, VitamLinks.Domain2DAip.field2to1, currentNodes, setKey));
             if (GlobalDatas.PRINT_REQUEST) {
                 LOGGER.warn("Filter: terms {} or {} = {}", VitamLinks.DAip2DAip.field2to1, 
                         VitamLinks.Domain2DAip.field2to1, currentNodes);
             }
         } else {
-            filter = FilterBuilders.termsFilter(DAip.DAIPPARENTS, currentNodes);
+            filter = getTermsFilter(indexName, DAip.DAIPPARENTS, currentNodes, setKey);
             if (GlobalDatas.PRINT_REQUEST) {
                 LOGGER.warn("ESReq: terms {} = {}", DAip.DAIPPARENTS, currentNodes);
             }
@@ -498,17 +1233,26 @@ public class ElasticSearchAccess {
     * @param subdepth
     * @param condition
     * @param filterCond
+    * @param routing
+    *            the routing keys (root Domains) to target, or null for all shards
+    * @param setKey
+    *            the key of currentNodes as stored set for terms lookup, or null for inline ids
     * @return the ResultInterface associated with this request. 
     *         Note that the exact depth is not checked, so it must be checked
     *         after (using checkAncestor method)
     */
    public final ResultInterface getSubDepthStart(final String indexName, final String type, final String[] currentNodes,
-           final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond) {
+           final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond, final String[] routing,
+           final String setKey) {
        QueryBuilder query = null;
        FilterBuilder filter = null;
        if (GlobalDatas.useFilter) {
-           filter = getSubDepthFilterStart(filterCond, currentNodes, subdepth);
+           filter = getSubDepthFilterStart(indexName, filterCond, currentNodes, subdepth, setKey);
            query = condition;
+       } else if (setKey != null) {
+           query = QueryBuilders.boolQuery().must(QueryBuilders.constantScoreQuery(
+                   getSubDepthFilterStart(indexName, null, currentNodes, subdepth, setKey))).must(condition);
+           filter = filterCond;
        } else {
            /*
             * filter where domdepths (currentNodes as list of ids)
@@ -520,24 +1264,31 @@ public class ElasticSearchAccess {
            query = QueryBuilders.boolQuery().must(domdepths).must(condition);
            filter = filterCond;
        }
-       return search(indexName, type, query, filter);
+       return search(indexName, type, query, filter, routing);
    }
 
    /**
     * Build the filter and facet filter for subdepth and currentNodes
     *
+    * @param indexName
     * @param filterCond
     * @param currentNodes
-    * @param key
     * @param subdepth
+    * @param setKey
     * @return the associated filter
     */
-   private final FilterBuilder getSubDepthFilterStart(final FilterBuilder filterCond, final String[] currentNodes, final int subdepth) {
+   private final FilterBuilder getSubDepthFilterStart(final String indexName, final FilterBuilder filterCond,
+           final String[] currentNodes, final int subdepth, final String setKey) {
        /*
         * filter where domdepths (currentNodes as list of ids)
         */
        FilterBuilder domdepths = null;
-       IdsFilterBuilder filter = FilterBuilders.idsFilter(currentNodes);
+       FilterBuilder filter = null;
+       if (setKey != null) {
+           filter = getTermsFilter(indexName, DAip.ID, currentNodes, setKey);
+       } else {
+           filter = FilterBuilders.idsFilter(currentNodes);
+       }
        if (filterCond != null) {
            domdepths = FilterBuilders.boolFilter().must(filter).must(filterCond);
        } else {
@@ -553,10 +1304,14 @@ public class ElasticSearchAccess {
     * @param subset subset of valid nodes
     * @param condition
     * @param filterCond
+    * @param routing
+    *            the routing keys (root Domains) to target, or null for all shards
+    * @param setKey
+    *            the key of subset as stored set for terms lookup, or null for inline terms
     * @return the ResultInterface associated with this request. 
     */
    public final ResultInterface getNegativeSubDepth(final String indexName, final String type, final String[] subset,
-           final QueryBuilder condition, final FilterBuilder filterCond) {
+           final QueryBuilder condition, final FilterBuilder filterCond, final String[] routing, final String setKey) {
        QueryBuilder query = null;
        FilterBuilder filter = null;
        
@@ -564,8 +1319,7 @@ public class ElasticSearchAccess {
            /*
             * filter where id from subset
             */
-           TermsFilterBuilder filterTerms = null;
-           filterTerms = FilterBuilders.termsFilter(DAip.ID, subset);
+           final FilterBuilder filterTerms = getTermsFilter(indexName, DAip.ID, subset, setKey);
            if (filterCond != null) {
                filter = FilterBuilders.boolFilter().must(filterTerms).must(filterCond);
            } else {
@@ -577,14 +1331,18 @@ public class ElasticSearchAccess {
             * filter where id from subset
             */
            QueryBuilder domdepths = null;
-           domdepths = QueryBuilders.termsQuery(DAip.ID, subset);
+           if (setKey != null) {
+               domdepths = QueryBuilders.constantScoreQuery(getTermsFilter(indexName, DAip.ID, subset, setKey));
+           } else {
+               domdepths = QueryBuilders.termsQuery(DAip.ID, subset);
+           }
            /*
             * Condition query
             */
            query = QueryBuilders.boolQuery().must(domdepths).must(condition);
            filter = filterCond;
        }
-       return search(indexName, type, query, filter);
+       return search(indexName, type, query, filter, routing);
    }
 
    /**
@@ -597,14 +1355,74 @@ public class ElasticSearchAccess {
      *            as in DSL mode "{ "fieldname" : "value" }" "{ "match" : { "fieldname" : "value" } }"
      *            "{ "ids" : { "values" : [list of id] } }"
      * @param filter
+     * @param routing
+     *            the routing keys (root Domains) to target, or null for all shards
      * @return a structure as ResultInterface
      */
     protected final ResultInterface search(final String indexName, final String type, final QueryBuilder query,
-            final FilterBuilder filter) {
+            final FilterBuilder filter, final String[] routing) {
+        final Map<String, Long> hits = new HashMap<String, Long>();
+        if (!searchHits(indexName, type, query, filter, routing, hits, false)) {
+            return null;
+        }
+        return toResult(hits);
+    }
+
+    /**
+     * @param hits
+     *            map of id and number of immediate children
+     * @return the corresponding ResultInterface
+     */
+    private static final ResultInterface toResult(final Map<String, Long> hits) {
+        long nb = 0;
+        final ResultInterface resultRequest = MongoDbAccess.createOneResult();
+        for (final Entry<String, Long> hit : hits.entrySet()) {
+            nb += hit.getValue();
+            resultRequest.getCurrentDaip().add(hit.getKey());
+        }
+        resultRequest.setNbSubNodes(nb);
+        if (GlobalDatas.PRINT_REQUEST) {
+            LOGGER.warn("FinalEsResult: {} : {}", resultRequest.getCurrentDaip(), resultRequest.getNbSubNodes());
+        }
+        return resultRequest;
+    }
+
+    /**
+     *
+     * @param indexName
+     * @param type
+     * @param query
+     * @param filter
+     * @param routing
+     *            the routing keys (root Domains) to target, or null for all shards
+     * @param result
+     *            the map to fill with id and number of immediate children of each hit
+     * @param failOnError
+     *            if True, a request in error throws an IllegalStateException instead of returning False
+     * @return False if the request is in error or has no result
+     */
+    private final boolean searchHits(final String indexName, final String type, final QueryBuilder query,
+            final FilterBuilder filter, final String[] routing, final Map<String, Long> result,
+            final boolean failOnError) {
         // Note: Could change the code to allow multiple indexes and multiple types
-        SearchRequestBuilder request = client.prepareSearch(indexName).setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
+        final boolean idOnly = GlobalDatas.useIdOnlySearch;
+        SearchRequestBuilder request = getClient().prepareSearch(indexName)
+                .setSearchType(idOnly ? SearchType.QUERY_THEN_FETCH : SearchType.DFS_QUERY_THEN_FETCH)
                 .setTypes(type).setExplain(false).setSize(GlobalDatas.limitLoad);
-        if (filter != null) {
+        if (routing != null) {
+            request.setRouting(routing);
+        }
+        if (idOnly) {
+            // no scoring, no source: only ids and _nb from field data
+            request.setFetchSource(false).addFieldDataField(DAip.NBCHILD);
+            if (query == null) {
+                request.setQuery(filter == null ? QueryBuilders.matchAllQuery() : QueryBuilders.constantScoreQuery(filter));
+            } else if (filter != null) {
+                request.setQuery(QueryBuilders.constantScoreQuery(QueryBuilders.filteredQuery(query, filter)));
+            } else {
+                request.setQuery(QueryBuilders.constantScoreQuery(query));
+            }
+        } else if (filter != null) {
             if (GlobalDatas.useFilteredRequest) {
                 FilteredQueryBuilder filteredQueryBuilder = QueryBuilders.filteredQuery(query, filter);
                 request.setQuery(filteredQueryBuilder);
@@ -619,10 +1437,18 @@ public class ElasticSearchAccess {
         } else {
             LOGGER.debug("ESReq: {}", request);
         }
-        final SearchResponse response = request.execute().actionGet();
+        final SearchResponse response;
+        if (GlobalDatas.useSearchBatching) {
+            response = getSearchBatcher().search(request);
+        } else {
+            response = request.execute().actionGet();
+        }
         if (response.status() != RestStatus.OK) {
             LOGGER.error("Error " + response.status() + " from : " + request + ":" + query + " # " + filter);
-            return null;
+            if (failOnError) {
+                throw new IllegalStateException("Search in error: " + response.status());
+            }
+            return false;
         }
         final SearchHits hits = response.getHits();
         if (hits.getTotalHits() > GlobalDatas.limitLoad) {
@@ -630,21 +1456,23 @@ public class ElasticSearchAccess {
         }
         if (hits.getTotalHits() == 0) {
             LOGGER.error("No result from : " + request);
-            return null;
+            return false;
         }
-        long nb = 0;
-        final ResultInterface resultRequest = MongoDbAccess.createOneResult();
         final Iterator<SearchHit> iterator = hits.iterator();
         while (iterator.hasNext()) {
             final SearchHit hit = iterator.next();
             final String id = hit.getId();
+            long nb = 0;
+            final SearchHitField field = idOnly ? hit.field(DAip.NBCHILD) : null;
             final Map<String, Object> src = hit.getSource();
-            if (src != null) {
+            if (field != null && field.getValue() instanceof Number) {
+                nb = ((Number) field.getValue()).longValue();
+            } else if (src != null) {
                 final Object val = src.get(DAip.NBCHILD);
                 if (val == null) {
                     LOGGER.error("Not found " + DAip.NBCHILD);
                 } else if (val instanceof Integer) {
-                    nb += (Integer) val;
+                    nb = (Integer) val;
                     if (GlobalDatas.PRINT_REQUEST) {
                         LOGGER.warn("Result: {} : {}", id, val);
                     }
@@ -652,13 +1480,159 @@ public class ElasticSearchAccess {
                     LOGGER.error("Not Integer: " + val.getClass().getName());
                 }
             }
-            resultRequest.getCurrentDaip().add(id);
+            result.put(id, nb);
+        }
+        return true;
+    }
+
+    /**
+     * Compute an aggregation over the given DAip, returning only the buckets
+     *
+     * @param indexName
+     * @param type
+     * @param ids
+     *            the DAip ids to aggregate
+     * @param aggregation
+     * @param routing
+     *            the routing keys (root Domains) to target, or null for all shards
+     * @param setKey
+     *            the key of ids as stored set for terms lookup, or null for inline terms
+     * @return the buckets (key, count), or null if in error
+     */
+    public final Map<String, Long> aggregate(final String indexName, final String type, final String[] ids,
+            final DbAggregation aggregation, final String[] routing, final String setKey) {
+        final SearchRequestBuilder request = getClient().prepareSearch(indexName).setSearchType(SearchType.COUNT)
+                .setTypes(type).setQuery(QueryBuilders.constantScoreQuery(getTermsFilter(indexName, DAip.ID, ids, setKey)))
+                .addAggregation(aggregation.getEsAggregation());
+        if (routing != null) {
+            request.setRouting(routing);
         }
-        resultRequest.setNbSubNodes(nb);
         if (GlobalDatas.PRINT_REQUEST) {
-            LOGGER.warn("FinalEsResult: {} : {}", resultRequest.getCurrentDaip(), resultRequest.getNbSubNodes());
+            LOGGER.warn("ESAgg: {}", request);
+        } else {
+            LOGGER.debug("ESAgg: {}", request);
         }
-        return resultRequest;
+        final SearchResponse response = request.execute().actionGet();
+        if (response.status() != RestStatus.OK) {
+            LOGGER.error("Error " + response.status() + " from : " + request);
+            return null;
+        }
+        return aggregation.getBuckets((MultiBucketsAggregation) response.getAggregations().get(DbAggregation.NAME));
+    }
+
+    /**
+     * Search by chunks of currentNodes, concurrently, merging the results (ids and number of immediate children).<br>
+     * If any chunk fails, the whole search fails (never a partial result).
+     *
+     * @param indexName
+     * @param type
+     * @param currentNodes
+     * @param subdepth
+     * @param condition
+     * @param filterCond
+     * @param routing
+     * @return the merged ResultInterface, or null if no result
+     * @throws IllegalStateException
+     *             if a chunk is in error or the search is interrupted
+     */
+    private final ResultInterface getSubDepthChunked(final String indexName, final String type, final String[] currentNodes,
+            final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond, final String[] routing) {
+        final int chunkSize = GlobalDatas.esChunkSize;
+        final int nbChunks = (currentNodes.length + chunkSize - 1) / chunkSize;
+        final List<Future<Map<String, Long>>> futures = new ArrayList<Future<Map<String, Long>>>(nbChunks);
+        final ExecutorService executor = getChunkExecutor();
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < nbChunks; i++) {
+            final int rank = i;
+            final String[] chunk = Arrays.copyOfRange(currentNodes, i * chunkSize,
+                    Math.min(currentNodes.length, (i + 1) * chunkSize));
+            futures.add(executor.submit(new Callable<Map<String, Long>>() {
+                @Override
+                public Map<String, Long> call() {
+                    final long chunkStart = System.currentTimeMillis();
+                    final Map<String, Long> hits = new HashMap<String, Long>();
+                    final QueryBuilder query;
+                    final FilterBuilder filter;
+                    if (GlobalDatas.useFilter) {
+                        filter = getSubDepthFilter(indexName, filterCond, chunk, subdepth, null);
+                        query = condition;
+                    } else {
+                        query = QueryBuilders.boolQuery().must(QueryBuilders.constantScoreQuery(
+                                getSubDepthFilter(indexName, null, chunk, subdepth, null))).must(condition);
+                        filter = filterCond;
+                    }
+                    // a chunk without hit is valid, a chunk in error fails the whole search
+                    searchHits(indexName, type, query, filter, routing, hits, true);
+                    final long time = System.currentTimeMillis() - chunkStart;
+                    if (GlobalDatas.PRINT_REQUEST) {
+                        LOGGER.warn("Chunk {}/{}: {} nodes, {} hits in {} ms", rank + 1, nbChunks, chunk.length,
+                                hits.size(), time);
+                    } else {
+                        LOGGER.debug("Chunk {}/{}: {} nodes, {} hits in {} ms", rank + 1, nbChunks, chunk.length,
+                                hits.size(), time);
+                    }
+                    return hits;
+                }
+            }));
+        }
+        // same DAip could be found from several chunks: merge by id
+        final Map<String, Long> hits = new HashMap<String, Long>();
+        try {
+            for (final Future<Map<String, Long>> future : futures) {
+                hits.putAll(future.get());
+            }
+        } catch (final InterruptedException e) {
+            LOGGER.error("Chunked search interrupted", e);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Chunked search interrupted", e);
+        } catch (final ExecutionException e) {
+            LOGGER.error("Chunked search in error", e);
+            // as a not chunked search, propagate the error of the chunk
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Chunked search in error", e.getCause());
+        } finally {
+            for (final Future<Map<String, Long>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        LOGGER.debug("Chunked search: {} chunks, {} hits in {} ms", nbChunks, hits.size(),
+                System.currentTimeMillis() - start);
+        if (hits.isEmpty()) {
+            return null;
+        }
+        return toResult(hits);
+    }
+
+    /**
+     *
+     * @return the multi search batcher
+     */
+    private final synchronized EsSearchBatcher getSearchBatcher() {
+        if (searchBatcher == null) {
+            searchBatcher = new EsSearchBatcher(getClient(), GlobalDatas.esBatchWindow, GlobalDatas.esBatchMax,
+                    GlobalDatas.esBatchTimeout);
+        }
+        return searchBatcher;
+    }
+
+    /**
+     *
+     * @return the executor for chunked searches
+     */
+    private final synchronized ExecutorService getChunkExecutor() {
+        if (chunkExecutor == null) {
+            chunkExecutor = Executors.newFixedThreadPool(GlobalDatas.esChunkConcurrency, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "EsChunk");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return chunkExecutor;
     }
 
 }
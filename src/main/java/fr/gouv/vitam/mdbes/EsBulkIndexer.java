@@ -0,0 +1,293 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.utils.logging.VitamLogger;
+import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+
+/**
+ * Asynchronous bulk indexing pipeline into ElasticSearch.<br>
+ * <br>
+ * Bulks are flushed by number of actions, size in bytes or interval, with several bulks in flight; when all of them
+ * are in flight, add blocks (backpressure). Items rejected by the cluster (queue full or unavailable) are retried
+ * with an exponential backoff, other failures are counted and logged.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class EsBulkIndexer {
+    private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(EsBulkIndexer.class);
+
+    private final BulkProcessor processor;
+    private final ScheduledExecutorService retryExecutor;
+    private final int maxRetry;
+    /**
+     * Number of attempts of the items being retried, by request (the same request is added again on retry, while
+     * several requests may share one document id)
+     */
+    private final ConcurrentHashMap<ActionRequest<?>, Integer> retries = new ConcurrentHashMap<ActionRequest<?>, Integer>();
+    private final AtomicLong nbAdded = new AtomicLong(0);
+    private final AtomicLong nbIndexed = new AtomicLong(0);
+    private final AtomicLong nbFailed = new AtomicLong(0);
+    private final AtomicLong nbRetried = new AtomicLong(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    /**
+     * @param client
+     * @param bulkActions
+     *            max number of actions per bulk
+     * @param bulkSizeMb
+     *            max size in MB per bulk
+     * @param flushInterval
+     *            max delay in ms before a non full bulk is sent
+     * @param concurrency
+     *            max number of bulks in flight
+     * @param maxRetry
+     *            max number of retries of rejected items
+     */
+    public EsBulkIndexer(final Client client, final int bulkActions, final int bulkSizeMb, final long flushInterval,
+            final int concurrency, final int maxRetry) {
+        this.maxRetry = maxRetry;
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "EsBulkRetry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        processor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(final long executionId, final BulkRequest request) {
+                inFlight.incrementAndGet();
+            }
+
+            @Override
+            public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+                inFlight.decrementAndGet();
+                for (final BulkItemResponse item : response.getItems()) {
+                    final ActionRequest<?> action = request.requests().get(item.getItemId());
+                    if (!item.isFailed()) {
+                        nbIndexed.incrementAndGet();
+                        retries.remove(action);
+                    } else if (isRetryable(item)) {
+                        retry(item.getId(), action);
+                    } else {
+                        LOGGER.error("ES index in error for " + item.getId() + ": " + item.getFailureMessage());
+                        failed(action);
+                    }
+                }
+            }
+
+            @Override
+            public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+                inFlight.decrementAndGet();
+                LOGGER.warn("ES bulk in error, will retry " + request.numberOfActions() + " items", failure);
+                for (final ActionRequest<?> action : request.requests()) {
+                    if (action instanceof IndexRequest) {
+                        retry(((IndexRequest) action).id(), action);
+                    }
+                }
+            }
+        }).setName("EsBulk").setBulkActions(bulkActions).setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setFlushInterval(TimeValue.timeValueMillis(flushInterval)).setConcurrentRequests(concurrency).build();
+    }
+
+    /**
+     * Create a pipeline from GlobalDatas settings
+     *
+     * @param client
+     */
+    public EsBulkIndexer(final Client client) {
+        this(client, GlobalDatas.LIMIT_ES_NEW_INDEX, GlobalDatas.esBulkSizeMb, GlobalDatas.esBulkFlushInterval,
+                GlobalDatas.esBulkConcurrency, 5);
+    }
+
+    private static final boolean isRetryable(final BulkItemResponse item) {
+        final RestStatus status = item.getFailure().getStatus();
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private final void failed(final ActionRequest<?> action) {
+        retries.remove(action);
+        nbFailed.incrementAndGet();
+    }
+
+    private final void retry(final String id, final ActionRequest<?> action) {
+        Integer attempt = retries.get(action);
+        attempt = attempt == null ? 1 : attempt + 1;
+        if (attempt > maxRetry || !(action instanceof IndexRequest)) {
+            LOGGER.error("ES index abandoned for " + id + " after " + (attempt - 1) + " retries");
+            failed(action);
+            return;
+        }
+        retries.put(action, attempt);
+        nbRetried.incrementAndGet();
+        final long backoff = 100L << (attempt - 1);
+        retryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                processor.add((IndexRequest) action);
+            }
+        }, backoff, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add one document (blocking if all bulks are in flight)
+     *
+     * @param indexName
+     * @param type
+     * @param id
+     * @param json
+     */
+    public void add(final String indexName, final String type, final String id, final String json) {
+        nbAdded.incrementAndGet();
+        processor.add(new IndexRequest(indexName, type, id).source(json));
+    }
+
+    /**
+     * Add one document already serialized in a builder (blocking if all bulks are in flight)
+     *
+     * @param indexName
+     * @param type
+     * @param id
+     * @param source
+     */
+    public void add(final String indexName, final String type, final String id, final XContentBuilder source) {
+        nbAdded.incrementAndGet();
+        processor.add(new IndexRequest(indexName, type, id).source(source));
+    }
+
+    /**
+     * Flush and wait until all added documents are indexed or failed
+     *
+     * @param timeout
+     *            max wait in ms
+     * @return True if all documents are processed
+     */
+    public boolean flush(final long timeout) {
+        final long limit = System.currentTimeMillis() + timeout;
+        while (getQueueDepth() > 0) {
+            processor.flush();
+            if (System.currentTimeMillis() > limit) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Flush and close the pipeline. Documents still pending after timeout (including scheduled retries) are given
+     * up and counted as failed.
+     *
+     * @param timeout
+     *            max wait in ms
+     * @return True if all documents were processed, False if some were given up
+     */
+    public boolean close(final long timeout) {
+        final boolean done = flush(timeout);
+        retryExecutor.shutdownNow();
+        processor.close();
+        if (!done) {
+            final long pending = getQueueDepth();
+            if (pending > 0) {
+                nbFailed.addAndGet(pending);
+                retries.clear();
+                LOGGER.error("ES bulk closed before the end, " + pending + " documents given up: " + this);
+            }
+        }
+        return done;
+    }
+
+    /**
+     *
+     * @return the number of documents added and not yet indexed or failed
+     */
+    public long getQueueDepth() {
+        return nbAdded.get() - nbIndexed.get() - nbFailed.get();
+    }
+
+    /**
+     *
+     * @return the number of bulks in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     *
+     * @return the number of documents indexed
+     */
+    public long getNbIndexed() {
+        return nbIndexed.get();
+    }
+
+    /**
+     *
+     * @return the number of documents given up
+     */
+    public long getNbFailed() {
+        return nbFailed.get();
+    }
+
+    /**
+     *
+     * @return the number of retries
+     */
+    public long getNbRetried() {
+        return nbRetried.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EsBulkIndexer: queue " + getQueueDepth() + ", inFlight " + getInFlight() + ", indexed " + getNbIndexed()
+                + ", retried " + getNbRetried() + ", failed " + getNbFailed();
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import fr.gouv.vitam.mdbes.MongoDbAccess.VitamLinks;
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.query.parser.AbstractQueryParser;
+import fr.gouv.vitam.query.parser.ParserTokens;
+
+/**
+ * ElasticSearch mapping of DAip, generated from the structural fields and, if any, the model fields.<br>
+ * <br>
+ * Not analyzed fields (prefixed by "_na_"), dates and numbers are typed with doc values (cheap filters and sorts,
+ * off heap). Dates being stored as { "$date" : value }, the date is the "$date" sub field.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class EsMapping {
+    /**
+     * Type of model field (as in ingest models)
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    public static enum FTYPE {
+        /**
+         * String (not analyzed if prefixed by "_na_")
+         */
+        chaine,
+        /**
+         * Date
+         */
+        date,
+        /**
+         * Integer number
+         */
+        nombre,
+        /**
+         * Decimal number
+         */
+        nombrevirgule
+    }
+
+    private static final String TYPE = "type";
+    private static final String INDEX = "index";
+    private static final String NOT_ANALYZED = "not_analyzed";
+    private static final String DOC_VALUES = "doc_values";
+    private static final String PROPERTIES = "properties";
+
+    private EsMapping() {
+        // empty
+    }
+
+    /**
+     *
+     * @param type
+     * @param fields
+     *            the model fields (sub fields as "field.subfield") with their type, or null for structural only
+     * @return the mapping of this type as Json
+     * @throws IOException
+     */
+    public static final String getMapping(final String type, final Map<String, FTYPE> fields) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject(type);
+        // Will keep NBCHILD as value to get (_id is implicit)
+        builder.startObject("_source").array("includes", DAip.NBCHILD).endObject();
+        // Routing by root Domain when present
+        builder.startObject("_routing").field("required", false).field("path", DAip.DAIPROOT).endObject();
+        if (fields != null && GlobalDatas.esModelOnlyMapping) {
+            // fields out of the model are kept but not indexed
+            builder.field("dynamic", false);
+        }
+        // not analyzed fields out of the model
+        builder.startArray("dynamic_templates").startObject().startObject("notanalyzed")
+                .field("match", AbstractQueryParser._NA + "*").field("match_mapping_type", "string")
+                .startObject("mapping").field(TYPE, "string").field(INDEX, NOT_ANALYZED).field(DOC_VALUES, true)
+                .endObject().endObject().endObject().endArray();
+        builder.startObject(PROPERTIES);
+        // DAIPDEPTHS will not be parsed and analyzed since it cannot be requested efficiently { UUID1 : depth2, UUID2 :
+        // depth2 }
+        builder.startObject(DAip.DAIPDEPTHS).field(TYPE, "object").field("enabled", false).endObject();
+        // DAIPPARENTS will be included but not tokenized [ UUID1, UUID2 ]
+        notAnalyzed(builder, DAip.DAIPPARENTS);
+        // NBCHILD as the number of immediate child
+        builder.startObject(DAip.NBCHILD).field(TYPE, "long").endObject();
+        // Immediate parents will be included but not tokenized [ UUID1, UUID2 ]
+        notAnalyzed(builder, VitamLinks.DAip2DAip.field2to1);
+        // This item does not exist and therefore should not be analyzed neither exist
+        builder.startObject(VitamLinks.DAip2DAip.field1to2).field(TYPE, "object").field("enabled", false).endObject();
+        notAnalyzed(builder, VitamLinks.Domain2DAip.field2to1);
+        notAnalyzed(builder, VitamLinks.DAip2Dua.field1to2);
+        notAnalyzed(builder, VitamLinks.DAip2PAip.field1to2);
+        notAnalyzed(builder, DAip.DAIPROOT);
+        if (fields != null) {
+            addFields(builder, toTree(fields));
+        }
+        return builder.endObject().endObject().endObject().string();
+    }
+
+    private static final void notAnalyzed(final XContentBuilder builder, final String field) throws IOException {
+        builder.startObject(field).field(TYPE, "string").field(INDEX, NOT_ANALYZED).endObject();
+    }
+
+    /**
+     * @param fields
+     * @return the fields as a tree (sub fields in sub maps)
+     */
+    @SuppressWarnings("unchecked")
+    private static final Map<String, Object> toTree(final Map<String, FTYPE> fields) {
+        final Map<String, Object> tree = new TreeMap<String, Object>();
+        for (final Entry<String, FTYPE> entry : fields.entrySet()) {
+            final String[] names = entry.getKey().split("\\.");
+            Map<String, Object> current = tree;
+            for (int i = 0; i < names.length - 1; i++) {
+                Object sub = current.get(names[i]);
+                if (!(sub instanceof Map)) {
+                    sub = new TreeMap<String, Object>();
+                    current.put(names[i], sub);
+                }
+                current = (Map<String, Object>) sub;
+            }
+            if (!current.containsKey(names[names.length - 1])) {
+                current.put(names[names.length - 1], entry.getValue());
+            }
+        }
+        return tree;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final void addFields(final XContentBuilder builder, final Map<String, Object> tree)
+            throws IOException {
+        for (final Entry<String, Object> entry : tree.entrySet()) {
+            final String name = entry.getKey();
+            if (entry.getValue() instanceof Map) {
+                builder.startObject(name).field(TYPE, "object").startObject(PROPERTIES);
+                addFields(builder, (Map<String, Object>) entry.getValue());
+                builder.endObject().endObject();
+                continue;
+            }
+            switch ((FTYPE) entry.getValue()) {
+                case date:
+                    builder.startObject(name).field(TYPE, "object").startObject(PROPERTIES)
+                            .startObject(ParserTokens.REQUESTARGS.date.exactToken()).field(TYPE, "date")
+                            .field(DOC_VALUES, true).endObject().endObject().endObject();
+                    break;
+                case nombre:
+                    builder.startObject(name).field(TYPE, "long").field(DOC_VALUES, true).endObject();
+                    break;
+                case nombrevirgule:
+                    builder.startObject(name).field(TYPE, "double").field(DOC_VALUES, true).endObject();
+                    break;
+                case chaine:
+                default:
+                    if (name.startsWith(AbstractQueryParser._NA)) {
+                        builder.startObject(name).field(TYPE, "string").field(INDEX, NOT_ANALYZED)
+                                .field(DOC_VALUES, true).endObject();
+                    } else {
+                        builder.startObject(name).field(TYPE, "string").endObject();
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoException;
+
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.utils.logging.VitamLogger;
+import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+
+/**
+ * Zero downtime rebuild of the ElasticSearch index from MongoDB.<br>
+ * <br>
+ * A new versioned index is built from parallel partitioned scans of the DAip collection (in bulk load mode), then
+ * the writes done in MongoDB during the build are caught up from the oplog, and finally the alias used by all
+ * reads is atomically switched to the new index.<br>
+ * Catch up needs a replica set (oplog); without it, writes done during the build are only in the old index.<br>
+ * A real index named as the alias (created before aliases) is only replaced if the migration is allowed
+ * (setMigrate), with a short downtime.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class EsReindexer {
+    private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(EsReindexer.class);
+
+    private final MongoDbAccess dbvitam;
+    private final String alias;
+    private final String model;
+    private final Map<String, EsMapping.FTYPE> fields;
+    private final int partitions;
+    private final long catchUpTimeout;
+    private boolean migrate = false;
+
+    /**
+     * @param dbvitam
+     * @param alias
+     *            the alias used by reads (GlobalDatas.INDEXNAME)
+     * @param model
+     *            the ES type
+     * @param fields
+     *            the model fields with their type (null for structural fields only)
+     * @param partitions
+     *            the number of concurrent scans of the DAip collection
+     * @param catchUpTimeout
+     *            max wait in ms for the catch up of the writes done during the build
+     */
+    public EsReindexer(final MongoDbAccess dbvitam, final String alias, final String model,
+            final Map<String, EsMapping.FTYPE> fields, final int partitions, final long catchUpTimeout) {
+        this.dbvitam = dbvitam;
+        this.alias = alias;
+        this.model = model;
+        this.fields = fields;
+        this.partitions = Math.max(1, Math.min(256, partitions));
+        this.catchUpTimeout = catchUpTimeout;
+    }
+
+    /**
+     * @param migrate
+     *            True to allow the replacement of a real index named as the alias (short downtime, see
+     *            ElasticSearchAccess.migrateToAlias)
+     */
+    public void setMigrate(final boolean migrate) {
+        this.migrate = migrate;
+    }
+
+    /**
+     * Build the new index and switch the alias to it
+     *
+     * @param deletePrevious
+     *            True to delete the indexes previously referenced by the alias
+     * @return the name of the new index, or null if in error (alias unchanged)
+     */
+    public String reindex(final boolean deletePrevious) {
+        final ElasticSearchAccess es = dbvitam.getEs();
+        final boolean concrete = es.isConcreteIndex(alias);
+        if (concrete && !migrate) {
+            LOGGER.error("Index " + alias + " is not an alias: reindex refused unless migration is allowed");
+            return null;
+        }
+        final String indexName = es.createVersionedIndex(alias, model, fields);
+        if (indexName == null) {
+            return null;
+        }
+        final long start = System.currentTimeMillis();
+        BSONTimestamp from = null;
+        try {
+            if (dbvitam.getOplog().count() > 0) {
+                from = EsSynchronizer.getLastPosition(dbvitam.getOplog());
+            }
+        } catch (final MongoException e) {
+            LOGGER.debug("Oplog not readable", e);
+        }
+        if (from == null) {
+            LOGGER.warn("No oplog available, writes during the reindex will not be caught up");
+        }
+        es.startBulkLoad(indexName);
+        long nb = -1;
+        try {
+            nb = scan(es, indexName);
+        } finally {
+            // settings always restored (optimize only a complete scan)
+            es.endBulkLoad(indexName, nb < 0 ? 0 : GlobalDatas.esOptimizeSegments);
+        }
+        if (nb < 0) {
+            es.deleteIndex(indexName);
+            return null;
+        }
+        LOGGER.info("Reindex of " + nb + " DAip into " + indexName + " in " + (System.currentTimeMillis() - start) + " ms");
+        EsSynchronizer synchronizer = null;
+        if (from != null) {
+            synchronizer = new EsSynchronizer(dbvitam, indexName, model, from);
+            synchronizer.start();
+            waitCaughtUp(synchronizer, System.currentTimeMillis());
+        }
+        final Set<String> previous;
+        if (concrete) {
+            previous = es.migrateToAlias(alias, indexName) ? new HashSet<String>() : null;
+        } else {
+            previous = es.switchAlias(alias, indexName);
+        }
+        if (synchronizer != null) {
+            // writes done up to the switch
+            waitCaughtUp(synchronizer, System.currentTimeMillis());
+            try {
+                synchronizer.stop();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.info("Reindex caught up " + synchronizer.getNbApplied() + " DAip, " + synchronizer.getNbFailed()
+                    + " in error");
+        }
+        if (previous == null) {
+            if (!concrete && !isAliased(es, indexName)) {
+                // alias unchanged, old index still in place
+                es.deleteIndex(indexName);
+            } else {
+                LOGGER.error("Index " + indexName + " kept: the alias " + alias + " may reference it");
+            }
+            return null;
+        }
+        if (deletePrevious) {
+            for (final String index : previous) {
+                es.deleteIndex(index);
+            }
+        }
+        return indexName;
+    }
+
+    /**
+     * @param es
+     * @param indexName
+     * @return True if the alias references this index, or if unknown
+     */
+    private final boolean isAliased(final ElasticSearchAccess es, final String indexName) {
+        try {
+            return es.getAliasedIndexes(alias).contains(indexName);
+        } catch (final Exception e) {
+            LOGGER.warn("Cannot check alias " + alias, e);
+            return true;
+        }
+    }
+
+    private final void waitCaughtUp(final EsSynchronizer synchronizer, final long after) {
+        final long limit = System.currentTimeMillis() + catchUpTimeout;
+        while (synchronizer.getCaughtUpTime() <= after) {
+            if (System.currentTimeMillis() > limit) {
+                LOGGER.warn("Reindex catch up not done after " + catchUpTimeout + " ms, still "
+                        + synchronizer.getNbPending() + " pending");
+                return;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param rank
+     * @return the lower bound of this partition of _id (null for the first one)
+     */
+    private final String getBound(final int rank) {
+        if (rank <= 0 || rank >= partitions) {
+            return null;
+        }
+        return String.format("%02x", rank * 256 / partitions);
+    }
+
+    /**
+     * Scan all DAip by partitions of _id, concurrently, into the new index
+     *
+     * @param es
+     * @param indexName
+     * @return the number of DAip indexed, or -1 if in error
+     */
+    private final long scan(final ElasticSearchAccess es, final String indexName) {
+        final EsBulkIndexer indexer = new EsBulkIndexer(es.getClient());
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(partitions,
+                GlobalDatas.esBulkConcurrency * 2));
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final String low = getBound(i);
+            final String high = getBound(i + 1);
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    final BasicDBObject range = new BasicDBObject();
+                    if (low != null) {
+                        range.append("$gte", low);
+                    }
+                    if (high != null) {
+                        range.append("$lt", high);
+                    }
+                    final DBCursor cursor = dbvitam.daips.collection.find(range.isEmpty() ? new BasicDBObject()
+                            : new BasicDBObject(VitamType.ID, range)).batchSize(GlobalDatas.LIMIT_ES_NEW_INDEX);
+                    long nb = 0;
+                    try {
+                        while (cursor.hasNext()) {
+                            final BSONObject daip = cursor.next();
+                            indexer.add(indexName, model, (String) daip.get(VitamType.ID),
+                                    ElasticSearchAccess.getEsSourceBuilder(daip));
+                            nb++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    return nb;
+                }
+            }));
+        }
+        executor.shutdown();
+        long nb = 0;
+        try {
+            for (final Future<Long> future : futures) {
+                nb += future.get();
+            }
+        } catch (final InterruptedException e) {
+            LOGGER.error("Reindex interrupted", e);
+            Thread.currentThread().interrupt();
+            nb = -1;
+        } catch (final ExecutionException e) {
+            LOGGER.error("Reindex in error", e);
+            nb = -1;
+        } finally {
+            if (nb < 0) {
+                executor.shutdownNow();
+            }
+            indexer.close(60000);
+        }
+        if (indexer.getNbFailed() > 0) {
+            LOGGER.error("Reindex in error for " + indexer.getNbFailed() + " DAip");
+            return -1;
+        }
+        return nb;
+    }
+}
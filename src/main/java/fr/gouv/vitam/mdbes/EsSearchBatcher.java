@@ -0,0 +1,214 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+
+import fr.gouv.vitam.utils.logging.VitamLogger;
+import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+
+/**
+ * Micro batching of concurrent ElasticSearch searches.<br>
+ * <br>
+ * Searches submitted within a short window (or up to a max number) are sent as one multi search, and each response
+ * is dispatched back to its waiting caller.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class EsSearchBatcher implements Runnable {
+    private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(EsSearchBatcher.class);
+
+    private static final class Pending {
+        private final SearchRequestBuilder request;
+        private final PlainActionFuture<SearchResponse> future = PlainActionFuture.newFuture();
+
+        private Pending(final SearchRequestBuilder request) {
+            this.request = request;
+        }
+    }
+
+    private final Client client;
+    private final long window;
+    private final int maxBatch;
+    private final long timeout;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    /**
+     * Guards running against queue additions, so no search is queued once the thread is stopping
+     */
+    private final Object lock = new Object();
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    /**
+     * @param client
+     * @param window
+     *            max wait in ms for other searches once one is submitted
+     * @param maxBatch
+     *            max number of searches in one multi search
+     * @param timeout
+     *            max wait in ms for the response of one search
+     */
+    public EsSearchBatcher(final Client client, final long window, final int maxBatch, final long timeout) {
+        this.client = client;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.timeout = timeout;
+        thread = new Thread(this, "EsSearchBatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Submit a search and wait for its response
+     *
+     * @param request
+     * @return the response
+     * @throws org.elasticsearch.ElasticsearchTimeoutException
+     *             if no response within the timeout
+     */
+    public SearchResponse search(final SearchRequestBuilder request) {
+        final Pending pending = new Pending(request);
+        synchronized (lock) {
+            if (running) {
+                queue.add(pending);
+            } else {
+                request.execute(pending.future);
+            }
+        }
+        return pending.future.actionGet(timeout);
+    }
+
+    /**
+     * Stop the batcher (pending searches are still sent)
+     */
+    public void stop() {
+        synchronized (lock) {
+            running = false;
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            batchLoop();
+        } finally {
+            synchronized (lock) {
+                running = false;
+            }
+            // whatever the reason of the exit, no caller stays waiting
+            final List<Pending> remaining = new ArrayList<Pending>();
+            queue.drainTo(remaining);
+            for (final Pending pending : remaining) {
+                pending.future.onFailure(new ElasticsearchException("Search batcher stopped"));
+            }
+        }
+    }
+
+    private final void batchLoop() {
+        final List<Pending> batch = new ArrayList<Pending>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                final Pending first = running ? queue.take() : queue.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                final long limit = System.currentTimeMillis() + window;
+                while (batch.size() < maxBatch) {
+                    final long wait = limit - System.currentTimeMillis();
+                    final Pending next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (final InterruptedException e) {
+                // stop requested: drain remaining searches
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                send(new ArrayList<Pending>(batch));
+                batch.clear();
+            }
+        }
+    }
+
+    private final void send(final List<Pending> batch) {
+        try {
+            execute(batch);
+        } catch (final RuntimeException e) {
+            LOGGER.error("MultiSearch of " + batch.size() + " searches not sent", e);
+            for (final Pending pending : batch) {
+                pending.future.onFailure(e);
+            }
+        }
+    }
+
+    private final void execute(final List<Pending> batch) {
+        if (batch.size() == 1) {
+            batch.get(0).request.execute(batch.get(0).future);
+            return;
+        }
+        final MultiSearchRequestBuilder multi = client.prepareMultiSearch();
+        for (final Pending pending : batch) {
+            multi.add(pending.request);
+        }
+        LOGGER.debug("MultiSearch of {} searches", batch.size());
+        multi.execute(new ActionListener<MultiSearchResponse>() {
+            @Override
+            public void onResponse(final MultiSearchResponse response) {
+                final MultiSearchResponse.Item[] items = response.getResponses();
+                for (int i = 0; i < batch.size(); i++) {
+                    final PlainActionFuture<SearchResponse> future = batch.get(i).future;
+                    if (i >= items.length) {
+                        future.onFailure(new ElasticsearchException("Missing response in multi search"));
+                    } else if (items[i].isFailure()) {
+                        future.onFailure(new ElasticsearchException(items[i].getFailureMessage()));
+                    } else {
+                        future.onResponse(items[i].getResponse());
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable e) {
+                for (final Pending pending : batch) {
+                    pending.future.onFailure(e);
+                }
+            }
+        });
+    }
+}
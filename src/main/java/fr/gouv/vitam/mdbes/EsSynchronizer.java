@@ -0,0 +1,417 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.utils.logging.VitamLogger;
+import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+
+/**
+ * Incremental MongoDB to ElasticSearch synchronization of DAip, tailing the replica set oplog.<br>
+ * <br>
+ * Operations are accumulated (the last state of each DAip wins), then applied in one bulk when the batch is full or
+ * the flush interval is over. Failed items are retried with an exponential backoff until applied, and the position
+ * in the oplog only moves forward once a batch is applied, so batches are applied in order and none is lost.<br>
+ * When used, ingest should only write into MongoDB.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class EsSynchronizer implements Runnable {
+    private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(EsSynchronizer.class);
+
+    private static final String OPLOG_TS = "ts";
+    private static final String OPLOG_NS = "ns";
+    private static final String OPLOG_OP = "op";
+    private static final String OPLOG_OBJECT = "o";
+    private static final String OPLOG_OBJECT2 = "o2";
+    private static final String OP_INSERT = "i";
+    private static final String OP_UPDATE = "u";
+    private static final String OP_DELETE = "d";
+    /**
+     * Marker for updated DAip to be read again from MongoDB before indexing
+     */
+    private static final String TOREFRESH = "";
+    /**
+     * Max delay in ms between two retries of a failed batch
+     */
+    private static final long MAX_BACKOFF = 60000;
+
+    private final MongoDbAccess dbvitam;
+    private final String indexName;
+    private final String model;
+    private final int batchSize;
+    private final long flushInterval;
+    private final int maxRetry;
+    private volatile boolean running = false;
+    private Thread thread = null;
+    /**
+     * Last applied position
+     */
+    private volatile BSONTimestamp lastApplied;
+    /**
+     * Last read position
+     */
+    private volatile BSONTimestamp lastRead;
+    private final AtomicLong nbApplied = new AtomicLong(0);
+    private final AtomicLong nbFailed = new AtomicLong(0);
+    private final AtomicLong nbPending = new AtomicLong(0);
+    /**
+     * Last time (ms) all the oplog was read and applied
+     */
+    private volatile long caughtUp = 0;
+
+    /**
+     * @param dbvitam
+     * @param indexName
+     *            the ES index (or alias)
+     * @param model
+     *            the ES type
+     * @param from
+     *            the oplog position from which to start (null meaning from now)
+     * @param batchSize
+     *            the max number of DAip in one bulk
+     * @param flushInterval
+     *            the max delay in ms before a non full batch is applied
+     * @param maxRetry
+     *            the number of retries for failed items before reporting them as failed (retries go on)
+     */
+    public EsSynchronizer(final MongoDbAccess dbvitam, final String indexName, final String model,
+            final BSONTimestamp from, final int batchSize, final long flushInterval, final int maxRetry) {
+        this.dbvitam = dbvitam;
+        this.indexName = indexName;
+        this.model = model;
+        this.lastApplied = from;
+        this.lastRead = from;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.maxRetry = maxRetry;
+    }
+
+    /**
+     * @param dbvitam
+     * @param model
+     *            the ES type
+     * @param from
+     *            the oplog position from which to start (null meaning from now)
+     */
+    public EsSynchronizer(final MongoDbAccess dbvitam, final String model, final BSONTimestamp from) {
+        this(dbvitam, GlobalDatas.INDEXNAME, model, from, GlobalDatas.LIMIT_ES_NEW_INDEX, 1000, 5);
+    }
+
+    /**
+     * @param dbvitam
+     * @param indexName
+     *            the ES index (or alias)
+     * @param model
+     *            the ES type
+     * @param from
+     *            the oplog position from which to start (null meaning from now)
+     */
+    public EsSynchronizer(final MongoDbAccess dbvitam, final String indexName, final String model,
+            final BSONTimestamp from) {
+        this(dbvitam, indexName, model, from, GlobalDatas.LIMIT_ES_NEW_INDEX, 1000, 5);
+    }
+
+    /**
+     * @param oplog
+     * @return the position of the last operation in the oplog
+     */
+    public static BSONTimestamp getLastPosition(final DBCollection oplog) {
+        final DBCursor last = oplog.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            return last.hasNext() ? (BSONTimestamp) last.next().get(OPLOG_TS) : new BSONTimestamp();
+        } finally {
+            last.close();
+        }
+    }
+
+    /**
+     * Start the synchronization in a background thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "EsSynchronizer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the synchronization (pending operations are applied first)
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    /**
+     *
+     * @return the last applied oplog position (to be kept to restart from it)
+     */
+    public BSONTimestamp getLastApplied() {
+        return lastApplied;
+    }
+
+    /**
+     *
+     * @return the lag in ms between the last read and the last applied operations
+     */
+    public long getLag() {
+        final BSONTimestamp read = lastRead;
+        final BSONTimestamp applied = lastApplied;
+        if (read == null || applied == null) {
+            return 0;
+        }
+        return (read.getTime() - applied.getTime()) * 1000L;
+    }
+
+    /**
+     *
+     * @return the last time (ms) when all the oplog was read and applied (0 if never)
+     */
+    public long getCaughtUpTime() {
+        return caughtUp;
+    }
+
+    /**
+     *
+     * @return the number of DAip operations applied into ES
+     */
+    public long getNbApplied() {
+        return nbApplied.get();
+    }
+
+    /**
+     *
+     * @return the number of DAip operations still failing after maxRetry retries (they are still retried)
+     */
+    public long getNbFailed() {
+        return nbFailed.get();
+    }
+
+    /**
+     *
+     * @return the number of DAip operations waiting to be applied
+     */
+    public long getNbPending() {
+        return nbPending.get();
+    }
+
+    @Override
+    public void run() {
+        final DBCollection oplog = dbvitam.getOplog();
+        final String ns = dbvitam.daips.collection.getFullName();
+        final Map<String, String> pending = new LinkedHashMap<String, String>();
+        BSONTimestamp batchLast = null;
+        while (running) {
+            try {
+                if (lastApplied == null) {
+                    // start from now
+                    lastApplied = getLastPosition(oplog);
+                    lastRead = lastApplied;
+                }
+                final DBCursor cursor = oplog.find(new BasicDBObject(OPLOG_TS, new BasicDBObject("$gt", lastApplied))
+                        .append(OPLOG_NS, ns))
+                        .addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA)
+                        .addOption(Bytes.QUERYOPTION_OPLOGREPLAY).addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+                long lastFlush = System.currentTimeMillis();
+                try {
+                    while (running) {
+                        final DBObject op = cursor.tryNext();
+                        if (op != null) {
+                            addOperation(op, pending);
+                            batchLast = (BSONTimestamp) op.get(OPLOG_TS);
+                            lastRead = batchLast;
+                            nbPending.set(pending.size());
+                        }
+                        final long now = System.currentTimeMillis();
+                        if (pending.size() >= batchSize || (!pending.isEmpty() && now - lastFlush >= flushInterval)) {
+                            if (!flush(pending)) {
+                                // stopped before the batch was applied: lastApplied is kept
+                                break;
+                            }
+                            lastApplied = batchLast;
+                            lastFlush = now;
+                        }
+                        if (op == null && pending.isEmpty()) {
+                            caughtUp = now;
+                        }
+                        if (op == null && cursor.getCursorId() == 0) {
+                            // dead cursor: reopen it from the last read position
+                            break;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (!pending.isEmpty() && flush(pending)) {
+                    lastApplied = batchLast;
+                }
+            } catch (final RuntimeException e) {
+                // MongoException or ElasticSearch exception: operations not applied will be read again
+                LOGGER.error("Synchronization in error, will restart from " + lastApplied, e);
+                pending.clear();
+                nbPending.set(0);
+                pause(1000);
+            }
+        }
+    }
+
+    private final void addOperation(final DBObject op, final Map<String, String> pending) {
+        final String type = (String) op.get(OPLOG_OP);
+        if (OP_INSERT.equals(type)) {
+            final BSONObject obj = (BSONObject) op.get(OPLOG_OBJECT);
+            final String id = (String) obj.get(VitamType.ID);
+            pending.remove(id);
+            pending.put(id, ElasticSearchAccess.getEsSource(obj));
+        } else if (OP_UPDATE.equals(type)) {
+            final BSONObject obj = (BSONObject) op.get(OPLOG_OBJECT2);
+            final String id = (String) obj.get(VitamType.ID);
+            pending.remove(id);
+            pending.put(id, TOREFRESH);
+        } else if (OP_DELETE.equals(type)) {
+            final BSONObject obj = (BSONObject) op.get(OPLOG_OBJECT);
+            final String id = (String) obj.get(VitamType.ID);
+            pending.remove(id);
+            pending.put(id, null);
+        }
+    }
+
+    /**
+     * Read again the updated DAip from MongoDB (one request)
+     *
+     * @param pending
+     */
+    private final void refresh(final Map<String, String> pending) {
+        final List<String> ids = new ArrayList<String>();
+        for (final Entry<String, String> entry : pending.entrySet()) {
+            if (TOREFRESH.equals(entry.getValue())) {
+                ids.add(entry.getKey());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        final DBCursor cursor = dbvitam.daips.collection.find(new BasicDBObject(VitamType.ID, new BasicDBObject("$in", ids)));
+        try {
+            while (cursor.hasNext()) {
+                final DBObject obj = cursor.next();
+                pending.put((String) obj.get(VitamType.ID), ElasticSearchAccess.getEsSource(obj));
+            }
+        } finally {
+            cursor.close();
+        }
+        // not found means deleted since
+        for (final Iterator<Entry<String, String>> iterator = pending.entrySet().iterator(); iterator.hasNext();) {
+            final Entry<String, String> entry = iterator.next();
+            if (TOREFRESH.equals(entry.getValue())) {
+                entry.setValue(null);
+            }
+        }
+    }
+
+    /**
+     * Apply the pending operations, retrying failed items (with a capped exponential backoff) until all are
+     * applied: a batch is never skipped, so the oplog position only moves forward once the batch is applied.
+     *
+     * @param pending
+     * @return True if all operations were applied, False if stopped before
+     */
+    private final boolean flush(final Map<String, String> pending) {
+        refresh(pending);
+        final int size = pending.size();
+        long backoff = 100;
+        for (int retry = 0; !pending.isEmpty(); retry++) {
+            Set<String> failed;
+            try {
+                failed = dbvitam.getEs().applyEntryIndexesBlocking(indexName, model, pending);
+            } catch (final RuntimeException e) {
+                LOGGER.error("Synchronization in error for " + pending.size() + " DAip", e);
+                failed = new HashSet<String>(pending.keySet());
+            }
+            pending.keySet().retainAll(failed);
+            if (pending.isEmpty()) {
+                break;
+            }
+            if (retry == maxRetry) {
+                LOGGER.error("Synchronization still in error after " + maxRetry + " retries for " + pending.size()
+                        + " DAip, will keep retrying: " + pending.keySet());
+            }
+            if (retry >= maxRetry) {
+                nbFailed.set(pending.size());
+            }
+            if (!running || !pause(backoff)) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+        nbFailed.set(0);
+        nbApplied.addAndGet(size);
+        pending.clear();
+        nbPending.set(0);
+        return true;
+    }
+
+    /**
+     * @param delay
+     * @return False if interrupted
+     */
+    private static final boolean pause(final long delay) {
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
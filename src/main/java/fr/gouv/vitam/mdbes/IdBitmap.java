@@ -0,0 +1,520 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed bitmap of int ordinals (Roaring like).<br>
+ * <br>
+ * Ordinals are partitioned by their high 16 bits into containers; each container holds the low 16 bits either as a
+ * sorted char array (sparse, up to 4096 values) or as a 65536 bits bitmap (dense), such that intersections, unions
+ * and differences between dense containers are word parallel.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class IdBitmap {
+    /**
+     * Max cardinality of an array container
+     */
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    /**
+     * Container of low 16 bits values: array if bits is null, else bitmap
+     */
+    private static final class Container {
+        private char[] array;
+        private long[] bits;
+        private int cardinality;
+
+        private Container() {
+            array = new char[4];
+        }
+
+        private Container(final Container other) {
+            array = other.array == null ? null : Arrays.copyOf(other.array, Math.max(4, other.cardinality));
+            bits = other.bits == null ? null : other.bits.clone();
+            cardinality = other.cardinality;
+        }
+
+        private boolean contains(final char value) {
+            if (bits != null) {
+                return (bits[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+        }
+
+        private boolean add(final char value) {
+            if (bits != null) {
+                final long old = bits[value >>> 6];
+                bits[value >>> 6] = old | (1L << value);
+                if (old == bits[value >>> 6]) {
+                    return false;
+                }
+                cardinality++;
+                return true;
+            }
+            final int pos = Arrays.binarySearch(array, 0, cardinality, value);
+            if (pos >= 0) {
+                return false;
+            }
+            if (cardinality == ARRAY_MAX) {
+                toBitmap();
+                return add(value);
+            }
+            final int insert = -pos - 1;
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(array, insert, array, insert + 1, cardinality - insert);
+            array[insert] = value;
+            cardinality++;
+            return true;
+        }
+
+        private boolean remove(final char value) {
+            if (bits != null) {
+                final long old = bits[value >>> 6];
+                bits[value >>> 6] = old & ~(1L << value);
+                if (old == bits[value >>> 6]) {
+                    return false;
+                }
+                cardinality--;
+                if (cardinality <= ARRAY_MAX) {
+                    toArray();
+                }
+                return true;
+            }
+            final int pos = Arrays.binarySearch(array, 0, cardinality, value);
+            if (pos < 0) {
+                return false;
+            }
+            System.arraycopy(array, pos + 1, array, pos, cardinality - pos - 1);
+            cardinality--;
+            return true;
+        }
+
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bits[array[i] >>> 6] |= 1L << array[i];
+            }
+            array = null;
+        }
+
+        private void toArray() {
+            final char[] values = new char[Math.max(4, cardinality)];
+            int pos = 0;
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                long w = bits[word];
+                while (w != 0) {
+                    values[pos++] = (char) ((word << 6) + Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            array = values;
+            bits = null;
+        }
+
+        /**
+         * Fix the representation after a word operation
+         */
+        private void normalize() {
+            if (bits != null) {
+                int card = 0;
+                for (final long word : bits) {
+                    card += Long.bitCount(word);
+                }
+                cardinality = card;
+                if (cardinality <= ARRAY_MAX) {
+                    toArray();
+                }
+            }
+        }
+
+        /**
+         * @param other
+         * @param mode
+         *            0 for and, 1 for or, 2 for andNot
+         * @return the new container
+         */
+        private Container combine(final Container other, final int mode) {
+            if (bits != null && other.bits != null) {
+                final Container result = new Container();
+                result.array = null;
+                result.bits = new long[BITMAP_WORDS];
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    switch (mode) {
+                        case 0:
+                            result.bits[i] = bits[i] & other.bits[i];
+                            break;
+                        case 1:
+                            result.bits[i] = bits[i] | other.bits[i];
+                            break;
+                        default:
+                            result.bits[i] = bits[i] & ~other.bits[i];
+                            break;
+                    }
+                }
+                result.normalize();
+                return result;
+            }
+            if (mode == 1) {
+                // union: add the smallest into a copy of the largest
+                final Container large = other.cardinality > cardinality ? other : this;
+                final Container small = large == this ? other : this;
+                final Container result = new Container(large);
+                small.addTo(result);
+                return result;
+            }
+            // and or andNot: filter this values through other
+            final Container result = new Container();
+            if (mode == 0 && bits != null) {
+                // iterate on the sparse side
+                for (int i = 0; i < other.cardinality; i++) {
+                    if (contains(other.array[i])) {
+                        result.add(other.array[i]);
+                    }
+                }
+                return result;
+            }
+            if (bits != null) {
+                // andNot of bitmap by array
+                final Container copy = new Container(this);
+                for (int i = 0; i < other.cardinality; i++) {
+                    copy.bits[other.array[i] >>> 6] &= ~(1L << other.array[i]);
+                }
+                copy.normalize();
+                return copy;
+            }
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(array[i]) == (mode == 0)) {
+                    result.add(array[i]);
+                }
+            }
+            return result;
+        }
+
+        private void addTo(final Container target) {
+            if (bits != null) {
+                for (int word = 0; word < BITMAP_WORDS; word++) {
+                    long w = bits[word];
+                    while (w != 0) {
+                        target.add((char) ((word << 6) + Long.numberOfTrailingZeros(w)));
+                        w &= w - 1;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    target.add(array[i]);
+                }
+            }
+        }
+
+        /**
+         * @param from
+         * @return the first value >= from, or -1
+         */
+        private int next(final int from) {
+            if (bits != null) {
+                int word = from >>> 6;
+                if (word >= BITMAP_WORDS) {
+                    return -1;
+                }
+                long w = bits[word] & (-1L << from);
+                while (true) {
+                    if (w != 0) {
+                        return (word << 6) + Long.numberOfTrailingZeros(w);
+                    }
+                    if (++word == BITMAP_WORDS) {
+                        return -1;
+                    }
+                    w = bits[word];
+                }
+            }
+            int pos = Arrays.binarySearch(array, 0, cardinality, (char) from);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            return pos < cardinality ? array[pos] : -1;
+        }
+    }
+
+    /**
+     * Sorted high 16 bits keys
+     */
+    private int[] keys = new int[4];
+    private Container[] containers = new Container[4];
+    private int nbContainers = 0;
+
+    /**
+     *
+     */
+    public IdBitmap() {
+        // empty
+    }
+
+    /**
+     * @param other
+     *            the bitmap to copy
+     */
+    public IdBitmap(final IdBitmap other) {
+        keys = Arrays.copyOf(other.keys, Math.max(4, other.nbContainers));
+        containers = new Container[keys.length];
+        nbContainers = other.nbContainers;
+        for (int i = 0; i < nbContainers; i++) {
+            containers[i] = new Container(other.containers[i]);
+        }
+    }
+
+    private final int indexOf(final int key) {
+        return Arrays.binarySearch(keys, 0, nbContainers, key);
+    }
+
+    private final void append(final int key, final Container container) {
+        if (nbContainers == keys.length) {
+            keys = Arrays.copyOf(keys, nbContainers * 2);
+            containers = Arrays.copyOf(containers, nbContainers * 2);
+        }
+        keys[nbContainers] = key;
+        containers[nbContainers++] = container;
+    }
+
+    /**
+     * @param ordinal
+     *            (positive)
+     * @return True if added
+     */
+    public boolean add(final int ordinal) {
+        final int key = ordinal >>> 16;
+        int pos = indexOf(key);
+        if (pos < 0) {
+            pos = -pos - 1;
+            if (nbContainers == keys.length) {
+                keys = Arrays.copyOf(keys, nbContainers * 2);
+                containers = Arrays.copyOf(containers, nbContainers * 2);
+            }
+            System.arraycopy(keys, pos, keys, pos + 1, nbContainers - pos);
+            System.arraycopy(containers, pos, containers, pos + 1, nbContainers - pos);
+            keys[pos] = key;
+            containers[pos] = new Container();
+            nbContainers++;
+        }
+        return containers[pos].add((char) ordinal);
+    }
+
+    /**
+     * @param ordinal
+     * @return True if present
+     */
+    public boolean contains(final int ordinal) {
+        if (ordinal < 0) {
+            return false;
+        }
+        final int pos = indexOf(ordinal >>> 16);
+        return pos >= 0 && containers[pos].contains((char) ordinal);
+    }
+
+    /**
+     * @param ordinal
+     * @return True if removed
+     */
+    public boolean remove(final int ordinal) {
+        if (ordinal < 0) {
+            return false;
+        }
+        final int pos = indexOf(ordinal >>> 16);
+        if (pos < 0 || !containers[pos].remove((char) ordinal)) {
+            return false;
+        }
+        if (containers[pos].cardinality == 0) {
+            System.arraycopy(keys, pos + 1, keys, pos, nbContainers - pos - 1);
+            System.arraycopy(containers, pos + 1, containers, pos, nbContainers - pos - 1);
+            containers[--nbContainers] = null;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of ordinals
+     */
+    public int cardinality() {
+        int card = 0;
+        for (int i = 0; i < nbContainers; i++) {
+            card += containers[i].cardinality;
+        }
+        return card;
+    }
+
+    /**
+     *
+     * @return True if empty
+     */
+    public boolean isEmpty() {
+        return nbContainers == 0;
+    }
+
+    /**
+     * @param other
+     * @return the intersection of this and other
+     */
+    public IdBitmap and(final IdBitmap other) {
+        final IdBitmap result = new IdBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < nbContainers && j < other.nbContainers) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                final Container container = containers[i].combine(other.containers[j], 0);
+                if (container.cardinality > 0) {
+                    result.append(keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param other
+     * @return the union of this and other
+     */
+    public IdBitmap or(final IdBitmap other) {
+        final IdBitmap result = new IdBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < nbContainers || j < other.nbContainers) {
+            if (j >= other.nbContainers || (i < nbContainers && keys[i] < other.keys[j])) {
+                result.append(keys[i], new Container(containers[i]));
+                i++;
+            } else if (i >= nbContainers || keys[i] > other.keys[j]) {
+                result.append(other.keys[j], new Container(other.containers[j]));
+                j++;
+            } else {
+                result.append(keys[i], containers[i].combine(other.containers[j], 1));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param other
+     * @return the values of this not in other
+     */
+    public IdBitmap andNot(final IdBitmap other) {
+        final IdBitmap result = new IdBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < nbContainers) {
+            if (j >= other.nbContainers || keys[i] < other.keys[j]) {
+                result.append(keys[i], new Container(containers[i]));
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                final Container container = containers[i].combine(other.containers[j], 2);
+                if (container.cardinality > 0) {
+                    result.append(keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param from
+     * @return the first ordinal >= from, or -1 if none
+     */
+    public int next(final int from) {
+        if (from < 0) {
+            return -1;
+        }
+        int pos = indexOf(from >>> 16);
+        int low = from & 0xFFFF;
+        if (pos < 0) {
+            pos = -pos - 1;
+            low = 0;
+        }
+        for (; pos < nbContainers; pos++) {
+            final int value = containers[pos].next(low);
+            if (value >= 0) {
+                return (keys[pos] << 16) | value;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @return an iterator on ordinals (in increasing order)
+     */
+    public OrdinalIterator iterator() {
+        return new OrdinalIterator();
+    }
+
+    /**
+     * Iterator on ordinals
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    public class OrdinalIterator {
+        private int next = IdBitmap.this.next(0);
+
+        private OrdinalIterator() {
+            // empty
+        }
+
+        /**
+         *
+         * @return True if there is a next ordinal
+         */
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        /**
+         *
+         * @return the next ordinal
+         */
+        public int next() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            final int current = next;
+            next = current == Integer.MAX_VALUE ? -1 : IdBitmap.this.next(current + 1);
+            return current;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.gouv.vitam.query.GlobalDatas;
+
+/**
+ * Dictionary of ids (UUID or path of UUIDs) to dense int ordinals, used by BitmapIdSet.<br>
+ * <br>
+ * One dictionary is shared by all requests of the node, so that sets coming from different requests (and the cached
+ * ones) share their ordinals and bitmap operations. It is bounded: once GlobalDatas.LIMIT_ID_DICTIONARY ids are
+ * known, the next request starts a new node dictionary. A previous one is not cleared but released with the last
+ * BitmapIdSet referencing it. DbRequest binds the node dictionary to the current thread for a whole request, so that
+ * all sets of one request use the same one. Ordinals are only valid within their dictionary and must never be stored.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class IdDictionary {
+    private static final ThreadLocal<IdDictionary> CURRENT = new ThreadLocal<IdDictionary>();
+    private static volatile IdDictionary node = new IdDictionary();
+
+    private final ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] ids = new String[1024];
+    private int size = 0;
+
+    /**
+     *
+     */
+    public IdDictionary() {
+        // empty
+    }
+
+    /**
+     *
+     * @return the dictionary shared by the node, a new one being started if the current one is full
+     */
+    public static IdDictionary getNode() {
+        IdDictionary dictionary = node;
+        if (dictionary.size() >= GlobalDatas.LIMIT_ID_DICTIONARY) {
+            synchronized (IdDictionary.class) {
+                dictionary = node;
+                if (dictionary.size() >= GlobalDatas.LIMIT_ID_DICTIONARY) {
+                    dictionary = new IdDictionary();
+                    node = dictionary;
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     *
+     * @return the dictionary bound to the current request (thread), or the node one if none
+     */
+    public static IdDictionary getCurrent() {
+        final IdDictionary dictionary = CURRENT.get();
+        return dictionary == null ? getNode() : dictionary;
+    }
+
+    /**
+     * Bind the dictionary to the current thread (null to unbind)
+     *
+     * @param dictionary
+     * @return the previously bound dictionary (to be restored), or null
+     */
+    public static IdDictionary bind(final IdDictionary dictionary) {
+        final IdDictionary previous = CURRENT.get();
+        if (dictionary == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(dictionary);
+        }
+        return previous;
+    }
+
+    /**
+     * @param set
+     * @return the dictionary of this set if it is a BitmapIdSet, else null
+     */
+    public static IdDictionary of(final Set<String> set) {
+        return set instanceof BitmapIdSet ? ((BitmapIdSet) set).getDictionary() : null;
+    }
+
+    /**
+     * @param id
+     * @return the ordinal of this id, allocating a new one if needed
+     */
+    public int getOrdinal(final String id) {
+        final Integer ordinal = ordinals.get(id);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        synchronized (this) {
+            final Integer previous = ordinals.get(id);
+            if (previous != null) {
+                return previous;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size] = id;
+            ordinals.put(id, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param id
+     * @return the ordinal of this id, or -1 if unknown
+     */
+    public int findOrdinal(final String id) {
+        final Integer ordinal = ordinals.get(id);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * @param ordinal
+     * @return the id of this ordinal
+     */
+    public String getId(final int ordinal) {
+        return ids[ordinal];
+    }
+
+    /**
+     *
+     * @return the number of ids in the dictionary
+     */
+    public int size() {
+        return ordinals.size();
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either versionRank 3 of the License, or
+ * (at your option) any later versionRank.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.utils.logging.VitamLogger;
+import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+
+/**
+ * Bucket of links from one source (Domain) to its targets (DAip).<br>
+ * <br>
+ * High fanout links are not stored in one array in the source but in fixed size buckets of at most
+ * GlobalDatas.LINK_BUCKET_SIZE targets, each bucket being a small document (_id = source_rank). Appends go to the
+ * last bucket of the source, rolling over to a new bucket when it is full, without moving the source document.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class LinkBucket extends BasicDBObject {
+    private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(LinkBucket.class);
+
+    private static final long serialVersionUID = -1740366735178734283L;
+
+    /**
+     * Source id
+     */
+    public static final String SOURCE = "_src";
+    /**
+     * Rank of the bucket for this source (0 for the first one)
+     */
+    public static final String RANK = "_rank";
+    /**
+     * Number of targets in this bucket
+     */
+    public static final String COUNT = "_cnt";
+    /**
+     * Targets ids
+     */
+    public static final String TARGETS = "_tgts";
+    /**
+     * MongoDB duplicate key error codes
+     */
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int DUPLICATE_KEY_UPDATE = 11001;
+    /**
+     * To get the last bucket of a source
+     */
+    private static final BasicDBObject LAST_FIELDS = new BasicDBObject(RANK, 1).append(COUNT, 1);
+    private static final BasicDBObject LAST_SORT = new BasicDBObject(RANK, -1);
+
+    /**
+     *
+     */
+    public LinkBucket() {
+        // empty
+    }
+
+    /**
+     * @param source
+     * @param rank
+     * @return the id of the bucket of this rank for this source
+     */
+    public static final String getBucketId(final String source, final int rank) {
+        return source + "_" + rank;
+    }
+
+    /**
+     * Add the links from source to all targets not already linked, filling the last bucket then rolling over to new
+     * ones
+     *
+     * @param dbvitam
+     * @param source
+     * @param targets
+     */
+    public static void addLinks(final MongoDbAccess dbvitam, final String source, final Collection<String> targets) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        final Set<String> set = new HashSet<String>(targets);
+        set.removeAll(getLinks(dbvitam, source, set));
+        if (set.isEmpty()) {
+            return;
+        }
+        final List<String> list = new ArrayList<String>(set);
+        int rank = 0;
+        int count = 0;
+        final DBCursor cursor = dbvitam.links.collection.find(new BasicDBObject(SOURCE, source), LAST_FIELDS)
+                .sort(LAST_SORT).limit(1);
+        try {
+            if (cursor.hasNext()) {
+                final DBObject last = cursor.next();
+                rank = ((Number) last.get(RANK)).intValue();
+                count = ((Number) last.get(COUNT)).intValue();
+            }
+        } finally {
+            cursor.close();
+        }
+        int pos = 0;
+        while (pos < list.size()) {
+            final int room = GlobalDatas.LINK_BUCKET_SIZE - count;
+            if (room <= 0) {
+                rank++;
+                count = 0;
+                continue;
+            }
+            final List<String> part = list.subList(pos, Math.min(list.size(), pos + room));
+            // condition on the count: a bucket filled meanwhile does not match and the upsert fails on its _id
+            final BasicDBObject condition = new BasicDBObject(VitamType.ID, getBucketId(source, rank))
+                    .append(COUNT, new BasicDBObject("$lte", GlobalDatas.LINK_BUCKET_SIZE - part.size()));
+            final BasicDBObject update = new BasicDBObject("$setOnInsert",
+                    new BasicDBObject(SOURCE, source).append(RANK, rank))
+                    .append("$push", new BasicDBObject(TARGETS, new BasicDBObject("$each", part)))
+                    .append("$inc", new BasicDBObject(COUNT, part.size()));
+            try {
+                dbvitam.links.collection.update(condition, update, true, false);
+            } catch (final MongoException e) {
+                if (e.getCode() == DUPLICATE_KEY || e.getCode() == DUPLICATE_KEY_UPDATE) {
+                    // full bucket: roll over
+                    rank++;
+                    count = 0;
+                    continue;
+                }
+                LOGGER.error("Exception for links of " + source + " to " + targets.size() + " targets", e);
+                throw e;
+            }
+            pos += part.size();
+            count += part.size();
+        }
+    }
+
+    /**
+     * @param dbvitam
+     * @param source
+     * @param target
+     * @return True if the link from source to target exists
+     */
+    public static boolean contains(final MongoDbAccess dbvitam, final String source, final String target) {
+        return dbvitam.links.collection.count(new BasicDBObject(SOURCE, source).append(TARGETS, target)) > 0;
+    }
+
+    /**
+     * @param dbvitam
+     * @param source
+     * @return the set of all targets linked from source
+     */
+    public static Set<String> getLinks(final MongoDbAccess dbvitam, final String source) {
+        return getLinks(dbvitam, source, null);
+    }
+
+    /**
+     * @param dbvitam
+     * @param source
+     * @param among
+     *            if not null, only the targets within this collection are returned
+     * @return the set of targets linked from source
+     */
+    private static Set<String> getLinks(final MongoDbAccess dbvitam, final String source, final Collection<String> among) {
+        final Set<String> set = new HashSet<String>();
+        final BasicDBObject condition = new BasicDBObject(SOURCE, source);
+        if (among != null) {
+            condition.append(TARGETS, new BasicDBObject("$in", among));
+        }
+        final DBCursor cursor = dbvitam.links.collection.find(condition, new BasicDBObject(TARGETS, 1));
+        try {
+            while (cursor.hasNext()) {
+                final DBObject bucket = cursor.next();
+                @SuppressWarnings("unchecked")
+                final List<String> targets = (List<String>) bucket.get(TARGETS);
+                if (targets != null) {
+                    set.addAll(targets);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (among != null) {
+            set.retainAll(among);
+        }
+        return set;
+    }
+
+    protected static void addIndexes(final MongoDbAccess dbvitam) {
+        dbvitam.links.collection.createIndex(new BasicDBObject(SOURCE, 1).append(RANK, -1));
+        dbvitam.links.collection.createIndex(new BasicDBObject(SOURCE, 1).append(TARGETS, 1));
+    }
+}
@@ -20,13 +20,24 @@
  */
 package fr.gouv.vitam.mdbes;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.bson.BSONObject;
 import org.elasticsearch.action.ListenableActionFuture;
@@ -36,11 +47,13 @@ import org.elasticsearch.index.query.QueryBuilder;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 
 import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.utils.FileUtil;
@@ -67,8 +80,20 @@ public class MongoDbAccess {
     protected VitamCollection saips = null;
     protected VitamCollection duarefs = null;
     protected VitamCollection requests = null;
-    private ElasticSearchAccess es = null;
+    protected VitamCollection links = null;
+    /**
+     * ElasticSearch access, connected in background
+     */
+    private FutureTask<ElasticSearchAccess> es = null;
     private ListenableActionFuture<BulkResponse> bulkResponseListener = null;
+    /**
+     * Asynchronous bulk indexing pipeline (when GlobalDatas.useBulkPipeline)
+     */
+    private EsBulkIndexer bulkIndexer = null;
+    /**
+     * Number of failed documents of the bulk pipeline already reported by flushEsEntryIndex
+     */
+    private long bulkIndexerFailed = 0;
     protected RedisAccess ra = null;
     protected MessageDigest md;
     
@@ -105,7 +130,7 @@ public class MongoDbAccess {
 
     protected static enum VitamCollections {
         Cdomain(Domain.class), Cdaip(DAip.class), Cpaip(PAip.class), Csaip(SAip.class), Cdua(DuaRef.class), 
-        Crequests(ResultMongodb.class);
+        Crequests(ResultMongodb.class), Clinks(LinkBucket.class);
 
         @SuppressWarnings("rawtypes")
         private Class clasz;
@@ -250,14 +275,22 @@ public class MongoDbAccess {
         } else {
             requests = collections[VitamCollections.Crequests.rank] = new VitamCollection(db, VitamCollections.Crequests, recreate);
         }
-        final DBCursor cursor = domains.collection.find();
-        for (final DBObject dbObject : cursor) {
-            final Domain dom = (Domain) dbObject;
-            dom.setRoot();
+        links = collections[VitamCollections.Clinks.rank] = new VitamCollection(db, VitamCollections.Clinks, recreate);
+        if (recreate && GlobalDatas.useDomainRouting) {
+            shardDaipsByDomain();
         }
-        // elasticsearch index
+        // elasticsearch index, connected in background
         LOGGER.info("ES on cluster name: " + esname + ":" + unicast);
-        es = new ElasticSearchAccess(esname, unicast, GlobalDatas.localNetworkAddress);
+        es = new FutureTask<ElasticSearchAccess>(new Callable<ElasticSearchAccess>() {
+            @Override
+            public ElasticSearchAccess call() {
+                return new ElasticSearchAccess(esname, unicast, GlobalDatas.localNetworkAddress);
+            }
+        });
+        final Thread thread = new Thread(es, "EsConnect");
+        thread.setDaemon(true);
+        thread.start();
+        loadRoots();
         try {
             md = MessageDigest.getInstance("SHA-512");
         } catch (NoSuchAlgorithmException e) {
@@ -272,8 +305,94 @@ public class MongoDbAccess {
      * @return the ES Cluster Name
      */
     public String getEsClusterName() {
-        return es.getClusterName();
+        return getEs().getClusterName();
     }
+    /**
+     *
+     * @return the ElasticSearch access (waiting for the connection if needed)
+     */
+    protected final ElasticSearchAccess getEs() {
+        try {
+            return es.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while connecting to ElasticSearch", e);
+        } catch (final ExecutionException e) {
+            LOGGER.error("Cannot connect to ElasticSearch", e.getCause());
+            throw new IllegalStateException("Cannot connect to ElasticSearch", e.getCause());
+        }
+    }
+
+    /**
+     * Fill the roots (Domain) from the snapshot if any, then refresh them from the database in background,
+     * else directly from the database
+     */
+    private final void loadRoots() {
+        if (GlobalDatas.rootsSnapshotFile != null) {
+            final Path path = Paths.get(GlobalDatas.rootsSnapshotFile);
+            if (Files.isReadable(path)) {
+                try {
+                    GlobalDatas.ROOTS.addAll(Files.readAllLines(path, StandardCharsets.UTF_8));
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshRoots();
+                        }
+                    }, "RootsRefresh");
+                    thread.setDaemon(true);
+                    thread.start();
+                    return;
+                } catch (final IOException e) {
+                    LOGGER.warn("Cannot read roots snapshot", e);
+                }
+            }
+        }
+        refreshRoots();
+    }
+
+    /**
+     * Refresh the roots (Domain) from the database (ids only) and save the snapshot if any
+     */
+    public final void refreshRoots() {
+        final Set<String> before = new HashSet<String>(GlobalDatas.ROOTS);
+        final List<String> roots = new ArrayList<String>();
+        final DBCursor cursor = domains.collection.find(new BasicDBObject(), IDONLY);
+        try {
+            while (cursor.hasNext()) {
+                roots.add((String) cursor.next().get(VitamType.ID));
+            }
+        } finally {
+            cursor.close();
+        }
+        final Set<String> dbroots = new HashSet<String>(roots);
+        // rebuild: remove the roots no longer in the database (stale snapshot or deleted Domain),
+        // keeping the ones added meanwhile
+        for (final String id : before) {
+            if (!dbroots.contains(id)) {
+                GlobalDatas.ROOTS.remove(id);
+            }
+        }
+        GlobalDatas.ROOTS.addAll(dbroots);
+        if (GlobalDatas.rootsSnapshotFile != null) {
+            final Path path = Paths.get(GlobalDatas.rootsSnapshotFile);
+            final Path temp = Paths.get(GlobalDatas.rootsSnapshotFile + ".tmp");
+            try {
+                Files.write(temp, roots, StandardCharsets.UTF_8);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException e) {
+                LOGGER.warn("Cannot write roots snapshot", e);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the replica set oplog collection (local database)
+     */
+    protected final DBCollection getOplog() {
+        return db.getMongo().getDB("local").getCollection("oplog.rs");
+    }
+
     /**
      * 
      * @param tohash
@@ -296,27 +415,89 @@ public class MongoDbAccess {
                 collections[i].collection.drop();
             }
         }
-        es.deleteIndex(GlobalDatas.INDEXNAME);
-        es.addIndex(GlobalDatas.INDEXNAME, model);
+        getEs().deleteIndex(GlobalDatas.INDEXNAME);
+        if (GlobalDatas.useIndexAlias) {
+            // real index behind the alias, such that it could be rebuilt later on without downtime
+            final String indexName = getEs().createVersionedIndex(GlobalDatas.INDEXNAME, model, null);
+            if (indexName != null) {
+                getEs().switchAlias(GlobalDatas.INDEXNAME, indexName);
+            }
+        }
+        getEs().addIndex(GlobalDatas.INDEXNAME, model);
         ensureIndex();
     }
 
+    /**
+     * Rebuild the ElasticSearch index from MongoDB without downtime: a new versioned index is built and caught up,
+     * then the alias GlobalDatas.INDEXNAME is switched to it and previous indexes are deleted
+     *
+     * @param model
+     * @param fields
+     *            the model fields with their type (null for structural fields only)
+     * @return True if ok
+     */
+    public boolean reindexEs(final String model, final Map<String, EsMapping.FTYPE> fields) {
+        final EsReindexer reindexer = new EsReindexer(this, GlobalDatas.INDEXNAME, model, fields,
+                GlobalDatas.esReindexPartitions, GlobalDatas.esReindexCatchUpTimeout);
+        return reindexer.reindex(true) != null;
+    }
+
+    /**
+     * Migration step of an ElasticSearch index created before aliases: as reindexEs, but the real index
+     * GlobalDatas.INDEXNAME is replaced by an alias on the new index, with a short downtime between the two
+     *
+     * @param model
+     * @param fields
+     *            the model fields with their type (null for structural fields only)
+     * @return True if ok
+     */
+    public boolean migrateEsToAlias(final String model, final Map<String, EsMapping.FTYPE> fields) {
+        final EsReindexer reindexer = new EsReindexer(this, GlobalDatas.INDEXNAME, model, fields,
+                GlobalDatas.esReindexPartitions, GlobalDatas.esReindexCatchUpTimeout);
+        reindexer.setMigrate(true);
+        return reindexer.reindex(true) != null;
+    }
+
     /**
      * Update the Index for a new model
      *
      * @param model
      */
     public void updateEsIndex(final String model) {
-        es.addIndex(GlobalDatas.INDEXNAME, model);
+        getEs().addIndex(GlobalDatas.INDEXNAME, model);
+    }
+
+    /**
+     * Update the Index for a new model, with a mapping generated from its fields
+     *
+     * @param model
+     * @param fields
+     *            the model fields with their type
+     */
+    public void updateEsIndex(final String model, final Map<String, EsMapping.FTYPE> fields) {
+        getEs().addIndex(GlobalDatas.INDEXNAME, model, fields);
     }
 
     /**
      * Close database access (ElasticSearch, Couchbase, Redis, ...)
      */
     public final void close() {
-        es.close();
-        if (ra != null) {
-            ra.close();
+        synchronized (this) {
+            if (bulkIndexer != null) {
+                bulkIndexer.close(60000);
+                bulkIndexer = null;
+                bulkIndexerFailed = 0;
+            }
+        }
+        try {
+            getEs().close();
+        } catch (final IllegalStateException e) {
+            // ElasticSearch never connected: nothing to close
+            LOGGER.warn("ElasticSearch not closed: " + e.getMessage());
+        } finally {
+            if (ra != null) {
+                ra.close();
+            }
         }
     }
     /**
@@ -343,6 +524,7 @@ public class MongoDbAccess {
         PAip.addIndexes(this);
         SAip.addIndexes(this);
         DuaRef.addIndexes(this);
+        LinkBucket.addIndexes(this);
         if (!(GlobalDatas.USELRUCACHE || GlobalDatas.USEREDIS)) {
             ResultMongodb.addIndexes(this);
         }
@@ -355,12 +537,50 @@ public class MongoDbAccess {
         try {
             daips.collection.dropIndex(new BasicDBObject(VitamLinks.DAip2DAip.field2to1, 1));
             daips.collection.dropIndex(new BasicDBObject(VitamLinks.Domain2DAip.field2to1, 1));
-            daips.collection.dropIndex(new BasicDBObject(DAip.DAIPDEPTHS, 1));
+            daips.collection.dropIndex(DAip.getAncestorsIndex());
         } catch (final Exception e) {
             LOGGER.error("Error while removing indexes before import", e);
         }
     }
 
+    /**
+     * Start a bulk load in ElasticSearch (refresh and replicas disabled until endEsBulkLoad)
+     */
+    public void startEsBulkLoad() {
+        getEs().startBulkLoad(GlobalDatas.INDEXNAME);
+    }
+
+    /**
+     * End a bulk load in ElasticSearch (settings restored and refresh)
+     *
+     * @param optimize
+     *            True to also optimize the index segments (long)
+     */
+    public void endEsBulkLoad(final boolean optimize) {
+        // pending indexations must be done before the refresh
+        if (!flushEsEntryIndex(60000)) {
+            LOGGER.error("ES bulk load ended with documents not indexed");
+        }
+        getEs().endBulkLoad(GlobalDatas.INDEXNAME, optimize ? GlobalDatas.esOptimizeSegments : 0);
+    }
+
+    /**
+     * Shard the DAip collection using a Domain prefixed shard key (root Domain, then _id),
+     * such that requests on one Domain target only the relevant shards (needs a mongos)
+     */
+    public final void shardDaipsByDomain() {
+        final BasicDBObject key = new BasicDBObject(DAip.DAIPROOT, 1).append(VitamType.ID, 1);
+        daips.collection.createIndex(key);
+        CommandResult result = dbadmin.command(new BasicDBObject("enableSharding", db.getName()));
+        if (!result.ok()) {
+            LOGGER.info("Sharding not enabled: " + result.getErrorMessage());
+        }
+        result = dbadmin.command(new BasicDBObject("shardCollection", daips.collection.getFullName()).append("key", key));
+        if (!result.ok()) {
+            LOGGER.error("Cannot shard DAip by Domain: " + result.getErrorMessage());
+        }
+    }
+
     /**
      * Reset MongoDB Index (import optimization?)
      */
@@ -368,7 +588,7 @@ public class MongoDbAccess {
         LOGGER.info("Rebuild indexes");
         daips.collection.createIndex(new BasicDBObject(VitamLinks.DAip2DAip.field2to1, 1));
         daips.collection.createIndex(new BasicDBObject(VitamLinks.Domain2DAip.field2to1, 1));
-        daips.collection.createIndex(new BasicDBObject(DAip.DAIPDEPTHS, 1));
+        daips.collection.createIndex(DAip.getAncestorsIndex());
     }
 
     @Override
@@ -609,16 +829,82 @@ public class MongoDbAccess {
      * @param condition
      * @param filterCond
      * @param useStart True if currentNodes are final ids subsets (not parents)
+     * @param routing the root Domains to target (null for all)
+     * @param setId the cache id of the result holding currentNodes (null if none)
      * @return the ResultCached associated with this request. 
      *         Note that the exact depth is not checked, so it must be checked
      *         after (using checkAncestor method)
      */
     public final ResultInterface getSubDepth(final String indexName, final String type, final Collection<String> currentNodes,
-            final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond, final boolean useStart) {
+            final int subdepth, final QueryBuilder condition, final FilterBuilder filterCond, final boolean useStart,
+            final String[] routing, final String setId) {
+        final String[] nodes = currentNodes.toArray(new String[0]);
+        final String setKey = getSetKey(setId, nodes.length);
         if (useStart) {
-            return es.getSubDepthStart(indexName, type, currentNodes.toArray(new String[0]), subdepth, condition, filterCond);
+            return getEs().getSubDepthStart(indexName, type, nodes, subdepth, condition, filterCond, routing, setKey);
         } else {
-            return es.getSubDepth(indexName, type, currentNodes.toArray(new String[0]), subdepth, condition, filterCond);
+            return getEs().getSubDepth(indexName, type, nodes, subdepth, condition, filterCond, routing, setKey);
+        }
+    }
+
+    /**
+     * Compute the key of a set of ids to be stored for terms lookup from the identity of the set (the cache id of the
+     * result holding it, or derived from it) and its size, without reading the ids
+     *
+     * @param setId
+     *            the identity of the set (may be null)
+     * @param size
+     *            the number of ids
+     * @return the key or null if the set shall be inlined
+     */
+    private static final String getSetKey(final String setId, final int size) {
+        if (setId == null || !GlobalDatas.useTermsLookup || size < GlobalDatas.limitTermsLookup) {
+            return null;
+        }
+        return setId + "_" + size;
+    }
+
+    /**
+     * Forget the stored set of a result that was just (re)computed, since its ids may have changed while its cache
+     * id is the same: it will be stored again (under a new document) on next use
+     *
+     * @param result
+     */
+    public final void forgetStoredSet(final ResultInterface result) {
+        final String setKey = getSetKey(result.getId(), result.getCurrentDaip().size());
+        if (setKey != null) {
+            getEs().forgetSet(setKey);
+        }
+    }
+
+    /**
+     * Compute an aggregation over the given DAip, either in ElasticSearch or through a MongoDB aggregation pipeline
+     *
+     * @param indexName
+     * @param type
+     * @param ids the DAip ids to aggregate
+     * @param aggregation
+     * @param routing the root Domains to target (null for all)
+     * @param useEs True to aggregate in ElasticSearch, else in MongoDB
+     * @param setId the identity of the set of ids (null if none)
+     * @return the buckets (key, count), or null if ElasticSearch answers in error
+     * @throws MongoException if the MongoDB aggregation fails
+     */
+    public final Map<String, Long> aggregate(final String indexName, final String type, final Collection<String> ids,
+            final DbAggregation aggregation, final String[] routing, final boolean useEs, final String setId) {
+        if (useEs) {
+            final String[] nodes = ids.toArray(new String[0]);
+            return getEs().aggregate(indexName, type, nodes, aggregation, routing, getSetKey(setId, nodes.length));
+        }
+        final BasicDBObject match = new BasicDBObject(VitamType.ID, new BasicDBObject("$in", ids));
+        if (routing != null) {
+            match.append(DAip.DAIPROOT, new BasicDBObject("$in", routing));
+        }
+        try {
+            return aggregation.getBuckets(daips.collection.aggregate(aggregation.getMongoPipeline(match)).results());
+        } catch (final MongoException e) {
+            LOGGER.error("Aggregation in error: " + aggregation, e);
+            throw e;
         }
     }
 
@@ -629,11 +915,15 @@ public class MongoDbAccess {
     * @param subset subset of valid nodes
     * @param condition
     * @param filterCond
+    * @param routing the root Domains to target (null for all)
+    * @param setId the identity of the subset (null if none)
     * @return the ResultCached associated with this request
     */
    public final ResultInterface getNegativeSubDepth(final String indexName, final String type, final Collection<String> subset,
-           final QueryBuilder condition, final FilterBuilder filterCond) {
-       return es.getNegativeSubDepth(indexName, type, subset.toArray(new String[0]), condition, filterCond);
+           final QueryBuilder condition, final FilterBuilder filterCond, final String[] routing, final String setId) {
+       final String[] nodes = subset.toArray(new String[0]);
+       return getEs().getNegativeSubDepth(indexName, type, nodes, condition, filterCond, routing,
+               getSetKey(setId, nodes.length));
    }
 
    /**
@@ -644,7 +934,7 @@ public class MongoDbAccess {
     * @return True if inserted in ES
     */
    public final boolean addEsEntryIndex(final String model, String id, String json) {
-       return es.addEntryIndex(GlobalDatas.INDEXNAME, model, id, json);
+       return getEs().addEntryIndex(GlobalDatas.INDEXNAME, model, id, json);
    }
    /**
      * Add indexes to ES model
@@ -656,6 +946,47 @@ public class MongoDbAccess {
         addEsEntryIndex(GlobalDatas.BLOCKING, indexes, model);
     }
 
+    /**
+     *
+     * @return the bulk indexing pipeline (created at first call)
+     */
+    public final synchronized EsBulkIndexer getBulkIndexer() {
+        if (bulkIndexer == null) {
+            bulkIndexer = new EsBulkIndexer(getEs().getClient());
+        }
+        return bulkIndexer;
+    }
+
+    /**
+     * Wait for all pending ES indexations (from the bulk pipeline or the previous bulk)
+     *
+     * @param timeout
+     *            max wait in ms for the bulk pipeline
+     * @return True if all are done and no document of the bulk pipeline failed since the previous call
+     */
+    public final boolean flushEsEntryIndex(final long timeout) {
+        checkPreviousBulkEs();
+        final EsBulkIndexer indexer;
+        synchronized (this) {
+            indexer = bulkIndexer;
+        }
+        if (indexer != null) {
+            final boolean done = indexer.flush(timeout);
+            LOGGER.info(indexer.toString());
+            final long failed = indexer.getNbFailed();
+            final long newFailed;
+            synchronized (this) {
+                newFailed = failed - bulkIndexerFailed;
+                bulkIndexerFailed = failed;
+            }
+            if (newFailed > 0) {
+                LOGGER.error("ES bulk pipeline in error for " + newFailed + " documents");
+            }
+            return done && newFailed <= 0;
+        }
+        return true;
+    }
+
     private final void checkPreviousBulkEs() {
         synchronized (this) {
             if (bulkResponseListener != null) {
@@ -676,12 +1007,19 @@ public class MongoDbAccess {
      * @return True if done (and if blocking)
      */
     public final boolean addEsEntryIndex(final boolean blocking, final Map<String, String> indexes, final String model) {
+        if (!blocking && GlobalDatas.useBulkPipeline) {
+            final EsBulkIndexer indexer = getBulkIndexer();
+            for (final Entry<String, String> entry : indexes.entrySet()) {
+                indexer.add(GlobalDatas.INDEXNAME, model, entry.getKey(), entry.getValue());
+            }
+            return true;
+        }
         checkPreviousBulkEs();
         if (blocking) {
-            return es.addEntryIndexesBlocking(GlobalDatas.INDEXNAME, model, indexes);
+            return getEs().addEntryIndexesBlocking(GlobalDatas.INDEXNAME, model, indexes);
         } else {
             synchronized(this) {
-                bulkResponseListener = es.addEntryIndexes(GlobalDatas.INDEXNAME, model, indexes);
+                bulkResponseListener = getEs().addEntryIndexes(GlobalDatas.INDEXNAME, model, indexes);
             }
             return true;
         }
@@ -720,6 +1058,18 @@ public class MongoDbAccess {
         return null;
     }
 
+    /**
+     * Add only the reverse part (obj2 to obj1) of a Link, the obj1 to obj2 part being handled elsewhere (as in LinkBucket)
+     *
+     * @param obj1
+     * @param relation
+     * @param obj2
+     * @return a {@link DBObject} that hold a possible update part (may be null)
+     */
+    protected final DBObject addReverseLink(final VitamType obj1, final VitamLinks relation, final VitamType obj2) {
+        return addAsymmetricLinkset(obj2, relation.field2to1, obj1, true);
+    }
+
     /**
      * Update the link
      *
@@ -948,6 +1298,36 @@ public class MongoDbAccess {
         }
     }
 
+    /**
+     * Save all those results (typically all levels of one query), using one bulk operation
+     * when results are stored in MongoDB
+     *
+     * @param results
+     */
+    public final void saveResults(final List<ResultInterface> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        if (GlobalDatas.USELRUCACHE || GlobalDatas.USEREDIS) {
+            for (final ResultInterface result : results) {
+                result.save(this);
+            }
+        } else {
+            final List<ResultMongodb> list = new ArrayList<ResultMongodb>(results.size());
+            for (final ResultInterface result : results) {
+                if (result instanceof ResultMongodb) {
+                    list.add((ResultMongodb) result);
+                } else {
+                    // not a MongoDB stored result: let it save itself
+                    result.save(this);
+                }
+            }
+            if (!list.isEmpty()) {
+                ResultMongodb.bulkSave(this, list);
+            }
+        }
+    }
+
     /**
      * 
      * @return a new ResultInterface
@@ -118,10 +118,10 @@ public class PAip extends VitamType {
     @Override
     public void save(final MongoDbAccess dbvitam) {
         putBeforeSave();
-        if (updated(dbvitam)) {
-            return;
+        if (!updated(dbvitam)) {
+            updateOrSave(dbvitam.paips);
         }
-        updateOrSave(dbvitam.paips);
+        ReferenceCache.invalidate(Cpaip);
     }
 
     /**
@@ -183,6 +183,15 @@ public class PAip extends VitamType {
         return (PAip) dbvitam.findOne(Cpaip, refid);
     }
 
+    /**
+     * @param dbvitam
+     * @param refid
+     * @return the PAip without its DAip links, as a copy from the reference cache, or null
+     */
+    public static PAip findOnePolicy(final MongoDbAccess dbvitam, final String refid) {
+        return ReferenceCache.getPAip(dbvitam, refid);
+    }
+
     protected static void addIndexes(final MongoDbAccess dbvitam) {
         dbvitam.paips.collection.createIndex(new BasicDBObject(MongoDbAccess.VitamLinks.DAip2PAip.field2to1, 1));
         dbvitam.paips.collection.createIndex(new BasicDBObject(MongoDbAccess.VitamLinks.PAip2SAip.field1to2, 1));
@@ -0,0 +1,324 @@
+/**
+ * This file is part of POC MongoDB ElasticSearch Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All POC MongoDB ElasticSearch Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * POC MongoDB ElasticSearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with POC MongoDB ElasticSearch . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BSONObject;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import fr.gouv.vitam.mdbes.MongoDbAccess.VitamCollections;
+import fr.gouv.vitam.mdbes.MongoDbAccess.VitamLinks;
+import fr.gouv.vitam.query.GlobalDatas;
+
+/**
+ * Read-through in memory cache of reference data (DuaRef, SAip and storage policy part of PAip).<br>
+ * <br>
+ * Each collection has a version, increased on each local change (save), which invalidates its entries; entries also
+ * expire after GlobalDatas.REFCACHE_TTLMS to take into account changes from other processes.<br>
+ * Cached objects are never exposed: callers get copies they are free to modify.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class ReferenceCache {
+    /**
+     * Resolved chain DAip - PAip - SAip - DuaRef
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    public static class Chain {
+        /**
+         * DAip id
+         */
+        public String daip;
+        /**
+         * PAip (without its DAip links) or null
+         */
+        public PAip paip;
+        /**
+         * SAip or null
+         */
+        public SAip saip;
+        /**
+         * DuaRef from DAip and PAip
+         */
+        public List<DuaRef> duas = new ArrayList<DuaRef>();
+    }
+
+    private static class Entry {
+        private final VitamType value;
+        private final long version;
+        private final long expire;
+
+        private Entry(final VitamType value, final long version) {
+            this.value = value;
+            this.version = version;
+            expire = System.currentTimeMillis() + GlobalDatas.REFCACHE_TTLMS;
+        }
+    }
+
+    /**
+     * Not loaded parts of PAip (DAip links can be huge)
+     */
+    private static final DBObject PAIP_PROJECTION = new BasicDBObject(VitamLinks.DAip2PAip.field2to1, 0);
+    /**
+     * Only links from DAip
+     */
+    private static final DBObject DAIP_PROJECTION = new BasicDBObject(VitamLinks.DAip2PAip.field1to2, 1)
+            .append(VitamLinks.DAip2Dua.field1to2, 1);
+
+    private static final Map<VitamCollections, Map<String, Entry>> CACHES = new HashMap<VitamCollections, Map<String, Entry>>();
+    private static final Map<VitamCollections, AtomicLong> VERSIONS = new HashMap<VitamCollections, AtomicLong>();
+    static {
+        for (final VitamCollections col : new VitamCollections[] { VitamCollections.Cdua, VitamCollections.Csaip,
+                VitamCollections.Cpaip }) {
+            CACHES.put(col, new ConcurrentHashMap<String, Entry>());
+            VERSIONS.put(col, new AtomicLong(0));
+        }
+    }
+
+    private ReferenceCache() {
+        // empty
+    }
+
+    /**
+     * Invalidate all entries of this collection (to be called on change)
+     *
+     * @param col
+     */
+    protected static void invalidate(final VitamCollections col) {
+        final AtomicLong version = VERSIONS.get(col);
+        if (version != null) {
+            version.incrementAndGet();
+            CACHES.get(col).clear();
+        }
+    }
+
+    /**
+     * Clear all caches
+     */
+    public static void clear() {
+        for (final VitamCollections col : VERSIONS.keySet()) {
+            invalidate(col);
+        }
+    }
+
+    /**
+     * @param col
+     * @return the current version of this collection
+     */
+    protected static long getVersion(final VitamCollections col) {
+        return VERSIONS.get(col).get();
+    }
+
+    /**
+     * Get all objects from the cache, loading the missing ones in one request
+     *
+     * @param dbvitam
+     * @param col
+     * @param ids
+     * @return the map of found objects
+     */
+    private static Map<String, VitamType> getAll(final MongoDbAccess dbvitam, final VitamCollections col,
+            final Collection<String> ids) {
+        final Map<String, Entry> cache = CACHES.get(col);
+        final long version = VERSIONS.get(col).get();
+        final long now = System.currentTimeMillis();
+        final Map<String, VitamType> result = new HashMap<String, VitamType>();
+        final Set<String> missing = new HashSet<String>();
+        for (final String id : ids) {
+            if (id == null) {
+                continue;
+            }
+            final Entry entry = cache.get(id);
+            if (entry != null && entry.version == version && entry.expire > now) {
+                result.put(id, entry.value);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        final DBCursor cursor = col.getCollection().find(
+                new BasicDBObject(VitamType.ID, new BasicDBObject("$in", missing)),
+                col == VitamCollections.Cpaip ? PAIP_PROJECTION : null);
+        try {
+            while (cursor.hasNext()) {
+                final VitamType value = (VitamType) cursor.next();
+                value.getAfterLoad();
+                cache.put(value.getId(), new Entry(value, version));
+                result.put(value.getId(), value);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * @param value
+     * @return a deep copy of the cached value, of the same class
+     */
+    private static VitamType copy(final VitamType value) {
+        if (value == null) {
+            return null;
+        }
+        final VitamType copy;
+        try {
+            copy = value.getClass().newInstance();
+        } catch (final InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot copy " + value.getClass().getSimpleName(), e);
+        }
+        copy.putAll((BSONObject) value.copy());
+        copy.getAfterLoad();
+        return copy;
+    }
+
+    private static VitamType get(final MongoDbAccess dbvitam, final VitamCollections col, final String id) {
+        if (id == null || id.length() == 0) {
+            return null;
+        }
+        final List<String> ids = new ArrayList<String>(1);
+        ids.add(id);
+        return copy(getAll(dbvitam, col, ids).get(id));
+    }
+
+    /**
+     * @param dbvitam
+     * @param id
+     * @return the DuaRef (copy of the cached one) or null
+     */
+    public static DuaRef getDuaRef(final MongoDbAccess dbvitam, final String id) {
+        return (DuaRef) get(dbvitam, VitamCollections.Cdua, id);
+    }
+
+    /**
+     * @param dbvitam
+     * @param id
+     * @return the SAip (copy of the cached one) or null
+     */
+    public static SAip getSAip(final MongoDbAccess dbvitam, final String id) {
+        return (SAip) get(dbvitam, VitamCollections.Csaip, id);
+    }
+
+    /**
+     * @param dbvitam
+     * @param id
+     * @return the PAip (copy of the cached one, without DAip links) or null
+     */
+    public static PAip getPAip(final MongoDbAccess dbvitam, final String id) {
+        return (PAip) get(dbvitam, VitamCollections.Cpaip, id);
+    }
+
+    /**
+     * Resolve the chains DAip - PAip - SAip - DuaRef for all DAip, using at most one request per collection.<br>
+     * Chains sharing the same reference share the same copy.
+     *
+     * @param dbvitam
+     * @param daips
+     *            DAip ids
+     * @return the map of chains for found DAip
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Chain> resolve(final MongoDbAccess dbvitam, final Collection<String> daips) {
+        final Map<String, Chain> chains = new HashMap<String, Chain>();
+        if (daips.isEmpty()) {
+            return chains;
+        }
+        final Map<String, String> daipDua = new HashMap<String, String>();
+        final Map<String, String> daipPaip = new HashMap<String, String>();
+        final DBCursor cursor = dbvitam.daips.collection.find(
+                new BasicDBObject(VitamType.ID, new BasicDBObject("$in", daips)), DAIP_PROJECTION);
+        try {
+            while (cursor.hasNext()) {
+                final DBObject daip = cursor.next();
+                final String id = (String) daip.get(VitamType.ID);
+                final Chain chain = new Chain();
+                chain.daip = id;
+                chains.put(id, chain);
+                daipPaip.put(id, (String) daip.get(VitamLinks.DAip2PAip.field1to2));
+                daipDua.put(id, (String) daip.get(VitamLinks.DAip2Dua.field1to2));
+            }
+        } finally {
+            cursor.close();
+        }
+        final Map<String, VitamType> paips = getAll(dbvitam, VitamCollections.Cpaip, new HashSet<String>(daipPaip.values()));
+        final Set<String> saipIds = new HashSet<String>();
+        final Set<String> duaIds = new HashSet<String>(daipDua.values());
+        for (final VitamType paip : paips.values()) {
+            saipIds.add((String) paip.get(VitamLinks.PAip2SAip.field1to2));
+            final List<String> duas = (List<String>) paip.get(VitamLinks.PAip2Dua.field1to2);
+            if (duas != null) {
+                duaIds.addAll(duas);
+            }
+        }
+        final Map<String, VitamType> saips = getAll(dbvitam, VitamCollections.Csaip, saipIds);
+        final Map<String, VitamType> duas = getAll(dbvitam, VitamCollections.Cdua, duaIds);
+        copyAll(paips);
+        copyAll(saips);
+        copyAll(duas);
+        for (final Chain chain : chains.values()) {
+            final DuaRef dua = (DuaRef) duas.get(daipDua.get(chain.daip));
+            if (dua != null) {
+                chain.duas.add(dua);
+            }
+            final String paipId = daipPaip.get(chain.daip);
+            if (paipId == null) {
+                continue;
+            }
+            chain.paip = (PAip) paips.get(paipId);
+            if (chain.paip == null) {
+                continue;
+            }
+            chain.saip = (SAip) saips.get(chain.paip.get(VitamLinks.PAip2SAip.field1to2));
+            final List<String> paipDuas = (List<String>) chain.paip.get(VitamLinks.PAip2Dua.field1to2);
+            if (paipDuas != null) {
+                for (final String duaId : paipDuas) {
+                    final DuaRef paipDua = (DuaRef) duas.get(duaId);
+                    if (paipDua != null && !chain.duas.contains(paipDua)) {
+                        chain.duas.add(paipDua);
+                    }
+                }
+            }
+        }
+        return chains;
+    }
+
+    private static void copyAll(final Map<String, VitamType> map) {
+        for (final Map.Entry<String, VitamType> entry : map.entrySet()) {
+            entry.setValue(copy(entry.getValue()));
+        }
+    }
+}
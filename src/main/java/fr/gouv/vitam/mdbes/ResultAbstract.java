@@ -25,9 +25,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-
+import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.utils.UUID;
 
 /**
@@ -58,7 +56,7 @@ public abstract class ResultAbstract implements ResultInterface {
     /**
      * Current SAip in the result
      */
-    public Set<String> currentDaip = new HashSet<String>();
+    public Set<String> currentDaip = newIdSet();
     /**
      * Min depth
      */
@@ -76,6 +74,21 @@ public abstract class ResultAbstract implements ResultInterface {
      */
     public boolean loaded = false;
 
+    /**
+     *
+     * @return a new empty Set of ids, bitmap (using the IdDictionary bound to the current request), compact or not
+     *         according to GlobalDatas.useBitmapIdSet and GlobalDatas.useCompactIdSet
+     */
+    public static final Set<String> newIdSet() {
+        if (GlobalDatas.useBitmapIdSet) {
+            return new BitmapIdSet();
+        }
+        if (GlobalDatas.useCompactIdSet) {
+            return new CompactIdSet();
+        }
+        return new HashSet<String>();
+    }
+
     /**
      * Compute min and max from list of UUID in currentMaip.
      * Note: this should not be called from a list of "short" UUID, but only with "path" UUIDs
@@ -98,8 +111,6 @@ public abstract class ResultAbstract implements ResultInterface {
         }
     }
 
-    private static final DBObject FIELDDOMDEPTH = new BasicDBObject(DAip.DAIPDEPTHS, 1);
-
     /**
      * Compute min and max from list of real MAIP (from UUID), so loaded from database (could be heavy)
      *
@@ -114,41 +125,28 @@ public abstract class ResultAbstract implements ResultInterface {
             return;
         }
         minLevel = Integer.MAX_VALUE;
+        final List<String> toLoad = new ArrayList<String>();
         for (final String id : currentDaip) {
-            int level = UUID.getUuidNb(id);
+            final int level = UUID.getUuidNb(id);
             if (level == 1) {
-                DBObject dbObject = dbvitam.daips.collection.findOne(id, FIELDDOMDEPTH);
-                if (dbObject == null) {
-                    continue;
-                }
-                @SuppressWarnings("unchecked")
-                final Map<String, Integer> domdepth = (Map<String, Integer>) dbObject.get(DAip.DAIPDEPTHS);
-                /*
-                final DAip daip = DAip.findOne(dbvitam, id);
-                if (daip == null) {
-                    continue;
-                }
-                final Map<String, Integer> domdepth = daip.getDomDepth();
-                 */
-                if (domdepth == null || domdepth.isEmpty()) {
-                    level = 1;
-                } else {
-                    level = 0;
-                    for (final int lev : domdepth.values()) {
-                        if (level < lev) {
-                            level = lev;
-                        }
-                    }
-                    level++;
-                }
-            }
-            if (minLevel > level) {
-                minLevel = level;
-            }
-            if (maxLevel == 0 || maxLevel < level) {
-                maxLevel = level;
+                toLoad.add(id);
+            } else {
+                updateMinMax(level);
             }
         }
+        // one structural request for all single UUID
+        for (final DAipStructure daip : DAipStructure.find(dbvitam, toLoad).values()) {
+            updateMinMax(daip.getMaxDepth());
+        }
+    }
+
+    private final void updateMinMax(final int level) {
+        if (minLevel > level) {
+            minLevel = level;
+        }
+        if (maxLevel == 0 || maxLevel < level) {
+            maxLevel = level;
+        }
     }
 
     /**
@@ -164,10 +162,15 @@ public abstract class ResultAbstract implements ResultInterface {
         if (mdAccess == null) {
             return true;
         }
-        final Set<String> previousLastSet = new HashSet<String>();
+        final Set<String> previousLastSet;
         // Compute last Id from previous result
-        for (final String id : currentDaip) {
-            previousLastSet.add(UUID.getLastAsString(id));
+        if (currentDaip instanceof CompactIdSet) {
+            previousLastSet = ((CompactIdSet) currentDaip).lastIdSet();
+        } else {
+            previousLastSet = new HashSet<String>();
+            for (final String id : currentDaip) {
+                previousLastSet.add(UUID.getLastAsString(id));
+            }
         }
         final Map<String, List<String>> nextFirstMap = new HashMap<String, List<String>>();
         final ResultAbstract rnext = (ResultAbstract) next;
@@ -181,24 +184,17 @@ public abstract class ResultAbstract implements ResultInterface {
             list.add(id);
         }
         final Map<String, List<String>> newMap = new HashMap<String, List<String>>(nextFirstMap);
+        // one structural request for all first Ids
+        final Map<String, DAipStructure> structures = DAipStructure.find(mdAccess, nextFirstMap.keySet());
         for (final String id : nextFirstMap.keySet()) {
-            DBObject dbObject = mdAccess.daips.collection.findOne(id, FIELDDOMDEPTH);
-            if (dbObject == null) {
-                continue;
-            }
-            @SuppressWarnings("unchecked")
-            final Map<String, Integer> fathers = (Map<String, Integer>) dbObject.get(DAip.DAIPDEPTHS);
-            /*
-            final DAip aip = DAip.findOne(mdAccess, id);
+            final DAipStructure aip = structures.get(id);
             if (aip == null) {
                 continue;
             }
-            final Map<String, Integer> fathers = aip.getDomDepth();
-            */
-            final Set<String> fathersIds = fathers.keySet();
+            final Set<String> fathersIds = new HashSet<String>(aip.getDomDepth().keySet());
             // Check that parents of First Ids of Current result contains Last Ids from Previous result
             fathersIds.retainAll(previousLastSet);
-            if (fathers.isEmpty()) {
+            if (fathersIds.isEmpty()) {
                 // issue there except if First = Last
                 if (previousLastSet.contains(id)) {
                     continue;
@@ -20,11 +20,9 @@
  */
 package fr.gouv.vitam.mdbes;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -32,9 +30,9 @@ import org.bson.BSONObject;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBObject;
 
-import fr.gouv.vitam.mdbes.MongoDbAccess.VitamCollection;
 import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.utils.logging.VitamLogger;
 import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
@@ -124,98 +122,92 @@ public class ResultMongodb extends ResultAbstract implements DBObject {
         obj.put(TTL, ttl);
     }
 
-    @SuppressWarnings("unchecked")
-    protected boolean updated(final MongoDbAccess dbvitam) {
-        if (getId() == null) {
-            return false;
+    /**
+     * Build the single upsert order for this result: new nodes are merged server side
+     * ($addToSet with $each), levels and TTL are set, other fields are only set on insert
+     *
+     * @return the update order
+     */
+    protected final BasicDBObject getUpsertUpdate() {
+        final BasicDBObject upd = new BasicDBObject();
+        upd.append(MINLEVEL, minLevel);
+        upd.append(MAXLEVEL, maxLevel);
+        upd.append(NBSUBNODES, nbSubNodes);
+        upd.append(TTL, ttl);
+        final BasicDBObject update = new BasicDBObject("$set", upd);
+        if (!currentDaip.isEmpty()) {
+            update.append("$addToSet", new BasicDBObject(CURRENTDAIP, new BasicDBObject("$each", currentDaip)));
         }
-        final ResultMongodb vt = (ResultMongodb) dbvitam.requests.collection.findOne(getId());
-        if (vt != null) {
-            final List<DBObject> list = new ArrayList<DBObject>();
-            final Object obj = vt.obj.get(CURRENTDAIP);
-            final Set<String> vtset = new HashSet<String>();
-            if (obj instanceof BasicDBList) {
-                for (Object string : (BasicDBList) obj) {
-                    vtset.add((String) string);
-                }
-            } else {
-                vtset.addAll((Set<String>) obj);
-            }
-            if (! vtset.isEmpty()) {
-                final Set<String> newset = new HashSet<String>(currentDaip);
-                newset.removeAll(vtset);
-                if (!newset.isEmpty()) {
-                    list.add(new BasicDBObject(CURRENTDAIP, new BasicDBObject("$each", newset)));
-                }
-            }
-            if (!list.isEmpty()) {
-                final BasicDBObject updset = new BasicDBObject();
-                for (final DBObject dbObject : list) {
-                    updset.putAll(dbObject);
-                }
-                final BasicDBObject upd = new BasicDBObject();
-                upd.append(MINLEVEL, minLevel);
-                upd.append(MAXLEVEL, maxLevel);
-                upd.append(NBSUBNODES, nbSubNodes);
-                upd.append(TTL, ttl);
-                final BasicDBObject update = new BasicDBObject("$addToSet", updset).
-                        append("$set", upd);
-                dbvitam.requests.collection.update(new BasicDBObject(ID, this.obj.get(ID)), update);
+        final BasicDBObject insert = new BasicDBObject();
+        for (final String key : obj.keySet()) {
+            if (!upd.containsField(key) && !key.equals(CURRENTDAIP) && !key.equals(ID)) {
+                insert.append(key, obj.get(key));
             }
-            if (GlobalDatas.PRINT_REQUEST) {
-                LOGGER.warn("UPDATE: "+this);
-            }
-        } else if (obj.containsField(ID)) {
-            // not in DB but got already an ID => Save it
-            if (GlobalDatas.PRINT_REQUEST) {
-                LOGGER.warn("SAVE: "+this);
-            }
-            this.forceSave(dbvitam.requests);
-            return true;
         }
-        return false;
+        if (!insert.isEmpty()) {
+            update.append("$setOnInsert", insert);
+        }
+        return update;
     }
-    
-    /**
-     * Force the save (insert) of this document (no putBeforeSave done)
-     * @param collection
-     */
-    protected final void forceSave(final VitamCollection collection) {
-        final String id = (String) obj.get(ID);
-        if (id == null) {
-            // shall not be
-            return;
+
+    protected void updated(final MongoDbAccess dbvitam) {
+        checkId();
+        // One round trip: insert if absent, else merge server side
+        dbvitam.requests.collection.update(new BasicDBObject(ID, getId()), getUpsertUpdate(), true, false);
+        if (GlobalDatas.PRINT_REQUEST) {
+            LOGGER.warn("UPSERT: "+this);
         }
-        collection.collection.save(obj);
     }
+
     /**
-     * Create a new ID
+     * The ID is a digest of the request and cannot be generated here: a result without ID
+     * would be silently lost, so refuse it
+     *
+     * @throws IllegalStateException if no ID was set
      */
-    public final void setNewId() {
-        // not allowed
+    private final void checkId() {
+        if (getId() == null) {
+            throw new IllegalStateException("Cannot save a result without ID (setId not called): " + this);
+        }
     }
+
     /**
-     * Save the document if new, update it (keeping non set fields, replacing set fields)
+     * Save all results (for instance all levels of one query) in one bulk operation
      *
-     * @param collection
+     * @param dbvitam
+     * @param results
      */
-    protected final void updateOrSave(final VitamCollection collection) {
-        final String id = (String) obj.get(ID);
-        if (id != null) {
-            final BasicDBObject upd = new BasicDBObject(obj);
-            upd.removeField(ID);
-            collection.collection.update(new BasicDBObject(ID, id), new BasicDBObject("$set", upd));
+    protected static void bulkSave(final MongoDbAccess dbvitam, final Collection<ResultMongodb> results) {
+        for (final ResultMongodb result : results) {
+            result.checkId();
+        }
+        BulkWriteOperation bulk = null;
+        for (final ResultMongodb result : results) {
+            result.putBeforeSave();
+            result.loaded = true;
+            if (bulk == null) {
+                bulk = dbvitam.requests.collection.initializeOrderedBulkOperation();
+            }
+            bulk.find(new BasicDBObject(ID, result.getId())).upsert().updateOne(result.getUpsertUpdate());
+        }
+        if (bulk != null) {
+            bulk.execute();
+            if (GlobalDatas.PRINT_REQUEST) {
+                LOGGER.warn("BULK UPSERT: "+results.size());
+            }
         }
     }
-    
+
+    /**
+     * Create a new ID
+     */
+    public final void setNewId() {
+        // not allowed
+    }
     @Override
     public void save(final MongoDbAccess dbvitam) {
         putBeforeSave();
-        if (updated(dbvitam)) {
-            loaded = true;
-            return;
-        }
-        updateOrSave(dbvitam.requests);
+        updated(dbvitam);
         loaded = true;
     }
     /**
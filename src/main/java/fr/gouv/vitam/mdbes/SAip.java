@@ -106,10 +106,10 @@ public class SAip extends VitamType {
     @Override
     public void save(final MongoDbAccess dbvitam) {
         putBeforeSave();
-        if (updated(dbvitam)) {
-            return;
+        if (!updated(dbvitam)) {
+            updateOrSave(dbvitam.saips);
         }
-        updateOrSave(dbvitam.saips);
+        ReferenceCache.invalidate(Csaip);
     }
 
     @Override
@@ -126,13 +126,13 @@ public class SAip extends VitamType {
     /**
      * @param dbvitam
      * @param refid
-     * @return the corresponding SAip
+     * @return the corresponding SAip (copy from the reference cache)
      * @throws InstantiationException
      * @throws IllegalAccessException
      */
     public static SAip findOne(final MongoDbAccess dbvitam, final String refid) throws InstantiationException,
             IllegalAccessException {
-        return (SAip) dbvitam.findOne(Csaip, refid);
+        return ReferenceCache.getSAip(dbvitam, refid);
     }
 
     /**
@@ -20,8 +20,9 @@
  */
 package fr.gouv.vitam.query;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author "Frederic Bregier"
@@ -35,7 +36,16 @@ public final class GlobalDatas {
     /**
      * set of Roots Domain : must be updated each time a new Domain is created
      */
-    public static final Set<String> ROOTS = new HashSet<>();
+    public static final Set<String> ROOTS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * File used to snapshot the roots Domain for fast startup (null means no snapshot)
+     */
+    public static String rootsSnapshotFile = null;
+    /**
+     * File prefix used to keep the original ES index settings during a bulk load, so that they can be restored even
+     * after a crash (null means only kept in memory)
+     */
+    public static String bulkLoadSettingsFile = null;
     /**
      * Should we use filter to select from graph parents, or within query (filtering seems better)
      */
@@ -48,6 +58,20 @@ public final class GlobalDatas {
      * Default behavior of ElasticSearch connection (False tends to minimize the number of concurrent connections)
      */
     public static boolean useNewNode = false;
+    /**
+     * Shall DAip be routed (ElasticSearch) and sharded (MongoDB) by their root Domain, such that requests
+     * starting from some Domains only target the relevant shards (a DAip must belong to one root Domain only,
+     * attaching it to a second one is refused)
+     */
+    public static boolean useDomainRouting = false;
+    /**
+     * Shall Domain to DAip links be stored in fixed size buckets (LinkBucket) instead of one array in the Domain
+     */
+    public static boolean useLinkBuckets = false;
+    /**
+     * Maximum number of links in one LinkBucket
+     */
+    public static final int LINK_BUCKET_SIZE = 1000;
     /**
      * Default Index name for ElasticSearch
      */
@@ -60,6 +84,105 @@ public final class GlobalDatas {
      * limit before using ES in 1 level only (set to -1 means use ES at all time)
      */
     public static long limitES = 10001;
+    /**
+     * Shall depth requests (ES only due to depth) be done through MongoDB ancestors index if under limitES
+     * (existing DAip must have been backfilled first, see DAip.backfillAncestors)
+     */
+    public static boolean useMdDepth = false;
+    /**
+     * Shall large sets of parent ids be stored once in a side ES index and referenced through terms lookup filters
+     */
+    public static boolean useTermsLookup = false;
+    /**
+     * Minimal number of ids for a set to be referenced through terms lookup
+     */
+    public static int limitTermsLookup = 1000;
+    /**
+     * Shall depth requests with a large set of parent ids be split into concurrent ES searches
+     */
+    public static boolean useChunkedSearch = false;
+    /**
+     * Shall ES searches (only ids and _nb are needed) be done without scoring nor DFS phase nor source,
+     * reading _nb from field data
+     */
+    public static boolean useIdOnlySearch = false;
+    /**
+     * Shall concurrent ES searches be batched into multi searches
+     */
+    public static boolean useSearchBatching = false;
+    /**
+     * Max wait in ms to batch other searches with a submitted one
+     */
+    public static long esBatchWindow = 2;
+    /**
+     * Max number of searches in one multi search
+     */
+    public static int esBatchMax = 32;
+    /**
+     * Max wait in ms for the response of a batched search
+     */
+    public static long esBatchTimeout = 60000;
+    /**
+     * Shall ElasticSearch be accessed through a shared transport client (lazily connected) instead of a client node
+     */
+    public static boolean useTransportClient = false;
+    /**
+     * Shall the transport client discover the other nodes of the cluster
+     */
+    public static boolean esTransportSniff = false;
+    /**
+     * Default ElasticSearch transport port
+     */
+    public static final int ES_TRANSPORT_PORT = 9300;
+    /**
+     * Max number of segments per shard when optimizing after a bulk load
+     */
+    public static int esOptimizeSegments = 5;
+    /**
+     * Shall fields out of the model be not indexed when the mapping is generated from a model
+     */
+    public static boolean esModelOnlyMapping = true;
+    /**
+     * Shall the ElasticSearch index be an alias on a versioned index (allowing reindex without downtime)
+     */
+    public static boolean useIndexAlias = false;
+    /**
+     * Number of concurrent partitioned scans of DAip when reindexing
+     */
+    public static int esReindexPartitions = 16;
+    /**
+     * Max wait in ms for catching up the writes done during a reindex
+     */
+    public static long esReindexCatchUpTimeout = 60000;
+    /**
+     * Shall requests be parsed in one pass over the Json tokens, sources being fingerprints of each level
+     */
+    public static boolean useStreamingParser = false;
+    /**
+     * Shall MongoDB and ElasticSearch parts of requests be built only when first needed (MdEsQueryParser)
+     */
+    public static boolean useLazyBuilders = false;
+    /**
+     * Number of parent ids per chunk in chunked searches
+     */
+    public static int esChunkSize = 1000;
+    /**
+     * Number of concurrent chunk searches
+     */
+    public static int esChunkConcurrency = 4;
+    /**
+     * Shall result sets of ids be stored as packed values (CompactIdSet) instead of HashSet of String
+     */
+    public static boolean useCompactIdSet = false;
+    /**
+     * Shall result sets of ids be stored as bitmaps of node shared ordinals (BitmapIdSet), taking precedence over
+     * useCompactIdSet
+     */
+    public static boolean useBitmapIdSet = false;
+    /**
+     * Number of ids in the node IdDictionary beyond which a new one is started
+     */
+    public static final int LIMIT_ID_DICTIONARY = 10000000;
     /**
      * limit for loading result
      */
@@ -68,6 +191,26 @@ public final class GlobalDatas {
      * limit before flushing ES with Bulk
      */
     public static final int LIMIT_ES_NEW_INDEX = 10000;
+    /**
+     * Maximum number of keys of sets of ids known as stored in the ElasticSearch side index
+     */
+    public static final int LIMIT_ES_STORED_SETS = 10000;
+    /**
+     * Shall non blocking ES indexation use the asynchronous bulk pipeline (EsBulkIndexer)
+     */
+    public static boolean useBulkPipeline = false;
+    /**
+     * Max size in MB of one bulk in the pipeline
+     */
+    public static int esBulkSizeMb = 10;
+    /**
+     * Max delay in ms before a non full bulk is sent by the pipeline
+     */
+    public static long esBulkFlushInterval = 1000;
+    /**
+     * Max number of bulks in flight in the pipeline
+     */
+    public static int esBulkConcurrency = 4;
     /**
      * limit before flushing MongoDB with Bulk
      */
@@ -96,6 +239,10 @@ public final class GlobalDatas {
      * Default TTL in ms : 24H
      */
     public static final int TTLMS = 3600*24*1000;
+    /**
+     * TTL in ms of reference data (DuaRef, SAip, PAip) in the in memory cache
+     */
+    public static final long REFCACHE_TTLMS = 60*1000;
     /**
      * In conjunction with Couchbase (if USECOUCHBASE is False, it is ignored)
      */
@@ -17,12 +17,17 @@
  */
 package fr.gouv.vitam.query.parser;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -48,6 +53,15 @@ public abstract class AbstractQueryParser {
      * Front part for ES attribute not parsed
      */
     public static final String _NA = "_na_";
+    /**
+     * Factory for streaming parse (same relaxed Json as requests)
+     */
+    private static final JsonFactory STREAM_FACTORY = new JsonFactory()
+            .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+            .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES)
+            .enable(JsonParser.Feature.ALLOW_COMMENTS)
+            .enable(JsonParser.Feature.ALLOW_NON_NUMERIC_NUMBERS);
+    private static final ObjectMapper STREAM_MAPPER = new ObjectMapper(STREAM_FACTORY);
 
     private static final VitamLogger LOGGER = VitamLoggerFactory.getInstance(AbstractQueryParser.class);
 
@@ -102,6 +116,22 @@ public abstract class AbstractQueryParser {
      * @throws InvalidParseOperationException
      */
     public void parse(final String request) throws InvalidParseOperationException {
+        if (GlobalDatas.useStreamingParser) {
+            parseStream(request);
+        } else {
+            parseTree(request);
+        }
+    }
+
+    /**
+     * Parse through a full Json tree, sources being the Json of each level
+     *
+     * @param request
+     *            containing a JSON as [ {query}, {filter}, {projection} ] or { query : select, filter : filter, projection :
+     *            projection }
+     * @throws InvalidParseOperationException
+     */
+    public void parseTree(final String request) throws InvalidParseOperationException {
         this.request = request;
         final JsonNode rootNode = JsonHandler.getFromString(request);
         if (rootNode.isMissingNode()) {
@@ -119,6 +149,157 @@ public abstract class AbstractQueryParser {
             projectionParse(rootNode.get(GLOBAL.projection.exactToken()));
         }
     }
+    /**
+     * Parse in one pass over the Json tokens: only the command of each level is read as a tree (as needed by the
+     * analyzers), $depth and $relativedepth are read directly, and sources are the fingerprints of each level.
+     *
+     * @param request
+     *            containing a JSON as [ {query}, {filter}, {projection} ] or { query : select, filter : filter, projection :
+     *            projection }
+     * @throws InvalidParseOperationException
+     */
+    public void parseStream(final String request) throws InvalidParseOperationException {
+        this.request = request;
+        JsonParser parser = null;
+        try {
+            parser = STREAM_FACTORY.createParser(request);
+            final JsonToken token = parser.nextToken();
+            boolean query = false;
+            boolean filter = false;
+            boolean projection = false;
+            if (token == JsonToken.START_ARRAY) {
+                // should be 3, but each could be empty ( '{}' )
+                if (parser.nextToken() != JsonToken.END_ARRAY) {
+                    queryStream(parser);
+                    query = true;
+                    if (parser.nextToken() != JsonToken.END_ARRAY) {
+                        filterParse(readTree(parser));
+                        filter = true;
+                        if (parser.nextToken() != JsonToken.END_ARRAY) {
+                            projectionParse(readTree(parser));
+                            projection = true;
+                        }
+                    }
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                // not as array but composite as { $query : query, $filter : filter, $projection : projection }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (name.equals(GLOBAL.query.exactToken())) {
+                        queryStream(parser);
+                        query = true;
+                    } else if (name.equals(GLOBAL.filter.exactToken())) {
+                        filterParse(readTree(parser));
+                        filter = true;
+                    } else if (name.equals(GLOBAL.projection.exactToken())) {
+                        projectionParse(readTree(parser));
+                        projection = true;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                throw new InvalidParseOperationException("The current Node is missing(empty): RequestRoot");
+            }
+            if (!query || !filter || !projection) {
+                throw new InvalidParseOperationException("Not correctly parsed: query, filter and projection are needed");
+            }
+        } catch (final IOException e) {
+            throw new InvalidParseOperationException("Parse in error for Request: " + request, e);
+        } finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static final JsonNode readTree(final JsonParser parser) throws IOException {
+        final JsonNode node = STREAM_MAPPER.readTree(parser);
+        return node == null ? JsonHandler.createObjectNode() : node;
+    }
+
+    /**
+     * [ query, query ] or { query } if one level only, from the current token
+     *
+     * @param parser
+     * @throws InvalidParseOperationException
+     */
+    protected void queryStream(final JsonParser parser) throws InvalidParseOperationException {
+        try {
+            if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    analyzeRootStream(parser);
+                }
+            } else {
+                analyzeRootStream(parser);
+            }
+        } catch (final InvalidParseOperationException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new InvalidParseOperationException("Parse in error for Query", e);
+        }
+    }
+
+    /**
+     * { expression, $depth : exactdepth, $relativedepth : /- depth } from the current token
+     *
+     * @param parser
+     * @throws InvalidParseOperationException
+     * @throws IOException
+     */
+    protected void analyzeRootStream(final JsonParser parser) throws InvalidParseOperationException, IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            throw new InvalidParseOperationException("Not correctly parsed: " + parser.getCurrentToken());
+        }
+        final SourceFingerprint fingerprint = new SourceFingerprint().startObject();
+        JsonNode jdepth = null;
+        JsonNode jrelativedepth = null;
+        String refCommand = null;
+        JsonNode command = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            parser.nextToken();
+            final JsonNode value = readTree(parser);
+            fingerprint.addField(name).add(value);
+            if (name.equals(REQUESTARGS.depth.exactToken())) {
+                jdepth = value;
+            } else if (name.equals(REQUESTARGS.relativedepth.exactToken())) {
+                jrelativedepth = value;
+            } else if (refCommand != null) {
+                throw new InvalidParseOperationException("Not correctly parsed: more than one command in RootRequest: "
+                        + refCommand + " " + name);
+            } else {
+                refCommand = name;
+                command = value;
+            }
+        }
+        sources.add(fingerprint.endObject().finish());
+        int relativedepth = 1; // default is immediate next level
+        int exactdepth = 0; // default is to not specify any exact depth (implicit)
+        boolean isDepth = false;
+        if (jdepth != null) {
+            exactdepth = jdepth.asInt();
+            isDepth = true;
+        } else if (jrelativedepth != null) {
+            relativedepth = jrelativedepth.asInt();
+            if (relativedepth == 0) {
+                relativedepth = GlobalDatas.MAXDEPTH;
+            }
+            isDepth = true;
+        }
+        if (refCommand == null) {
+            // Root may be empty: ok since it means validate all "start nodes"
+            addAllRequest();
+            return;
+        }
+        analyzeRootCommand(refCommand, command, command, relativedepth, exactdepth, isDepth);
+    }
+
     /**
      * 
      * @param request containing only the JSON query part (no filter neither projection)
@@ -318,24 +499,45 @@ public abstract class AbstractQueryParser {
         }
         // Root may be empty: ok since it means validate all "start nodes"
         if (command.size() == 0) {
-            TypeRequest tr = new TypeRequest();
-            tr.requestModel = JsonHandler.createObjectNode();
-            tr.type = REQUEST._all_;
-            getRequests().add(tr);
+            addAllRequest();
             return;
         }
         // now single element
         final Entry<String, JsonNode> requestItem = JsonHandler.checkUnicity("RootRequest", command);
+        analyzeRootCommand(requestItem.getKey(), requestItem.getValue(), command, relativedepth, exactdepth, isDepth);
+    }
+
+    private final void addAllRequest() {
+        final TypeRequest tr = new TypeRequest();
+        tr.requestModel = JsonHandler.createObjectNode();
+        tr.type = REQUEST._all_;
+        getRequests().add(tr);
+    }
+
+    /**
+     * Analyze the single command of one level, depth being already extracted
+     *
+     * @param refCommand
+     * @param value
+     * @param command
+     *            the level (for logs)
+     * @param relativedepth
+     * @param exactdepth
+     * @param isDepth
+     * @throws InvalidParseOperationException
+     */
+    protected void analyzeRootCommand(final String refCommand, final JsonNode value, final JsonNode command,
+            final int relativedepth, final int exactdepth, final boolean isDepth) throws InvalidParseOperationException {
         TypeRequest tr = null;
-        if (requestItem.getKey().equalsIgnoreCase(REQUEST.path.exactToken())) {
+        if (refCommand.equalsIgnoreCase(REQUEST.path.exactToken())) {
             if (isDepth) {
                 throw new InvalidParseOperationException("Invalid combined command Depth and Path: " + command);
             }
             final int prevDepth = lastDepth;
-            tr = analyzePath(requestItem.getKey(), requestItem.getValue());
+            tr = analyzePath(refCommand, value);
             LOGGER.debug("Depth step: {}:{}", lastDepth, lastDepth - prevDepth);
         } else {
-            tr = analyzeOneCommand(requestItem.getKey(), requestItem.getValue());
+            tr = analyzeOneCommand(refCommand, value);
             tr.relativedepth = relativedepth;
             tr.exactdepth = exactdepth;
             tr.isDepth = isDepth;
@@ -358,7 +560,8 @@ public abstract class AbstractQueryParser {
                     lastDepth+" or up to 1 but using negative relative depth: "+tr.relativedepth);
         }
         if (tr.isOnlyES || tr.relativedepth > 1 || lastDepth - prevDepth > 1) {
-            // MongoDB not allowed
+            // MongoDB not allowed, except through ancestors if only due to depth
+            tr.isDepthOnlyES = !tr.isOnlyES;
             tr.isOnlyES = true;
             LOGGER.debug("ES only: {}", command);
         }
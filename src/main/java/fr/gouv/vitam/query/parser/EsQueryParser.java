@@ -270,8 +270,14 @@ public class EsQueryParser extends AbstractQueryParser {
         }
         tr0.isOnlyES = true;
         LOGGER.debug("ES only: {}", refCommand);
-        final JsonNode max = ((ObjectNode) command).remove(REQUESTARGS.max_expansions.exactToken());
-        final Entry<String, JsonNode> element = JsonHandler.checkUnicity(refCommand, command);
+        final JsonNode max = command.get(REQUESTARGS.max_expansions.exactToken());
+        JsonNode match = command;
+        if (max != null) {
+            // copy since the command may be kept (lazy TypeRequest) and analyzed again
+            match = command.deepCopy();
+            ((ObjectNode) match).remove(REQUESTARGS.max_expansions.exactToken());
+        }
+        final Entry<String, JsonNode> element = JsonHandler.checkUnicity(refCommand, match);
         final String attribute = element.getKey();
         if ((req == REQUEST.match_phrase_prefix || req == REQUEST.prefix) && isAttributeNotAnalyzed(attribute)) {
             tr0.query = QueryBuilders.prefixQuery(element.getKey(), element.getValue().toString());
@@ -28,24 +28,71 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.query.parser.ParserTokens.RANGEARGS;
 import fr.gouv.vitam.query.parser.ParserTokens.REQUEST;
+import fr.gouv.vitam.query.parser.TypeRequest.LazyBuilder;
 import fr.gouv.vitam.utils.exception.InvalidParseOperationException;
 import fr.gouv.vitam.utils.json.JsonHandler;
 
 /**
- * Version using MongoDB and ElasticSearch
+ * Version using MongoDB and ElasticSearch<br>
+ * <br>
+ * When GlobalDatas.useLazyBuilders is set, each predicate is fully checked while parsing, but each TypeRequest only
+ * keeps it, and the MongoDB or ElasticSearch parts are built on first access (TypeRequest getters) for the backend
+ * really used. Each build uses its own parser instance dedicated to one backend, so that lazy TypeRequests can be
+ * built concurrently.
  *
  * @author "Frederic Bregier"
  *
  */
 public class MdEsQueryParser extends EsQueryParser {
+    /**
+     * Backends to build for (both, except for the parsers dedicated to a lazy build or to the check of a predicate)
+     */
+    private final boolean buildMongoDb;
+    private final boolean buildElasticSearch;
+    /**
+     * Builder of lazy TypeRequest (the predicate being analyzed again by a parser dedicated to one backend)
+     */
+    private final LazyBuilder lazyBuilder = new LazyBuilder() {
+        @Override
+        public void buildMongoDb(final TypeRequest tr) throws InvalidParseOperationException {
+            if (tr.isOnlyES && !tr.isDepthOnlyES) {
+                // no MongoDB request for ElasticSearch only commands
+                return;
+            }
+            tr.requestModel = new MdEsQueryParser(simulate, true, false).analyzeOneCommand(tr.refCommand, tr.command)
+                    .requestModel;
+        }
+
+        @Override
+        public void buildElasticSearch(final TypeRequest tr) throws InvalidParseOperationException {
+            final TypeRequest built = new MdEsQueryParser(simulate, false, true).analyzeOneCommand(tr.refCommand,
+                    tr.command);
+            tr.query = built.query;
+            tr.filter = built.filter;
+        }
+    };
+
     /**
      * @param simul
      */
     public MdEsQueryParser(final boolean simul) {
+        this(simul, true, true);
+    }
+
+    /**
+     * @param simul
+     * @param buildMongoDb
+     * @param buildElasticSearch
+     *            (if none, predicates are only checked)
+     */
+    private MdEsQueryParser(final boolean simul, final boolean buildMongoDb, final boolean buildElasticSearch) {
         super(simul);
         usingMongoDb = true;
+        this.buildMongoDb = buildMongoDb;
+        this.buildElasticSearch = buildElasticSearch;
     }
 
     /*
@@ -111,9 +158,13 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> element = JsonHandler.checkUnicity(refCommand, command);
-        sizeEs(tr0, element);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        tr0.requestModel.putObject(element.getKey()).set(refCommand, element.getValue());
+        if (buildElasticSearch) {
+            sizeEs(tr0, element);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            tr0.requestModel.putObject(element.getKey()).set(refCommand, element.getValue());
+        }
     }
 
     /**
@@ -132,9 +183,13 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> element = JsonHandler.checkUnicity(refCommand, command);
-        compareEs(tr0, req, element);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        tr0.requestModel.putObject(element.getKey()).set(refCommand, element.getValue());
+        if (buildElasticSearch) {
+            compareEs(tr0, req, element);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            tr0.requestModel.putObject(element.getKey()).set(refCommand, element.getValue());
+        }
     }
 
     /**
@@ -152,11 +207,15 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> element = JsonHandler.checkUnicity(refCommand, command);
-        inEs(tr0, req, element);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        final ArrayNode objectMD = tr0.requestModel.putObject(element.getKey()).putArray(refCommand);
-        for (final JsonNode value : element.getValue()) {
-            objectMD.add(value);
+        if (buildElasticSearch) {
+            inEs(tr0, req, element);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            final ArrayNode objectMD = tr0.requestModel.putObject(element.getKey()).putArray(refCommand);
+            for (final JsonNode value : element.getValue()) {
+                objectMD.add(value);
+            }
         }
     }
 
@@ -175,23 +234,34 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> element = JsonHandler.checkUnicity(refCommand, command);
-        rangeEs(tr0, req, element);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        final ObjectNode objectMD = tr0.requestModel.putObject(element.getKey());
-        for (final Iterator<Entry<String, JsonNode>> iterator = element.getValue().fields(); iterator.hasNext();) {
-            final Entry<String, JsonNode> requestItem = iterator.next();
-            RANGEARGS arg = null;
-            try {
-                final String key = requestItem.getKey();
-                if (key.startsWith("$")) {
-                    arg = RANGEARGS.valueOf(requestItem.getKey().substring(1));
-                } else {
-                    throw new InvalidParseOperationException("Invalid Range query command: " + requestItem);
-                }
-            } catch (final IllegalArgumentException e) {
-                throw new InvalidParseOperationException("Invalid Range query command: " + requestItem, e);
+        if (buildElasticSearch) {
+            rangeEs(tr0, req, element);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            final ObjectNode objectMD = tr0.requestModel.putObject(element.getKey());
+            for (final Iterator<Entry<String, JsonNode>> iterator = element.getValue().fields(); iterator.hasNext();) {
+                final Entry<String, JsonNode> requestItem = iterator.next();
+                objectMD.set(getRangeArg(requestItem).exactToken(), requestItem.getValue());
+            }
+        } else if (!buildElasticSearch) {
+            // check only
+            for (final Iterator<Entry<String, JsonNode>> iterator = element.getValue().fields(); iterator.hasNext();) {
+                getRangeArg(iterator.next());
             }
-            objectMD.set(arg.exactToken(), requestItem.getValue());
+        }
+    }
+
+    private static final RANGEARGS getRangeArg(final Entry<String, JsonNode> requestItem)
+            throws InvalidParseOperationException {
+        try {
+            final String key = requestItem.getKey();
+            if (key.startsWith("$")) {
+                return RANGEARGS.valueOf(key.substring(1));
+            }
+            throw new InvalidParseOperationException("Invalid Range query command: " + requestItem);
+        } catch (final IllegalArgumentException e) {
+            throw new InvalidParseOperationException("Invalid Range query command: " + requestItem, e);
         }
     }
 
@@ -211,9 +281,13 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> entry = JsonHandler.checkUnicity(refCommand, command);
-        regexEs(tr0, entry);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        tr0.requestModel.putObject(entry.getKey()).set(refCommand, entry.getValue());
+        if (buildElasticSearch) {
+            regexEs(tr0, entry);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            tr0.requestModel.putObject(entry.getKey()).set(refCommand, entry.getValue());
+        }
     }
 
     /**
@@ -230,28 +304,31 @@ public class MdEsQueryParser extends EsQueryParser {
         if (command == null) {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
-        termEs(command, tr0);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        for (final Iterator<Entry<String, JsonNode>> iterator = command.fields(); iterator.hasNext();) {
-            final Entry<String, JsonNode> requestItem = iterator.next();
-            final String key = requestItem.getKey();
-            final JsonNode node = requestItem.getValue();
-            if (node.isNumber()) {
-                if (isAttributeNotAnalyzed(key)) {
-                    tr0.requestModel.set(key.replaceFirst(_NA, ""), node);
-                } else {
-                    tr0.requestModel.set(key, node);
-                }
-            } else {
-                final String val = node.asText();
-                if (isAttributeNotAnalyzed(key)) {
-                    tr0.requestModel.put(key.replaceFirst(_NA, ""), val);
+        if (buildElasticSearch) {
+            termEs(command, tr0);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            for (final Iterator<Entry<String, JsonNode>> iterator = command.fields(); iterator.hasNext();) {
+                final Entry<String, JsonNode> requestItem = iterator.next();
+                final String key = requestItem.getKey();
+                final JsonNode node = requestItem.getValue();
+                if (node.isNumber()) {
+                    if (isAttributeNotAnalyzed(key)) {
+                        tr0.requestModel.set(key.replaceFirst(_NA, ""), node);
+                    } else {
+                        tr0.requestModel.set(key, node);
+                    }
                 } else {
-                    tr0.requestModel.put(key, val);
+                    final String val = node.asText();
+                    if (isAttributeNotAnalyzed(key)) {
+                        tr0.requestModel.put(key.replaceFirst(_NA, ""), val);
+                    } else {
+                        tr0.requestModel.put(key, val);
+                    }
                 }
             }
         }
-
     }
     
 
@@ -271,11 +348,15 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> entry = JsonHandler.checkUnicity(refCommand, command);
-        wildcardEs(entry, tr0);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        String value = entry.getValue().asText();
-        value = value.replace('?', '.').replace("*", ".*");
-        tr0.requestModel.putObject(entry.getKey()).put(REQUEST.regex.exactToken(), value);
+        if (buildElasticSearch) {
+            wildcardEs(entry, tr0);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            String value = entry.getValue().asText();
+            value = value.replace('?', '.').replace("*", ".*");
+            tr0.requestModel.putObject(entry.getKey()).put(REQUEST.regex.exactToken(), value);
+        }
     }
 
     /**
@@ -293,12 +374,16 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final Entry<String, JsonNode> entry = JsonHandler.checkUnicity(refCommand, command);
-        eqEs(tr0, req, entry);
-        tr0.requestModel = JsonHandler.createObjectNode();
-        if (req == REQUEST.ne) {
-            tr0.requestModel.putObject(entry.getKey()).set(refCommand, entry.getValue());
-        } else {
-            tr0.requestModel.set(entry.getKey(), entry.getValue());
+        if (buildElasticSearch) {
+            eqEs(tr0, req, entry);
+        }
+        if (buildMongoDb) {
+            tr0.requestModel = JsonHandler.createObjectNode();
+            if (req == REQUEST.ne) {
+                tr0.requestModel.putObject(entry.getKey()).set(refCommand, entry.getValue());
+            } else {
+                tr0.requestModel.set(entry.getKey(), entry.getValue());
+            }
         }
     }
 
@@ -317,11 +402,15 @@ public class MdEsQueryParser extends EsQueryParser {
         if (command == null) {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
-        existsEs(command, tr0, req);
-        // only fieldname
-        final String fieldname = command.asText();
-        tr0.requestModel = JsonHandler.createObjectNode();
-        tr0.requestModel.putObject(fieldname).put(REQUEST.exists.exactToken(), req == REQUEST.exists);
+        if (buildElasticSearch) {
+            existsEs(command, tr0, req);
+        }
+        if (buildMongoDb) {
+            // only fieldname
+            final String fieldname = command.asText();
+            tr0.requestModel = JsonHandler.createObjectNode();
+            tr0.requestModel.putObject(fieldname).put(REQUEST.exists.exactToken(), req == REQUEST.exists);
+        }
     }
 
     /**
@@ -339,11 +428,15 @@ public class MdEsQueryParser extends EsQueryParser {
         if (command == null) {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
-        isNullEs(command, tr0);
-        // only fieldname
-        final String fieldname = command.asText();
-        tr0.requestModel = JsonHandler.createObjectNode();
-        tr0.requestModel.putObject(fieldname).put("$type", BSON.NULL);
+        if (buildElasticSearch) {
+            isNullEs(command, tr0);
+        }
+        if (buildMongoDb) {
+            // only fieldname
+            final String fieldname = command.asText();
+            tr0.requestModel = JsonHandler.createObjectNode();
+            tr0.requestModel.putObject(fieldname).put("$type", BSON.NULL);
+        }
     }
 
     /**
@@ -362,8 +455,12 @@ public class MdEsQueryParser extends EsQueryParser {
             throw new InvalidParseOperationException("Not correctly parsed: " + refCommand);
         }
         final List<TypeRequest> trlist = new ArrayList<>();
-        booleanEs(refCommand, command, tr0, req, trlist);
-        if (!tr0.isOnlyES) {
+        if (buildElasticSearch) {
+            booleanEs(refCommand, command, tr0, req, trlist);
+        } else {
+            booleanMd(refCommand, command, tr0, trlist);
+        }
+        if (buildMongoDb && !tr0.isOnlyES) {
             // MD
             tr0.requestModel = JsonHandler.createObjectNode();
             ArrayNode array = null;
@@ -383,4 +480,45 @@ public class MdEsQueryParser extends EsQueryParser {
             }
         }
     }
+
+    /**
+     * Sub commands of a boolean command, without building the ElasticSearch part
+     *
+     * @param refCommand
+     * @param command
+     * @param tr0
+     * @param trlist
+     * @throws InvalidParseOperationException
+     */
+    private final void booleanMd(final String refCommand, final JsonNode command, final TypeRequest tr0,
+            final List<TypeRequest> trlist) throws InvalidParseOperationException {
+        if (!command.isArray()) {
+            throw new InvalidParseOperationException("Boolean operator needs an array of expression: " + command);
+        }
+        for (final JsonNode subcommand : command) {
+            final Entry<String, JsonNode> requestItem = JsonHandler.checkUnicity(refCommand, subcommand);
+            final TypeRequest tr = analyzeOneCommand(requestItem.getKey(), requestItem.getValue());
+            trlist.add(tr);
+            unionTransaction(tr0, tr);
+        }
+    }
+
+    /**
+     * When lazy, the predicate is checked (by a parser building none of the backends, which also tells if it is only
+     * valid for ElasticSearch) and kept, the builders being called on first use
+     */
+    @Override
+    protected TypeRequest analyzeOneCommand(final String refCommand, final JsonNode command)
+            throws InvalidParseOperationException {
+        if (!GlobalDatas.useLazyBuilders || !buildMongoDb || !buildElasticSearch) {
+            // eager or dedicated to one backend (or to the check)
+            return super.analyzeOneCommand(refCommand, command);
+        }
+        final TypeRequest checked = new MdEsQueryParser(simulate, false, false).analyzeOneCommand(refCommand, command);
+        final TypeRequest tr0 = new TypeRequest();
+        tr0.type = checked.type;
+        tr0.isOnlyES = checked.isOnlyES;
+        tr0.setLazy(refCommand, command, lazyBuilder);
+        return tr0;
+    }
 }
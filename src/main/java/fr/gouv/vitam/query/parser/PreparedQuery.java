@@ -0,0 +1,340 @@
+/**
+ * This file is part of Vitam Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Vitam Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Vitam is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Vitam . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.query.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.query.parser.ParserTokens.REQUEST;
+import fr.gouv.vitam.query.parser.ParserTokens.REQUESTARGS;
+import fr.gouv.vitam.utils.exception.InvalidParseOperationException;
+import fr.gouv.vitam.utils.json.JsonHandler;
+
+/**
+ * Query parsed once, with placeholders, then bound many times to parameter values.<br>
+ * <br>
+ * Placeholders are string values "$$name" (name being letters, digits or '_'), as in
+ * { $eq : { 'field' : '$$value' } } or { $path : [ '$$id' ] }. They can be used as any value of a
+ * request, but not where the parser itself needs the value (depth, $size, $limit, ...).<br>
+ * Each level is kept as Json templates for MongoDB and ElasticSearch, so that binding only substitutes the values,
+ * without any Json parsing neither builder construction (except for sources when they are fingerprints).<br>
+ * A level where a placeholder is a value transformed by the parser ($wildcard, $term, $date) is analyzed again
+ * at each bind, since its built requests depend on the value itself.<br>
+ * All lazy parts of the parsed requests are built by the constructor, so that binds never modify the prepared
+ * object and can run concurrently. The bound requests share the MongoDB models of the prepared one, which must be
+ * read only.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class PreparedQuery {
+    /**
+     * Prefix of placeholders
+     */
+    public static final String PLACEHOLDER = "$$";
+    /**
+     * Placeholder as a full Json string value, or embedded within a Json string
+     */
+    private static final Pattern PATTERN = Pattern.compile("\"\\$\\$(\\w+)\"|\\$\\$(\\w+)");
+    /**
+     * Commands and arguments whose values are transformed by the parser (not only copied)
+     */
+    private static final Set<String> TRANSFORMED = new HashSet<String>();
+    static {
+        TRANSFORMED.add(REQUEST.wildcard.exactToken());
+        TRANSFORMED.add(REQUEST.term.exactToken());
+        TRANSFORMED.add(REQUESTARGS.date.exactToken());
+    }
+
+    /**
+     * Json with placeholders
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    private static final class Template {
+        private final String[] parts;
+        private final String[] names;
+        private final boolean[] values;
+
+        private Template(final String source, final Set<String> allNames) {
+            final List<String> lparts = new ArrayList<String>();
+            final List<String> lnames = new ArrayList<String>();
+            final List<Boolean> lvalues = new ArrayList<Boolean>();
+            final Matcher matcher = PATTERN.matcher(source);
+            int pos = 0;
+            while (matcher.find()) {
+                lparts.add(source.substring(pos, matcher.start()));
+                final boolean value = matcher.group(1) != null;
+                lnames.add(value ? matcher.group(1) : matcher.group(2));
+                lvalues.add(value);
+                pos = matcher.end();
+            }
+            lparts.add(source.substring(pos));
+            parts = lparts.toArray(new String[0]);
+            names = lnames.toArray(new String[0]);
+            values = new boolean[lvalues.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = lvalues.get(i);
+            }
+            Collections.addAll(allNames, names);
+        }
+
+        private boolean isConstant() {
+            return names.length == 0;
+        }
+
+        private String render(final Map<String, ?> params) throws InvalidParseOperationException {
+            if (isConstant()) {
+                return parts[0];
+            }
+            final StringBuilder builder = new StringBuilder(parts[0].length() * 2);
+            for (int i = 0; i < names.length; i++) {
+                builder.append(parts[i]);
+                if (!params.containsKey(names[i])) {
+                    throw new InvalidParseOperationException("Missing parameter: " + names[i]);
+                }
+                final Object param = params.get(names[i]);
+                if (!values[i]) {
+                    builder.append(JsonStringEncoder.getInstance().quoteAsString(String.valueOf(param)));
+                } else if (param == null || param instanceof Number || param instanceof Boolean) {
+                    builder.append(param);
+                } else {
+                    builder.append('"').append(JsonStringEncoder.getInstance().quoteAsString(param.toString()))
+                            .append('"');
+                }
+            }
+            builder.append(parts[names.length]);
+            return builder.toString();
+        }
+    }
+
+    /**
+     * One level of the query
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    private static final class Level {
+        private final TypeRequest model;
+        private final Template source;
+        private final Template mongo;
+        private final Template query;
+        private final Template filter;
+        private final boolean constantRefId;
+        private final boolean reanalyze;
+
+        private Level(final TypeRequest model, final String source, final Set<String> allNames)
+                throws InvalidParseOperationException {
+            this.model = model;
+            this.source = new Template(source, allNames);
+            reanalyze = !this.source.isConstant() && model.type != REQUEST.path
+                    && hasTransformedPlaceholder(JsonHandler.getFromString(source), false);
+            // lazy parts are built once here since the prepared query may be executed on any backend
+            mongo = model.getRequestModel() != null ? new Template(model.requestModel.toString(), allNames) : null;
+            query = model.getQuery() != null ? new Template(model.query.toString(), allNames) : null;
+            filter = model.getFilter() != null ? new Template(model.filter.toString(), allNames) : null;
+            boolean constant = true;
+            if (model.refId != null) {
+                for (final String id : model.refId) {
+                    if (id.startsWith(PLACEHOLDER)) {
+                        allNames.add(id.substring(PLACEHOLDER.length()));
+                        constant = false;
+                    }
+                }
+            }
+            constantRefId = constant;
+        }
+
+        private TypeRequest bind(final AbstractQueryParser target, final Map<String, ?> params)
+                throws InvalidParseOperationException {
+            if (reanalyze) {
+                return analyze(target, params);
+            }
+            final TypeRequest tr = new TypeRequest();
+            copyLevel(tr);
+            tr.requestCb = model.requestCb;
+            if (constantRefId) {
+                tr.refId = model.refId;
+            } else {
+                tr.refId = new ArrayList<String>(model.refId.size());
+                for (final String id : model.refId) {
+                    if (id.startsWith(PLACEHOLDER)) {
+                        final Object param = params.get(id.substring(PLACEHOLDER.length()));
+                        if (param == null) {
+                            throw new InvalidParseOperationException("Missing parameter: " + id);
+                        }
+                        tr.refId.add(param.toString());
+                    } else {
+                        tr.refId.add(id);
+                    }
+                }
+            }
+            if (mongo != null) {
+                // the model is kept (read only) while the bound request is given as Json
+                tr.requestModel = model.requestModel;
+                tr.requestModelJson = mongo.render(params);
+            }
+            if (query != null) {
+                tr.query = query.isConstant() ? model.query : QueryBuilders.wrapperQuery(query.render(params));
+            }
+            if (filter != null) {
+                tr.filter = filter.isConstant() ? model.filter : FilterBuilders.wrapperFilter(filter.render(params));
+            }
+            return tr;
+        }
+
+        private void copyLevel(final TypeRequest tr) {
+            tr.type = model.type;
+            tr.relativedepth = model.relativedepth;
+            tr.exactdepth = model.exactdepth;
+            tr.isDepth = model.isDepth;
+            tr.isOnlyES = model.isOnlyES;
+            tr.isDepthOnlyES = model.isDepthOnlyES;
+        }
+
+        /**
+         * Analyze again the bound level by the target parser (depth being kept from the prepared one)
+         */
+        private TypeRequest analyze(final AbstractQueryParser target, final Map<String, ?> params)
+                throws InvalidParseOperationException {
+            final ObjectNode level = (ObjectNode) JsonHandler.getFromString(source.render(params));
+            level.remove(REQUESTARGS.depth.exactToken());
+            level.remove(REQUESTARGS.relativedepth.exactToken());
+            final Entry<String, JsonNode> command = JsonHandler.checkUnicity("RootRequest", level);
+            final TypeRequest tr = target.analyzeOneCommand(command.getKey(), command.getValue());
+            copyLevel(tr);
+            return tr;
+        }
+    }
+
+    /**
+     * @param node
+     * @param transformed
+     *            True if node is within a transformed command or argument
+     * @return True if a placeholder is used as a value transformed by the parser
+     */
+    private static boolean hasTransformedPlaceholder(final JsonNode node, final boolean transformed) {
+        if (node.isTextual()) {
+            return transformed && node.asText().contains(PLACEHOLDER);
+        }
+        if (node.isObject()) {
+            for (final Iterator<Entry<String, JsonNode>> iterator = node.fields(); iterator.hasNext();) {
+                final Entry<String, JsonNode> field = iterator.next();
+                if (hasTransformedPlaceholder(field.getValue(), transformed || TRANSFORMED.contains(field.getKey()))) {
+                    return true;
+                }
+            }
+        } else if (node.isArray()) {
+            for (final JsonNode item : node) {
+                if (hasTransformedPlaceholder(item, transformed)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private final AbstractQueryParser parsed;
+    private final List<Level> levels;
+    private final Set<String> names = new HashSet<String>();
+
+    /**
+     * Parse the request (with placeholders) once
+     *
+     * @param parser
+     *            the parser to use (of the same kind as the ones to bind later on)
+     * @param request
+     *            the request containing placeholders
+     * @throws InvalidParseOperationException
+     */
+    public PreparedQuery(final AbstractQueryParser parser, final String request) throws InvalidParseOperationException {
+        parser.parseTree(request);
+        parsed = parser;
+        final List<TypeRequest> requests = parser.getRequests();
+        levels = new ArrayList<Level>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            levels.add(new Level(requests.get(i), parser.getSources().get(i), names));
+        }
+    }
+
+    /**
+     *
+     * @return the names of the parameters
+     */
+    public Set<String> getParameterNames() {
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Bind the parameters into a new parser, without parsing
+     *
+     * @param target
+     *            a new (empty) parser, filled and returned
+     * @param params
+     *            values of parameters by name (String, Number, Boolean or null; other objects as String)
+     * @return the target filled with the bound requests
+     * @throws InvalidParseOperationException
+     *             if a parameter is missing
+     */
+    public <T extends AbstractQueryParser> T bind(final T target, final Map<String, ?> params)
+            throws InvalidParseOperationException {
+        for (final Level level : levels) {
+            target.getRequests().add(level.bind(target, params));
+            if (GlobalDatas.useStreamingParser) {
+                target.sources.add(SourceFingerprint.getFingerprint(JsonHandler.getFromString(level.source
+                        .render(params))));
+            } else {
+                target.sources.add(level.source.render(params));
+            }
+        }
+        target.request = parsed.request;
+        target.usingMongoDb = parsed.usingMongoDb;
+        target.usingCouchBase = parsed.usingCouchBase;
+        target.usingElasticSearch = parsed.usingElasticSearch;
+        target.limit = parsed.limit;
+        target.offset = parsed.offset;
+        target.orderBy = parsed.orderBy;
+        target.projection = parsed.projection;
+        target.contractId = parsed.contractId;
+        target.hintCache = parsed.hintCache;
+        target.lastDepth = parsed.lastDepth;
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "Prepared: " + names + " " + parsed;
+    }
+}
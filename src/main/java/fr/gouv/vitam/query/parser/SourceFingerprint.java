@@ -0,0 +1,158 @@
+/**
+ * This file is part of Vitam Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Vitam Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Vitam is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Vitam . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.query.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Compact canonical fingerprint of one level of a request (used as cache key source).<br>
+ * <br>
+ * The digest is computed on the Json tokens (type, value), not on the text, so that two writings of the same level
+ * (spaces, quotes, escapes) give the same fingerprint, whatever it is computed from a stream or from a tree.
+ *
+ * @author "Frederic Bregier"
+ *
+ */
+public class SourceFingerprint {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte START_OBJECT = '{';
+    private static final byte END_OBJECT = '}';
+    private static final byte START_ARRAY = '[';
+    private static final byte END_ARRAY = ']';
+    private static final byte FIELD = 'k';
+    private static final byte STRING = 's';
+    private static final byte NUMBER = 'n';
+    private static final byte TRUE = 't';
+    private static final byte FALSE = 'f';
+    private static final byte NULL = 'z';
+
+    private final MessageDigest digest;
+
+    /**
+     * Empty fingerprint
+     */
+    public SourceFingerprint() {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     *
+     * @param level
+     * @return the fingerprint of this level (including $depth or $relativedepth)
+     */
+    public static String getFingerprint(final JsonNode level) {
+        return new SourceFingerprint().add(level).finish();
+    }
+
+    private final void add(final byte tag, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        final int len = bytes.length;
+        digest.update(tag);
+        digest.update(new byte[] { (byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len });
+        digest.update(bytes);
+    }
+
+    /**
+     * Start a Json object (the level itself)
+     *
+     * @return this
+     */
+    public SourceFingerprint startObject() {
+        digest.update(START_OBJECT);
+        return this;
+    }
+
+    /**
+     * End a Json object (the level itself)
+     *
+     * @return this
+     */
+    public SourceFingerprint endObject() {
+        digest.update(END_OBJECT);
+        return this;
+    }
+
+    /**
+     *
+     * @param name
+     *            field name within the current object
+     * @return this
+     */
+    public SourceFingerprint addField(final String name) {
+        add(FIELD, name);
+        return this;
+    }
+
+    /**
+     *
+     * @param node
+     *            value to add
+     * @return this
+     */
+    public SourceFingerprint add(final JsonNode node) {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            digest.update(NULL);
+        } else if (node.isObject()) {
+            digest.update(START_OBJECT);
+            for (final Iterator<Entry<String, JsonNode>> iterator = node.fields(); iterator.hasNext();) {
+                final Entry<String, JsonNode> entry = iterator.next();
+                add(FIELD, entry.getKey());
+                add(entry.getValue());
+            }
+            digest.update(END_OBJECT);
+        } else if (node.isArray()) {
+            digest.update(START_ARRAY);
+            for (final JsonNode item : node) {
+                add(item);
+            }
+            digest.update(END_ARRAY);
+        } else if (node.isNumber()) {
+            add(NUMBER, node.asText());
+        } else if (node.isBoolean()) {
+            digest.update(node.asBoolean() ? TRUE : FALSE);
+        } else {
+            add(STRING, node.asText());
+        }
+        return this;
+    }
+
+    /**
+     * Finalize the fingerprint (this object cannot be used anymore)
+     *
+     * @return the fingerprint as an hexadecimal string
+     */
+    public String finish() {
+        final byte[] bytes = digest.digest();
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+}
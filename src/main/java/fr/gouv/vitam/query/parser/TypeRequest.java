@@ -22,9 +22,11 @@ import java.util.List;
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import fr.gouv.vitam.query.parser.ParserTokens.REQUEST;
+import fr.gouv.vitam.utils.exception.InvalidParseOperationException;
 
 /**
  * A Type of Request class
@@ -33,6 +35,30 @@ import fr.gouv.vitam.query.parser.ParserTokens.REQUEST;
  *
  */
 public class TypeRequest {
+    /**
+     * Lazy builder of backend specific parts of a TypeRequest from its backend-neutral predicate
+     *
+     * @author "Frederic Bregier"
+     *
+     */
+    public static interface LazyBuilder {
+        /**
+         * Build the MongoDB request model (requestModel)
+         *
+         * @param tr
+         * @throws InvalidParseOperationException
+         */
+        public void buildMongoDb(TypeRequest tr) throws InvalidParseOperationException;
+
+        /**
+         * Build the ElasticSearch query and filter
+         *
+         * @param tr
+         * @throws InvalidParseOperationException
+         */
+        public void buildElasticSearch(TypeRequest tr) throws InvalidParseOperationException;
+    }
+
     /**
      * The type of Request
      */
@@ -53,6 +79,10 @@ public class TypeRequest {
      * Is this request an ElasticSearch only request
      */
     public boolean isOnlyES;
+    /**
+     * Is this request an ElasticSearch only request only due to its depth (the expression itself is valid for MongoDB)
+     */
+    public boolean isDepthOnlyES;
     /**
      * In case of Path request, the list of IDs
      */
@@ -65,6 +95,10 @@ public class TypeRequest {
      * Request Model: MongoDB
      */
     public ObjectNode requestModel;
+    /**
+     * Request Model: MongoDB, already as Json (bound prepared query), else null
+     */
+    public String requestModelJson;
     /**
      * Request model: ES
      */
@@ -73,6 +107,20 @@ public class TypeRequest {
      * Filter for ES
      */
     public FilterBuilder filter;
+    /**
+     * Backend-neutral predicate: command name (when lazy)
+     */
+    public String refCommand;
+    /**
+     * Backend-neutral predicate: command argument (when lazy)
+     */
+    public JsonNode command;
+    /**
+     * Builder of backend specific parts (null if not lazy)
+     */
+    private LazyBuilder lazyBuilder;
+    private boolean mongoDbBuilt = true;
+    private boolean elasticSearchBuilt = true;
     /**
      *
      * @param nbModel
@@ -80,21 +128,99 @@ public class TypeRequest {
      */
     public TypeRequest() {
         isOnlyES = false;
+        isDepthOnlyES = false;
         requestModel = null;
         query = null;
         filter = null;
     }
 
+    /**
+     * Set this TypeRequest as lazy: backend specific parts will be built only when first needed
+     *
+     * @param refCommand
+     * @param command
+     * @param builder
+     */
+    public void setLazy(final String refCommand, final JsonNode command, final LazyBuilder builder) {
+        this.refCommand = refCommand;
+        this.command = command;
+        lazyBuilder = builder;
+        mongoDbBuilt = false;
+        elasticSearchBuilt = false;
+    }
+
+    /**
+     *
+     * @return the MongoDB request model (built once if lazy), or null if none
+     * @throws InvalidParseOperationException
+     */
+    public ObjectNode getRequestModel() throws InvalidParseOperationException {
+        if (!mongoDbBuilt) {
+            lazyBuilder.buildMongoDb(this);
+            mongoDbBuilt = true;
+        }
+        return requestModel;
+    }
+
+    /**
+     *
+     * @return the ElasticSearch query (built once if lazy), or null if none
+     * @throws InvalidParseOperationException
+     */
+    public QueryBuilder getQuery() throws InvalidParseOperationException {
+        buildElasticSearch();
+        return query;
+    }
+
+    /**
+     *
+     * @return the ElasticSearch filter (built once if lazy), or null if none
+     * @throws InvalidParseOperationException
+     */
+    public FilterBuilder getFilter() throws InvalidParseOperationException {
+        buildElasticSearch();
+        return filter;
+    }
+
+    private final void buildElasticSearch() throws InvalidParseOperationException {
+        if (!elasticSearchBuilt) {
+            lazyBuilder.buildElasticSearch(this);
+            elasticSearchBuilt = true;
+        }
+    }
+
+    /**
+     *
+     * @return the MongoDB request as Json (built once if lazy), or null if none
+     * @throws IllegalStateException
+     *             if the lazy build fails (the predicate being checked at parse time, it shall not)
+     */
+    public String getRequestModelAsString() {
+        if (requestModelJson != null) {
+            return requestModelJson;
+        }
+        final ObjectNode model;
+        try {
+            model = getRequestModel();
+        } catch (final InvalidParseOperationException e) {
+            throw new IllegalStateException("Cannot build the MongoDB request of " + refCommand + " " + command, e);
+        }
+        return model != null ? model.toString() : null;
+    }
+
     @Override
     public String toString() {
         final StringBuilder builder = new StringBuilder();
         builder.append(" Type: " + type + ":" + refId);
         builder.append(" Depth: " + isDepth + ":" + relativedepth + ":" + exactdepth);
-        builder.append(" isOnlyES: " + isOnlyES);
+        builder.append(" isOnlyES: " + isOnlyES + ":" + isDepthOnlyES);
         builder.append("\n\tfilter: " + filter);
-        builder.append("\n\trequest1: " + requestModel);
+        builder.append("\n\trequest1: " + (requestModel != null ? getRequestModelAsString() : null));
         builder.append("\n\trequest2: " + query);
         builder.append("\n\trequest3: " + requestCb);
+        if (refCommand != null) {
+            builder.append("\n\tpredicate: " + refCommand + " " + command);
+        }
         return builder.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/**
+ * This file is part of Vitam Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All Vitam Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vitam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vitam . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+import fr.gouv.vitam.utils.UUID;
+
+/**
+ * @author frederic
+ *
+ */
+@SuppressWarnings("javadoc")
+public class CompactIdSetTest {
+
+    @Test
+    public void testSetOperations() {
+        final Set<String> reference = new HashSet<String>();
+        final CompactIdSet set = new CompactIdSet();
+        for (int i = 0; i < 1000; i++) {
+            final String id = new UUID().toString();
+            reference.add(id);
+            assertTrue(set.add(id));
+            assertFalse(set.add(id));
+        }
+        // not compactable ids
+        reference.add("NotAnHexId");
+        assertTrue(set.add("NotAnHexId"));
+        assertEquals(reference.size(), set.size());
+        assertEquals(reference, set);
+        for (final String id : reference) {
+            assertTrue(set.contains(id));
+        }
+        assertFalse(set.contains(new UUID().toString()));
+        int removed = 0;
+        for (final Iterator<String> iterator = set.iterator(); iterator.hasNext();) {
+            final String id = iterator.next();
+            if (removed++ % 2 == 0) {
+                iterator.remove();
+                reference.remove(id);
+            }
+        }
+        assertEquals(reference, set);
+        set.retainAll(new HashSet<String>());
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testFirstLast() {
+        final CompactIdSet set = new CompactIdSet();
+        final Set<String> firsts = new HashSet<String>();
+        final Set<String> lasts = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            final String first = new UUID().toString();
+            final String middle = new UUID().toString();
+            final String last = new UUID().toString();
+            set.add(first + middle + last);
+            firsts.add(first);
+            lasts.add(last);
+        }
+        assertEquals(firsts, set.firstIdSet());
+        assertEquals(lasts, set.lastIdSet());
+        assertTrue(set.containsLast(lasts.iterator().next()));
+        assertFalse(set.containsLast(firsts.iterator().next()));
+    }
+
+    @Test
+    public void testRemoveAndCompact() {
+        final CompactIdSet set = new CompactIdSet();
+        final Set<String> reference = new HashSet<String>();
+        final Set<String> lasts = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            final String first = new UUID().toString();
+            final String last = new UUID().toString();
+            set.add(first + last);
+            reference.add(first + last);
+            lasts.add(last);
+        }
+        // last index built, then maintained while removing (compacting the pool)
+        assertTrue(set.containsLast(lasts.iterator().next()));
+        int rank = 0;
+        for (final String id : new HashSet<String>(reference)) {
+            if (rank++ % 4 != 0) {
+                assertTrue(set.remove(id));
+                reference.remove(id);
+                assertFalse(set.containsLast(UUID.getLastAsString(id)));
+            }
+        }
+        assertEquals(reference, set);
+        for (final String id : reference) {
+            assertTrue(set.contains(id));
+            assertTrue(set.containsLast(UUID.getLastAsString(id)));
+        }
+        final String added = new UUID().toString() + new UUID().toString();
+        assertTrue(set.add(added));
+        assertTrue(set.containsLast(UUID.getLastAsString(added)));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * This file is part of Vitam Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All Vitam Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vitam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vitam . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.gouv.vitam.query.GlobalDatas;
+import fr.gouv.vitam.utils.UUID;
+import fr.gouv.vitam.utils.logging.VitamLogLevel;
+import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
+
+/**
+ * @author frederic
+ *
+ */
+@SuppressWarnings("javadoc")
+public class ElasticSearchAccessTest {
+    private static final int PORT = 9399;
+    private static final String UNICAST = "localhost:" + PORT;
+    private static final String INDEX = "vitamtestidx";
+    private static final String TYPE = "testtype";
+    private static String clusterName;
+    private static File dataDir;
+    private static Node embedded;
+    private static boolean oldTransport;
+
+    @BeforeClass
+    public static void startNode() {
+        VitamLoggerFactory.setLogLevel(VitamLogLevel.WARN);
+        clusterName = "vitamtest" + new UUID().toString();
+        dataDir = new File(System.getProperty("java.io.tmpdir"), clusterName);
+        embedded = NodeBuilder.nodeBuilder().clusterName(clusterName).data(true)
+                .settings(ImmutableSettings.settingsBuilder().put("path.data", dataDir.getAbsolutePath())
+                        .put("http.enabled", false).put("discovery.zen.ping.multicast.enabled", false)
+                        .put("transport.tcp.port", PORT).put("index.number_of_shards", 1)
+                        .put("index.number_of_replicas", 0))
+                .node();
+        embedded.client().admin().cluster().prepareHealth().setWaitForYellowStatus().execute().actionGet();
+        oldTransport = GlobalDatas.useTransportClient;
+        GlobalDatas.useTransportClient = true;
+    }
+
+    @AfterClass
+    public static void stopNode() {
+        GlobalDatas.useTransportClient = oldTransport;
+        embedded.close();
+        delete(dataDir);
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File sub : files) {
+                delete(sub);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testLazyConnection() {
+        // no node listening there: construction and close must not connect
+        final ElasticSearchAccess access = new ElasticSearchAccess(clusterName, "localhost:" + (PORT + 1), null);
+        assertEquals(clusterName, access.getClusterName());
+        access.close();
+    }
+
+    @Test
+    public void testSharedTransportClient() {
+        final ElasticSearchAccess access1 = new ElasticSearchAccess(clusterName, UNICAST, null);
+        final ElasticSearchAccess access2 = new ElasticSearchAccess(clusterName, UNICAST, null);
+        final Client client = access1.getClient();
+        assertNotNull(client);
+        assertSame(client, access2.getClient());
+        assertTrue(access1.addIndex(INDEX, TYPE));
+        final String id = new UUID().toString();
+        assertTrue(access1.addEntryIndex(INDEX, TYPE, id, "{ \"" + DAip.NBCHILD + "\" : 3 }"));
+        access1.getClient().admin().indices().prepareRefresh(INDEX).execute().actionGet();
+        // still usable by the second access once the first one is closed
+        access1.close();
+        assertEquals(1, access2.getClient().prepareCount(INDEX).setTypes(TYPE).execute().actionGet().getCount());
+        access2.close();
+        // a new access after all are closed gets a new client
+        final ElasticSearchAccess access3 = new ElasticSearchAccess(clusterName, UNICAST, null);
+        assertNotSame(client, access3.getClient());
+        assertTrue(access3.deleteIndex(INDEX));
+        access3.close();
+    }
+
+    private static String getRefreshInterval(final Client client, final String index) {
+        return client.admin().indices().prepareGetSettings(index).execute().actionGet()
+                .getSetting(index, "index.refresh_interval");
+    }
+
+    @Test
+    public void testBulkLoadOnAlias() {
+        final ElasticSearchAccess access = new ElasticSearchAccess(clusterName, UNICAST, null);
+        final Client client = access.getClient();
+        final String index = INDEX + "_v1";
+        final String alias = INDEX + "_alias";
+        client.admin().indices().prepareCreate(index)
+                .setSettings(ImmutableSettings.settingsBuilder().put("index.refresh_interval", "5s")).execute()
+                .actionGet();
+        client.admin().indices().prepareAliases().addAlias(index, alias).execute().actionGet();
+        try {
+            assertTrue(access.startBulkLoad(alias));
+            // settings changed on the index behind the alias
+            assertEquals("-1", getRefreshInterval(client, index));
+            assertTrue(access.endBulkLoad(alias, 0));
+            // original value restored, not the default one
+            assertEquals("5s", getRefreshInterval(client, index));
+        } finally {
+            assertTrue(access.deleteIndex(index));
+            access.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * This file is part of Vitam Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author
+ * tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * All Vitam Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Vitam is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Vitam . If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.gouv.vitam.mdbes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * @author frederic
+ *
+ */
+@SuppressWarnings("javadoc")
+public class IdBitmapTest {
+
+    private static IdBitmap fill(final Random random, final TreeSet<Integer> reference, final int dense) {
+        final IdBitmap bitmap = new IdBitmap();
+        // sparse part
+        for (int i = 0; i < 2000; i++) {
+            final int value = random.nextInt(1 << 22);
+            assertEquals(reference.add(value), bitmap.add(value));
+        }
+        // dense part (bitmap containers)
+        for (int i = 0; i < dense; i++) {
+            final int value = (1 << 16) + random.nextInt(1 << 16);
+            assertEquals(reference.add(value), bitmap.add(value));
+        }
+        return bitmap;
+    }
+
+    private static void check(final TreeSet<Integer> reference, final IdBitmap bitmap) {
+        assertEquals(reference.size(), bitmap.cardinality());
+        final IdBitmap.OrdinalIterator iterator = bitmap.iterator();
+        for (final Integer value : reference) {
+            assertTrue(iterator.hasNext());
+            assertEquals(value.intValue(), iterator.next());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testOperations() {
+        final Random random = new Random(42);
+        final TreeSet<Integer> ref1 = new TreeSet<Integer>();
+        final TreeSet<Integer> ref2 = new TreeSet<Integer>();
+        final IdBitmap bitmap1 = fill(random, ref1, 20000);
+        final IdBitmap bitmap2 = fill(random, ref2, 3000);
+        check(ref1, bitmap1);
+        check(ref2, bitmap2);
+
+        final TreeSet<Integer> and = new TreeSet<Integer>(ref1);
+        and.retainAll(ref2);
+        check(and, bitmap1.and(bitmap2));
+        check(and, bitmap2.and(bitmap1));
+
+        final TreeSet<Integer> or = new TreeSet<Integer>(ref1);
+        or.addAll(ref2);
+        check(or, bitmap1.or(bitmap2));
+
+        final TreeSet<Integer> andNot = new TreeSet<Integer>(ref1);
+        andNot.removeAll(ref2);
+        check(andNot, bitmap1.andNot(bitmap2));
+
+        // operands unchanged
+        check(ref1, bitmap1);
+        check(ref2, bitmap2);
+
+        for (final Integer value : ref2) {
+            assertTrue(bitmap2.contains(value));
+            assertTrue(bitmap2.remove(value));
+            assertFalse(bitmap2.contains(value));
+        }
+        assertTrue(bitmap2.isEmpty());
+    }
+}
@@ -82,12 +82,16 @@ public class MainIngestESFromFile {
             model = args[4];
         }
         MongoDbAccess dbvitam = null;
+        boolean bulkLoad = false;
+        boolean loaded = false;
         try {
             final MongoClientOptions options = new MongoClientOptions.Builder().connectionsPerHost(4).build();
             mongoClient = new MongoClient(host, options);
             mongoClient.setReadPreference(ReadPreference.primaryPreferred());
             dbvitam = new MongoDbAccess(mongoClient, "VitamLinks", esbase, unicast, false);
             dbvitam.updateEsIndex(model);
+            dbvitam.startEsBulkLoad();
+            bulkLoad = true;
             MainIngestESFromFile.loadt = new AtomicLong(0);
             MainIngestFile.cptMaip.set(0);
             for (int i = 5; i < args.length-1; i++) {
@@ -97,11 +101,21 @@ public class MainIngestESFromFile {
             int i = args.length-1;
             System.out.println("Load "+args[i]);
             runOnce(dbvitam, args[i], false);
+            loaded = true;
         } catch (final Exception e) {
             System.err.println("ERROR: " + e.getMessage());
             e.printStackTrace();
 
         } finally {
+            if (bulkLoad) {
+                // always restore the index settings (optimize only a complete load)
+                try {
+                    dbvitam.endEsBulkLoad(loaded);
+                } catch (final Exception e) {
+                    System.err.println("ERROR while ending bulk load: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
             // release resources
             final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
             final ToClean toclean = new ToClean(dbvitam);
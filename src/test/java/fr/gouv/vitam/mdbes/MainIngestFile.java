@@ -202,7 +202,7 @@ public class MainIngestFile implements Runnable {
                 dbvitam.ensureIndex();
                 if (model != null) {
                     LOGGER.debug("updateEsIndex");
-                    dbvitam.updateEsIndex(model);
+                    dbvitam.updateEsIndex(model, parser.getFieldTypes());
                 }
                 LOGGER.debug("end Index");
             }
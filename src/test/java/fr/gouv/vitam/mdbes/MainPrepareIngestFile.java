@@ -163,7 +163,7 @@ public class MainPrepareIngestFile extends MainIngestFile {
                 dbvitam.ensureIndex();
                 if (model != null) {
                     LOGGER.debug("updateEsIndex");
-                    dbvitam.updateEsIndex(model);
+                    dbvitam.updateEsIndex(model, parser.getFieldTypes());
                 }
                 LOGGER.debug("end Index");
             }
@@ -135,6 +135,7 @@ public class MainQuery {
 				" Path:" + (date15 - date14));
 		if (result != null && ! result.getCurrentDaip().isEmpty()) {
             LOGGER.warn("Tree= "+result.getCurrentDaip().size());
+            LOGGER.warn("References= "+reqdb.resolveReferences(result).size());
 		    /*for (String id : result.currentDaip) {
 	            DAip daip = DAip.findOne(dbvitam, UUID.getLastAsString(id));
                 LOGGER.warn("ResTree: "+daip);
@@ -408,6 +408,28 @@ public class ParserIngest {
         return model;
     }
 
+    /**
+     * @return the DAip fields of the model (sub fields as "field.subfield") with their type, for the ES mapping
+     */
+    public Map<String, EsMapping.FTYPE> getFieldTypes() {
+        final Map<String, EsMapping.FTYPE> types = new HashMap<String, EsMapping.FTYPE>();
+        for (final List<TypeField> fields : daips) {
+            addFieldTypes(types, "", fields);
+        }
+        return types;
+    }
+
+    private static void addFieldTypes(final Map<String, EsMapping.FTYPE> types, final String prefix,
+            final List<TypeField> fields) {
+        for (final TypeField field : fields) {
+            if (field.type == FIELD.subfield) {
+                addFieldTypes(types, prefix + field.name + ".", field.subfields);
+            } else if (field.name != null) {
+                types.put(prefix + field.name, EsMapping.FTYPE.valueOf(field.ftype.name()));
+            }
+        }
+    }
+
     @Override
     public String toString() {
         final StringBuilder builder = new StringBuilder();
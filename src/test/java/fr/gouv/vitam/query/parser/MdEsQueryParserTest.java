@@ -34,6 +34,7 @@ import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import fr.gouv.vitam.query.GlobalDatas;
 import fr.gouv.vitam.query.construct.Query;
 import fr.gouv.vitam.query.construct.request.BooleanRequest;
 import fr.gouv.vitam.query.construct.request.ExistsRequest;
@@ -41,7 +42,9 @@ import fr.gouv.vitam.query.construct.request.InRequest;
 import fr.gouv.vitam.query.construct.request.PathRequest;
 import fr.gouv.vitam.query.parser.ParserTokens.FILTERARGS;
 import fr.gouv.vitam.query.parser.ParserTokens.REQUEST;
+import fr.gouv.vitam.query.parser.ParserTokens.REQUESTARGS;
 import fr.gouv.vitam.utils.exception.InvalidParseOperationException;
+import fr.gouv.vitam.utils.json.JsonHandler;
 import fr.gouv.vitam.utils.logging.VitamLogLevel;
 import fr.gouv.vitam.utils.logging.VitamLoggerFactory;
 
@@ -121,6 +124,94 @@ public class MdEsQueryParserTest {
         }
     }
 
+    @Test
+    public void testParseStream() {
+        try {
+            final MdEsQueryParser tree = new MdEsQueryParser(true);
+            tree.parseTree(exampleBothEsMd);
+            final MdEsQueryParser stream = new MdEsQueryParser(true);
+            stream.parseStream(exampleBothEsMd);
+            assertEquals(tree.getRequests().size(), stream.getRequests().size());
+            for (int i = 0; i < tree.getRequests().size(); i++) {
+                assertEquals(tree.getRequests().get(i).toString(), stream.getRequests().get(i).toString());
+                assertEquals(SourceFingerprint.getFingerprint(JsonHandler.getFromString(tree.getSources().get(i))),
+                        stream.getSources().get(i));
+            }
+            assertEquals(tree.getLimit(), stream.getLimit());
+            assertEquals(tree.getOffset(), stream.getOffset());
+            assertEquals(tree.getOrderBy(), stream.getOrderBy());
+            assertEquals(tree.getProjection(), stream.getProjection());
+            assertEquals(tree.getContractId(), stream.getContractId());
+            assertEquals(tree.hintCache(), stream.hintCache());
+            assertFalse(stream.getSources().get(3).equals(stream.getSources().get(4)));
+        } catch (final InvalidParseOperationException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLazyBuilders() {
+        try {
+            final MdEsQueryParser eager = new MdEsQueryParser(true);
+            eager.parse(exampleBothEsMd);
+            GlobalDatas.useLazyBuilders = true;
+            final MdEsQueryParser lazy = new MdEsQueryParser(true);
+            lazy.parse(exampleBothEsMd);
+            assertEquals(eager.getRequests().size(), lazy.getRequests().size());
+            for (int i = 1; i < eager.getRequests().size(); i++) {
+                final TypeRequest tre = eager.getRequests().get(i);
+                final TypeRequest trl = lazy.getRequests().get(i);
+                assertNull(trl.requestModel);
+                assertNull(trl.query);
+                assertNull(trl.filter);
+                assertEquals(tre.isOnlyES, trl.isOnlyES);
+                assertEquals(tre.isDepthOnlyES, trl.isDepthOnlyES);
+                assertEquals(String.valueOf(tre.query), String.valueOf(trl.getQuery()));
+                assertEquals(String.valueOf(tre.filter), String.valueOf(trl.getFilter()));
+                assertEquals(String.valueOf(tre.requestModel), String.valueOf(trl.getRequestModel()));
+                // cached once built
+                assertTrue(trl.getQuery() == trl.query);
+            }
+        } catch (final InvalidParseOperationException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            GlobalDatas.useLazyBuilders = false;
+        }
+    }
+
+    @Test
+    public void testLazyBuildersCheck() {
+        GlobalDatas.useLazyBuilders = true;
+        try {
+            // leaves are checked at parse time even if nothing is built
+            final MdEsQueryParser lazy = new MdEsQueryParser(true);
+            try {
+                lazy.parse("{ $query : { $and : [ { $range : { 'mavar1' : { $foo : 1 } } } ] }, "
+                        + "$filter : {}, $projection : {} }");
+                fail("Should raise an exception");
+            } catch (final InvalidParseOperationException e) {
+                // ok
+            }
+            // the kept predicate is not modified by a build
+            final MdEsQueryParser match = new MdEsQueryParser(true);
+            match.parse("{ $query : { $match : { 'mavar1' : 'quelques mots', $max_expansions : 10 } }, "
+                    + "$filter : {}, $projection : {} }");
+            final TypeRequest tr = match.getRequests().get(0);
+            assertTrue(tr.isOnlyES);
+            assertTrue(tr.getQuery().toString().contains("max_expansions"));
+            assertNotNull(tr.command.get(REQUESTARGS.max_expansions.exactToken()));
+            // ES only: no MongoDB request, as null
+            assertNull(tr.getRequestModelAsString());
+        } catch (final InvalidParseOperationException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        } finally {
+            GlobalDatas.useLazyBuilders = false;
+        }
+    }
+
     @Test
     public void testArrayParse() {
         MdEsQueryParser command1 = new MdEsQueryParser(true);
@@ -0,0 +1,88 @@
+package fr.gouv.vitam.query.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import fr.gouv.vitam.utils.exception.InvalidParseOperationException;
+
+@SuppressWarnings("javadoc")
+public class PreparedQueryTest {
+    private static final String prepared = "{ $query : [ { $path : [ '$$id' ] },"
+            + "{ $and : [ { $eq : { 'mavar1' : '$$value' } }, { $gt : { 'mavar2' : '$$num' } } ] } ],"
+            + "$filter : { $limit : 100 }, $projection : {} }";
+
+    @Test
+    public void testBind() {
+        try {
+            final PreparedQuery query = new PreparedQuery(new MdEsQueryParser(true), prepared);
+            assertEquals(3, query.getParameterNames().size());
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("id", "id1");
+            params.put("value", "ab\"cd");
+            params.put("num", 5);
+            final MdEsQueryParser bound = query.bind(new MdEsQueryParser(true), params);
+            final MdEsQueryParser parsed = new MdEsQueryParser(true);
+            parsed.parse("{ $query : [ { $path : [ 'id1' ] },"
+                    + "{ $and : [ { $eq : { 'mavar1' : 'ab\\\"cd' } }, { $gt : { 'mavar2' : 5 } } ] } ],"
+                    + "$filter : { $limit : 100 }, $projection : {} }");
+            assertEquals(parsed.getRequests().size(), bound.getRequests().size());
+            assertEquals(100, bound.getLimit());
+            assertEquals(parsed.getRequests().get(0).refId, bound.getRequests().get(0).refId);
+            assertEquals(parsed.getRequests().get(1).requestModel.toString(),
+                    bound.getRequests().get(1).getRequestModelAsString());
+            assertEquals(parsed.getSources().get(1), bound.getSources().get(1));
+            assertTrue(bound.getRequests().get(1).query.toString().contains("ab\\\"cd"));
+        } catch (final InvalidParseOperationException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBindWildcard() {
+        try {
+            final PreparedQuery query = new PreparedQuery(new MdEsQueryParser(true),
+                    "{ $query : { $wildcard : { 'mavar1' : '$$pattern' } }, $filter : { $limit : 100 }, $projection : {} }");
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("pattern", "ab*c?");
+            final MdEsQueryParser bound = query.bind(new MdEsQueryParser(true), params);
+            final MdEsQueryParser parsed = new MdEsQueryParser(true);
+            parsed.parse("{ $query : { $wildcard : { 'mavar1' : 'ab*c?' } }, $filter : { $limit : 100 }, $projection : {} }");
+            // the MongoDB regex is built from the bound value, not from the placeholder
+            final String model = bound.getRequests().get(0).getRequestModel().toString();
+            assertEquals(parsed.getRequests().get(0).getRequestModel().toString(), model);
+            assertTrue(model.contains("ab.*c."));
+            assertEquals(parsed.getRequests().get(0).getQuery().toString(),
+                    bound.getRequests().get(0).getQuery().toString());
+            assertEquals(parsed.getSources().get(0), bound.getSources().get(0));
+        } catch (final InvalidParseOperationException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void testMissingParameter() {
+        PreparedQuery query = null;
+        try {
+            query = new PreparedQuery(new MdEsQueryParser(true), prepared);
+        } catch (final InvalidParseOperationException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("id", "id1");
+        try {
+            query.bind(new MdEsQueryParser(true), params);
+            fail("Should raise an exception");
+        } catch (final InvalidParseOperationException e) {
+            // ok
+        }
+    }
+}